@@ -18,15 +18,22 @@
 
 package org.kontalk.xmppserver;
 
+import org.kontalk.xmppserver.auth.KontalkAuth;
+import org.kontalk.xmppserver.blocking.Blocklist;
+import org.kontalk.xmppserver.blocking.BlocklistRepository;
+import org.kontalk.xmppserver.blocking.BlocklistService;
+import org.kontalk.xmppserver.blocking.DataBlocklistRepository;
+import org.kontalk.xmppserver.blocking.ReverseBlockIndex;
+import org.kontalk.xmppserver.util.UserUidCache;
+import tigase.db.DBInitException;
 import tigase.db.NonAuthUserRepository;
 import tigase.db.TigaseDBException;
 import tigase.server.Iq;
+import tigase.server.Message;
 import tigase.server.Packet;
+import tigase.server.Presence;
 import tigase.util.TigaseStringprepException;
-import tigase.xml.DomBuilderHandler;
 import tigase.xml.Element;
-import tigase.xml.SimpleParser;
-import tigase.xml.SingletonFactory;
 import tigase.xmpp.*;
 
 import java.util.*;
@@ -62,6 +69,28 @@ public class BlockingCommand extends XMPPProcessorAbstract implements
 
     private static final String BLOCKLIST = "blocklist";
 
+    /** Marks stanzas discarded because the recipient blocked the sender. */
+    private static final String BLOCKED_ID = ID + ":blocked";
+
+    private BlocklistRepository blocklistRepo;
+    private BlocklistService blocklistService;
+
+    @Override
+    public void init(Map<String, Object> settings) throws TigaseDBException {
+        super.init(settings);
+        try {
+            blocklistRepo = new DataBlocklistRepository();
+            blocklistRepo.init(settings);
+            blocklistService = BlocklistService.init(blocklistRepo);
+            // the reverse index only scans the block list repository
+            blocklistService.migrateAll();
+            ReverseBlockIndex.getInstance().loadAsync(blocklistRepo);
+        }
+        catch (DBInitException e) {
+            throw new TigaseDBException("Unable to create instance for block list repository", e);
+        }
+    }
+
     @Override
     public String id() {
         return ID;
@@ -69,7 +98,19 @@ public class BlockingCommand extends XMPPProcessorAbstract implements
 
     @Override
     public boolean preProcess(Packet packet, XMPPResourceConnection session, NonAuthUserRepository repo, Queue<Packet> results, Map<String, Object> settings) {
-        if ((session == null) ||!session.isAuthorized() ||
+        if (session == null) {
+            // recipient is offline: discard before storing or pushing
+            if (!allowedOffline(packet)) {
+                if (log.isLoggable(Level.FINEST)) {
+                    log.log(Level.FINEST, "Sender blocked by offline recipient, discarding: {0}", packet);
+                }
+                packet.processedBy(BLOCKED_ID);
+                return true;
+            }
+            return false;
+        }
+
+        if (!session.isAuthorized() ||
                 packet.isXMLNSStaticStr(IQ_BLOCKLIST_PATH, XMLNS) ||
                 packet.isXMLNSStaticStr(IQ_BLOCK_PATH, XMLNS) ||
                 packet.isXMLNSStaticStr(IQ_UNBLOCK_PATH, XMLNS)) {
@@ -110,6 +151,36 @@ public class BlockingCommand extends XMPPProcessorAbstract implements
     }
 
 
+    /** Returns true if the packet was discarded because the recipient blocked the sender. */
+    public static boolean isBlocked(Packet packet) {
+        return packet.wasProcessedBy(BLOCKED_ID);
+    }
+
+    /** Checks the block list of the recipient of a packet for a user that is not online. */
+    private boolean allowedOffline(Packet packet) {
+        if (packet.getElemName() != Message.ELEM_NAME && packet.getElemName() != Presence.ELEM_NAME)
+            return true;
+
+        JID from = packet.getStanzaFrom();
+        JID to = packet.getStanzaTo();
+        // allow packets from and to servers
+        if (from == null || to == null || from.getLocalpart() == null || to.getLocalpart() == null)
+            return true;
+
+        BareJID user = to.getBareJID();
+        BareJID jid = from.getBareJID();
+        if (user.equals(jid))
+            return true;
+
+        try {
+            return !blocklistService.isBlocked(user, jid);
+        }
+        catch (TigaseDBException e) {
+            log.log(Level.WARNING, "Database problem: " + e, e);
+            return true;
+        }
+    }
+
     private boolean allowed(Packet packet, XMPPResourceConnection session) {
         try {
             // If this is a preprocessing phase, always allow all packets to
@@ -146,8 +217,7 @@ public class BlockingCommand extends XMPPProcessorAbstract implements
                 jid = packet.getStanzaTo().getBareJID();
             }
 
-            Set<BareJID> list = getBlocklist(session);
-            if (list != null && list.contains(jid))
+            if (getBlocklist(session).contains(jid))
                 return false;
         }
         /*
@@ -232,15 +302,8 @@ public class BlockingCommand extends XMPPProcessorAbstract implements
         Element blocklist = new Element(BLOCKLIST);
         blocklist.setXMLNS(XMLNS);
 
-        Set<BareJID> list = getBlocklist(session);
-        if (list != null) {
-            for (BareJID jid : list) {
-                blocklist.addChild(new Element("item",
-                        new String[] { "jid" },
-                        new String[] { jid.toString() }
-                ));
-            }
-        }
+        // the list will be needed by the filter anyway, and it might need migrating
+        addItems(blocklist, getBlocklist(session));
 
         results.offer(packet.okResult(blocklist, 0));
         packet.processedBy(ID);
@@ -250,35 +313,24 @@ public class BlockingCommand extends XMPPProcessorAbstract implements
     private void handleBlockRequest(Packet packet, XMPPResourceConnection session, Element block, Queue<Packet> results)
             throws NotAuthorizedException, TigaseDBException, TigaseStringprepException {
 
-        int count = 0;
-        List<Element> items = block.getChildren();
-        Set<BareJID> list = null;
-        if (items != null) {
-            list = getBlocklist(session);
+        List<BareJID> jids = parseItems(block);
 
-            for (Element item : items) {
-                if ("item".equalsIgnoreCase(item.getName())) {
-                    String jidString = item.getAttributeStaticStr("jid");
-                    BareJID jid;
-                    if (jidString != null) {
-                        // if jid is not valid it will throw exception
-                        try {
-                            jid = BareJID.bareJIDInstance(jidString);
-                        }
-                        catch (TigaseStringprepException e) {
-                            // invalid jid
-                            throw new IllegalArgumentException("invalid jid: " + jidString);
-                        }
-                        count++;
-                        list = addItem(list, jid);
-                    }
+        packet.processedBy(ID);
+        if (jids.size() > 0) {
+            synchronized (getLock(session)) {
+                Blocklist list = getBlocklist(session);
+                try {
+                    blocklistRepo.block(session.getBareJID(), jids);
+                    ReverseBlockIndex.getInstance().blocked(getUserUID(session), jids);
+                }
+                catch (TigaseDBException e) {
+                    // we don't know what's in storage now
+                    session.removeCommonSessionData(BLOCKLIST);
+                    blocklistService.invalidate(session.getBareJID());
+                    throw e;
                 }
+                updateBlocklist(session, list.with(jids));
             }
-        }
-
-        packet.processedBy(ID);
-        if (count > 0 && list != null) {
-            setBlocklist(session, list);
             results.offer(packet.okResult((Element) null, 0));
         }
         else {
@@ -290,115 +342,106 @@ public class BlockingCommand extends XMPPProcessorAbstract implements
     private void handleUnblockRequest(Packet packet, XMPPResourceConnection session, Element unblock, Queue<Packet> results)
             throws NotAuthorizedException, TigaseDBException, TigaseStringprepException {
 
-        int count = 0;
-        List<Element> items = unblock.getChildren();
-        Set<BareJID> list = null;
-        if (items != null) {
-            list = getBlocklist(session);
+        List<BareJID> jids = parseItems(unblock);
+
+        packet.processedBy(ID);
+        synchronized (getLock(session)) {
+            Blocklist list = getBlocklist(session);
 
             // no point in proceeding if block list doesn't exist
-            if (list != null) {
-                for (Element item : items) {
-                    if ("item".equalsIgnoreCase(item.getName())) {
-                        BareJID jid;
-                        String jidString = item.getAttributeStaticStr("jid");
-                        if (jidString != null) {
-                            // if jid is not valid it will throw exception
-                            try {
-                                jid = BareJID.bareJIDInstance(jidString);
-                            }
-                            catch (TigaseStringprepException e) {
-                                // invalid jid
-                                throw new IllegalArgumentException("invalid jid: " + jidString);
-                            }
-                            count++;
-                            removeItem(list, jid);
-                        }
-                    }
+            if (!list.isEmpty()) {
+                if (jids.isEmpty()) {
+                    // no items means unblock everyone
+                    jids = new ArrayList<>(list.size());
+                    for (BareJID jid : list)
+                        jids.add(jid);
+                }
+                try {
+                    blocklistRepo.unblock(session.getBareJID(), jids);
+                    ReverseBlockIndex.getInstance().unblocked(getUserUID(session), jids);
                 }
+                catch (TigaseDBException e) {
+                    // we don't know what's in storage now
+                    session.removeCommonSessionData(BLOCKLIST);
+                    blocklistService.invalidate(session.getBareJID());
+                    throw e;
+                }
+                updateBlocklist(session, list.without(jids));
             }
         }
+        results.offer(packet.okResult((Element) null, 0));
+    }
 
-        packet.processedBy(ID);
-        if (count > 0 || list == null) {
-            if (list != null) {
-                setBlocklist(session, list);
+    private List<BareJID> parseItems(Element parent) {
+        List<BareJID> jids = new ArrayList<>();
+        List<Element> items = parent.getChildren();
+        if (items != null) {
+            for (Element item : items) {
+                if ("item".equalsIgnoreCase(item.getName())) {
+                    String jidString = item.getAttributeStaticStr("jid");
+                    if (jidString != null) {
+                        // if jid is not valid it will throw exception
+                        try {
+                            jids.add(BareJID.bareJIDInstance(jidString));
+                        }
+                        catch (TigaseStringprepException e) {
+                            // invalid jid
+                            throw new IllegalArgumentException("invalid jid: " + jidString);
+                        }
+                    }
+                }
             }
-            results.offer(packet.okResult((Element) null, 0));
-        }
-        else {
-            // bad request
-            throw new IllegalArgumentException();
         }
+        return jids;
     }
 
-    private Set<BareJID> addItem(Set<BareJID> list, BareJID jid)
+    private long getUserUID(XMPPResourceConnection session)
             throws NotAuthorizedException, TigaseDBException {
-        if (list == null)
-            list = new HashSet<>();
-
-        list.add(jid);
-        return list;
+        return UserUidCache.getInstance().getUserUID(KontalkAuth.getUserRepository(), session.getBareJID());
     }
 
-    private void removeItem(Set<BareJID> list, BareJID jid)
-            throws NotAuthorizedException, TigaseDBException {
-        list.remove(jid);
+    /** Block list changes are serialized among all resources of the same user. */
+    private Object getLock(XMPPResourceConnection session) {
+        XMPPSession parent = session.getParentSession();
+        return parent != null ? parent : session;
     }
 
-    /** Loads the user's block list. */
-    private Set<BareJID> getBlocklist(XMPPResourceConnection session)
+    /**
+     * Returns the user's block list. The list is loaded once and cached in
+     * common session data, so it's shared by all the user's resources.
+     */
+    private Blocklist getBlocklist(XMPPResourceConnection session)
             throws NotAuthorizedException, TigaseDBException {
 
-        @SuppressWarnings("unchecked")
-        Set<BareJID> list = (Set<BareJID>) session.getCommonSessionData(BLOCKLIST);
-
+        Blocklist list = (Blocklist) session.getCommonSessionData(BLOCKLIST);
         if (list == null) {
-            String list_str = session.getData(BLOCKLIST, BLOCKLIST, null);
-
-            if ((list_str != null) && !list_str.isEmpty()) {
-                SimpleParser parser = SingletonFactory.getParserInstance();
-                DomBuilderHandler domHandler = new DomBuilderHandler();
-
-                parser.parse(domHandler, list_str.toCharArray(), 0, list_str.length());
-
-                Queue<Element> elems = domHandler.getParsedElements();
-                Element result = elems.poll();
-
-                if (log.isLoggable(Level.FINEST)) {
-                    log.log(Level.FINEST, "Loaded block list: {0}", result);
-                }
-
-                List<Element> children = result.getChildren();
-                if (children != null) {
-                    list = new HashSet<>(children.size());
-                    for (Element item : children) {
-                        list.add(BareJID.bareJIDInstanceNS(item.getAttributeStaticStr("jid")));
-                    }
+            // a concurrent change must not be overwritten by the list we are loading
+            synchronized (getLock(session)) {
+                list = (Blocklist) session.getCommonSessionData(BLOCKLIST);
+                if (list == null) {
+                    // legacy block lists are migrated by the service
+                    list = blocklistService.getBlocklist(session.getBareJID());
+                    session.putCommonSessionData(BLOCKLIST, list);
                 }
             }
         }
-
         return list;
     }
 
-    /** Saves the user's block list. */
-    private void setBlocklist(XMPPResourceConnection session, Set<BareJID> list)
-            throws NotAuthorizedException, TigaseDBException {
-        session.setData(BLOCKLIST, BLOCKLIST, dumpBlocklist(list).toString());
+    /** Replaces the cached block list after a change. */
+    private void updateBlocklist(XMPPResourceConnection session, Blocklist list)
+            throws NotAuthorizedException {
         session.putCommonSessionData(BLOCKLIST, list);
+        blocklistService.updated(session.getBareJID(), list);
     }
 
-    private Element dumpBlocklist(Set<BareJID> list) {
-        Element xml = new Element(BLOCKLIST);
-        xml.setXMLNS(XMLNS);
-        for (BareJID jid : list) {
-            xml.addChild(new Element("item",
+    private void addItems(Element blocklist, Iterable<BareJID> items) {
+        for (BareJID jid : items) {
+            blocklist.addChild(new Element("item",
                     new String[] { "jid" },
                     new String[] { jid.toString() }
             ));
         }
-        return xml;
     }
 
     @Override
@@ -0,0 +1,125 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Flush policy for client state indication queues.
+ * A queue is flushed when the total weight of its stanzas or their size
+ * reaches a limit, or when its oldest stanza has been held for too long.
+ * @author Daniele Ricci
+ */
+public class ClientStateFlushPolicy {
+
+    private static final int DEF_MAX_WEIGHT = 50;
+    private static final int DEF_MAX_BYTES = 0;
+    private static final int DEF_MAX_HOLD_TIME_SECONDS = 300;
+    private static final int DEF_PRESENCE_WEIGHT = 1;
+    private static final int DEF_RECEIPT_WEIGHT = 1;
+
+    private static final String[] KEYS = {
+            "max-weight", "max-bytes", "max-hold-time", "presence-weight", "receipt-weight"
+    };
+
+    /** Maximum total weight of queued stanzas. */
+    final int maxWeight;
+    /** Maximum total size of queued stanzas in characters (0 to disable). */
+    final int maxBytes;
+    /** Maximum time a stanza can be held, in milliseconds (0 to disable). */
+    final long maxHoldTime;
+    final int presenceWeight;
+    final int receiptWeight;
+
+    ClientStateFlushPolicy(int maxWeight, int maxBytes, long maxHoldTime, int presenceWeight, int receiptWeight) {
+        this.maxWeight = maxWeight;
+        this.maxBytes = maxBytes;
+        this.maxHoldTime = maxHoldTime;
+        this.presenceWeight = presenceWeight;
+        this.receiptWeight = receiptWeight;
+    }
+
+    /** Returns true if a queue with the given weight and size must be flushed. */
+    boolean isFull(int weight, int bytes) {
+        return weight >= maxWeight || (maxBytes > 0 && bytes >= maxBytes);
+    }
+
+    /**
+     * Parses flush policies from plugin settings.
+     * Settings for a specific domain are in the form key@domain, e.g.
+     * max-hold-time@example.com; the policy for all other domains is stored
+     * with a null key.
+     */
+    static Map<String, ClientStateFlushPolicy> fromSettings(Map<String, Object> settings) {
+        Map<String, ClientStateFlushPolicy> policies = new HashMap<>();
+        ClientStateFlushPolicy defaults = parse(settings, "", null);
+        policies.put(null, defaults);
+
+        if (settings != null) {
+            for (String key : settings.keySet()) {
+                int sep = key.indexOf('@');
+                if (sep > 0) {
+                    String domain = key.substring(sep + 1);
+                    if (!policies.containsKey(domain))
+                        policies.put(domain, parse(settings, "@" + domain, defaults));
+                }
+            }
+        }
+        return policies;
+    }
+
+    private static ClientStateFlushPolicy parse(Map<String, Object> settings, String suffix, ClientStateFlushPolicy defaults) {
+        int[] values = defaults != null ? new int[] {
+                defaults.maxWeight,
+                defaults.maxBytes,
+                (int) TimeUnit.MILLISECONDS.toSeconds(defaults.maxHoldTime),
+                defaults.presenceWeight,
+                defaults.receiptWeight,
+        } : new int[] {
+                DEF_MAX_WEIGHT,
+                DEF_MAX_BYTES,
+                DEF_MAX_HOLD_TIME_SECONDS,
+                DEF_PRESENCE_WEIGHT,
+                DEF_RECEIPT_WEIGHT,
+        };
+
+        if (settings != null) {
+            for (int i = 0; i < KEYS.length; i++) {
+                Object value = settings.get(KEYS[i] + suffix);
+                if (value instanceof Number) {
+                    values[i] = ((Number) value).intValue();
+                }
+                else if (value != null) {
+                    try {
+                        values[i] = Integer.parseInt(value.toString());
+                    }
+                    catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+
+        return new ClientStateFlushPolicy(values[0], values[1],
+                TimeUnit.SECONDS.toMillis(values[2]), values[3], values[4]);
+    }
+
+}
@@ -18,17 +18,27 @@
 
 package org.kontalk.xmppserver;
 
+import org.kontalk.xmppserver.util.StanzaClassifier;
+import org.kontalk.xmppserver.util.TimerWheel;
 import tigase.db.NonAuthUserRepository;
-import tigase.server.Iq;
+import tigase.db.TigaseDBException;
 import tigase.server.Message;
 import tigase.server.Packet;
 import tigase.server.Presence;
+import tigase.server.XMPPServer;
+import tigase.server.xmppsession.SessionManager;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
 import tigase.xmpp.*;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,10 +53,6 @@ public class ClientStateIndication extends XMPPProcessorAbstract implements XMPP
     static final String XMLNS = "urn:xmpp:csi:0";
     public static final String ID = "kontalk:" + XMLNS;
 
-    /** Max size of the packet queue. After reaching this point, data will be sent out to the client. */
-    // TODO make this a parameter
-    private static final int MAX_QUEUE_SIZE = 50;
-
     private static final String[] XMLNSS = {XMLNS, XMLNS};
 
     static final String ELEM_ACTIVE = "active";
@@ -59,10 +65,23 @@ public class ClientStateIndication extends XMPPProcessorAbstract implements XMPP
 
     private static final Element[] FEATURES = { new Element("csi", new String[] { "xmlns" }, new String[] { XMLNS }) };
 
-    private static final String CHATSTATE_XMLNS = "http://jabber.org/protocol/chatstates";
-
     static final String SESSION_QUEUE = ID + ":queue";
 
+    /** Flush policies by domain. */
+    private Map<String, ClientStateFlushPolicy> policies = ClientStateFlushPolicy.fromSettings(null);
+
+    private final AtomicLong statsFlushes = new AtomicLong();
+    private final AtomicLong statsFlushedStanzas = new AtomicLong();
+    private final AtomicLong statsHoldTime = new AtomicLong();
+    private final AtomicLong statsLimitFlushes = new AtomicLong();
+    private final AtomicLong statsTimedFlushes = new AtomicLong();
+
+    @Override
+    public void init(Map<String, Object> settings) throws TigaseDBException {
+        super.init(settings);
+        policies = ClientStateFlushPolicy.fromSettings(settings);
+    }
+
     @Override
     public void processFromUserToServerPacket(JID connectionId, Packet packet, XMPPResourceConnection session, NonAuthUserRepository repo, Queue<Packet> results, Map<String, Object> settings) throws PacketErrorTypeException {
         if (packet.getElemName() == ELEM_ACTIVE) {
@@ -101,7 +120,17 @@ public class ClientStateIndication extends XMPPProcessorAbstract implements XMPP
         // check if there is already a queue
         final InternalQueue queue = (InternalQueue) session.getSessionData(SESSION_QUEUE);
         if (queue == null)
-            session.putSessionData(SESSION_QUEUE, new InternalQueue(MAX_QUEUE_SIZE));
+            session.putSessionData(SESSION_QUEUE, new InternalQueue(getPolicy(session), () -> holdTimeExpired(session)));
+    }
+
+    private ClientStateFlushPolicy getPolicy(XMPPResourceConnection session) {
+        ClientStateFlushPolicy policy = null;
+        try {
+            policy = policies.get(session.getBareJID().getDomain());
+        }
+        catch (NotAuthorizedException ignored) {
+        }
+        return policy != null ? policy : policies.get(null);
     }
 
     /** Deactivates client state indication (that is, client going to active state). */
@@ -109,61 +138,103 @@ public class ClientStateIndication extends XMPPProcessorAbstract implements XMPP
         flush(session, results, true, false, true);
     }
 
-    private void flush(XMPPResourceConnection session, Queue<Packet> results, boolean flushPresence, boolean stopped, boolean remove) {
+    /** Flushes the queue when its oldest stanza has been held for too long. */
+    private void holdTimeExpired(XMPPResourceConnection session) {
+        if (!session.isAuthorized())
+            return;
+
+        Queue<Packet> results = new ArrayDeque<>();
+        if (flush(session, results, true, false, false) > 0) {
+            statsTimedFlushes.incrementAndGet();
+            // we are not in a processing queue so we need direct access to the SessionManager
+            SessionManager sessMan = (SessionManager) XMPPServer.getComponent("sess-man");
+            for (Packet packet : results) {
+                sessMan.addOutPacket(packet);
+            }
+        }
+    }
+
+    /**
+     * Flushes the session queue.
+     * @return the number of flushed stanzas
+     */
+    private int flush(XMPPResourceConnection session, Queue<Packet> results, boolean flushPresence, boolean stopped, boolean remove) {
         final InternalQueue queue = (InternalQueue) session.getSessionData(SESSION_QUEUE);
         if (queue == null)
-            return;
+            return 0;
+
+        queue.acquire();
+        try {
+            if (queue.isClosed())
+                return 0;
+
+            if (remove) {
+                // any later stanza will go through; closing before collecting the
+                // inbox guarantees that a stanza is either collected here or sent by its holder
+                queue.close();
+            }
+            // collect stanzas held while the queue was busy
+            queue.drainInbox();
+
+            int count = queue.pendingCount();
+            if (count > 0) {
+                statsFlushes.incrementAndGet();
+                statsFlushedStanzas.addAndGet(count);
+                statsHoldTime.addAndGet(System.currentTimeMillis() - queue.firstQueued);
+            }
 
-        synchronized (queue) {
-            if (flushPresence && queue.size() > 0) {
+            if (flushPresence && queue.presenceCount() > 0) {
                 // send all pending presence data
                 try {
                     JID connId = session.getConnectionId();
-                    Collection<Presence> values = queue.values();
-                    for (Presence p : values) {
+                    queue.drainPresences(p -> {
                         p.setPacketTo(connId);
                         results.offer(p);
-                    }
+                    });
                 }
                 catch (NoConnectionIdException e) {
                     log.log(Level.SEVERE, "this should not happen", e);
                 }
             }
             // send all pending messages
-            List<Message> msgs = queue.getMessages();
-            if (msgs != null && msgs.size() > 0) {
-                if (stopped) {
-                    // we are stopping, redeliver all stanzas
-                    for (Message p : msgs) {
-                        // we are redelivering, no connection id
-                        p.setPacketTo(null);
-                        results.offer(p);
-                    }
-                }
-                else {
+            if (queue.messageCount() > 0) {
+                JID connId = null;
+                if (!stopped) {
                     try {
-                        JID connId = session.getConnectionId();
-                        for (Message p : msgs) {
-                            // create a copy so we don't alter the original stanza
-                            Packet p2 = p.copyElementOnly();
-                            p2.setPacketFrom(p.getPacketFrom());
-                            p2.setPacketTo(connId);
-                            results.offer(p2);
-                        }
+                        connId = session.getConnectionId();
                     }
                     catch (NoConnectionIdException e) {
                         log.log(Level.WARNING, "connection has vanished, sending messages to JID", e);
-                        for (Message p : msgs) {
-                            p.setPacketTo(null);
-                            results.offer(p);
-                        }
                     }
                 }
+
+                if (connId != null) {
+                    final JID to = connId;
+                    queue.drainMessages(p -> {
+                        // create a copy so we don't alter the original stanza
+                        Packet p2 = p.copyElementOnly();
+                        p2.setPacketFrom(p.getPacketFrom());
+                        p2.setPacketTo(to);
+                        results.offer(p2);
+                    });
+                }
+                else {
+                    // we are stopping (or the connection vanished), redeliver all stanzas
+                    queue.drainMessages(p -> {
+                        // we are redelivering, no connection id
+                        p.setPacketTo(null);
+                        results.offer(p);
+                    });
+                }
             }
             // destroy and remove stanza store
             queue.clear();
             if (remove)
                 session.removeSessionData(SESSION_QUEUE);
+            return count;
+        }
+        finally {
+            queue.release();
         }
     }
 
@@ -178,98 +249,83 @@ public class ClientStateIndication extends XMPPProcessorAbstract implements XMPP
             return;
         }
 
+        final JID connId;
+        try {
+            connId = session.getConnectionId();
+        }
+        catch (NoConnectionIdException e) {
+            return;
+        }
+
         // it will be true if at least a packet is going through
         boolean needsFlush = false;
+        boolean full = false;
+        long now = System.currentTimeMillis();
 
         for (Iterator<Packet> it = results.iterator(); it.hasNext(); ) {
             Packet res = it.next();
-            try {
-                if (res.getPacketTo() != null && res.getPacketTo().equals(session.getConnectionId())) {
-                    synchronized (queue) {
-                        if (log.isLoggable(Level.FINEST)) {
-                            log.log(Level.FINEST, "Checking packet {0} for session {1}",
-                                    new Object[]{packet, session});
-                        }
-                        if (filterPacket(res, queue)) {
-                            it.remove();
-                            // queue is getting big, flush them all!
-                            if (queue.needsFlush()) {
-                                needsFlush = true;
-                                // since we are going to flush anyway, no need to continue
-                                // (fix for ConcurrentModificationException)
-                                break;
-                            }
-                        }
-                        else if (!isSilent(res)) {
-                            // this packet will go through
-                            // do a flush later since we are transmitting
-                            needsFlush = true;
-                        }
+            if (!connId.equals(res.getPacketTo()))
+                continue;
+
+            if (log.isLoggable(Level.FINEST)) {
+                log.log(Level.FINEST, "Checking packet {0} for session {1}",
+                        new Object[]{packet, session});
+            }
+            if (isPresence(res) || isDeliveryReceipt(res)) {
+                if (log.isLoggable(Level.FINEST)) {
+                    log.log(Level.FINEST, "Delaying packet {0}", res);
+                }
+                // a closed queue means the client has just become active
+                if (queue.hold(res, now)) {
+                    it.remove();
+                    // queue is getting big, flush them all!
+                    if (!full && queue.needsFlush()) {
+                        full = needsFlush = true;
                     }
                 }
             }
-            catch (NoConnectionIdException e) {
-                // ignore
+            else if (isChatState(res)) {
+                if (log.isLoggable(Level.FINEST)) {
+                    log.log(Level.FINEST, "Filtering packet {0}", res);
+                }
+                it.remove();
+            }
+            else if (!isSilent(res)) {
+                // this packet will go through
+                // do a flush later since we are transmitting
+                needsFlush = true;
             }
         }
 
         if (needsFlush) {
+            if (full)
+                statsLimitFlushes.incrementAndGet();
             flush(session, results, true, false, false);
         }
     }
 
-    private boolean filterPacket(Packet packet, InternalQueue queue) {
-        if (isPresence(packet)) {
-            if (log.isLoggable(Level.FINEST)) {
-                log.log(Level.FINEST, "Delaying presence {0}", packet);
-            }
-            queue.put(packet.getStanzaFrom(), (Presence) packet);
-            return true;
-        }
-
-        if (isDeliveryReceipt(packet)) {
-            if (log.isLoggable(Level.FINEST)) {
-                log.log(Level.FINEST, "Delaying delivery receipt {0}", packet);
-            }
-            queue.putMessage((Message) packet);
-            return true;
-        }
-
-        if (isChatState(packet)) {
-            if (log.isLoggable(Level.FINEST)) {
-                log.log(Level.FINEST, "Filtering packet {0}", packet);
-            }
-            return true;
-        }
-
-        return false;
-    }
-
     /** Returns true if the given packet is silent (e.g. ping). */
     private boolean isSilent(Packet packet) {
-        return packet.getElemName() == Iq.ELEM_NAME &&
-                packet.getElement().getChild("ping", "urn:xmpp:ping") != null;
+        return StanzaClassifier.is(packet, StanzaClassifier.PING);
     }
 
     private boolean isPresence(Packet packet) {
         return packet.getElemName() == Presence.ELEM_NAME &&
+                packet.getStanzaFrom() != null &&
                 (packet.getType() == null ||
                 packet.getType() == StanzaType.available ||
                 packet.getType() == StanzaType.unavailable);
     }
 
     private boolean isDeliveryReceipt(Packet packet) {
-        return packet.getElemName() == Message.ELEM_NAME &&
-                packet.getElement().getChild("received", "urn:xmpp:receipts") != null;
+        return StanzaClassifier.is(packet, StanzaClassifier.MESSAGE | StanzaClassifier.RECEIPT_RECEIVED);
     }
 
     private boolean isChatState(Packet packet) {
-        return packet.getElemName() == Message.ELEM_NAME &&
-                packet.getElement().getChild("body") == null &&
-                (packet.getElement().getChild("inactive", CHATSTATE_XMLNS) != null ||
-                packet.getElement().getChild("gone", CHATSTATE_XMLNS) != null ||
-                packet.getElement().getChild("composing", CHATSTATE_XMLNS) != null ||
-                packet.getElement().getChild("paused", CHATSTATE_XMLNS) != null);
+        int flags = StanzaClassifier.classify(packet);
+        return (flags & StanzaClassifier.MESSAGE) != 0 &&
+                (flags & StanzaClassifier.BODY) == 0 &&
+                (flags & StanzaClassifier.CHAT_STATE_NOTIFY) != 0;
     }
 
     @Override
@@ -277,6 +333,18 @@ public class ClientStateIndication extends XMPPProcessorAbstract implements XMPP
         // not used.
     }
 
+    @Override
+    public void getStatistics(StatisticsList list) {
+        super.getStatistics(list);
+        String name = getComponentInfo().getName();
+        long flushes = statsFlushes.get();
+        list.add(name, "CSI flushes", flushes, Level.FINE);
+        list.add(name, "CSI flushes by size", statsLimitFlushes.get(), Level.FINE);
+        list.add(name, "CSI flushes by hold time", statsTimedFlushes.get(), Level.FINE);
+        list.add(name, "CSI average batch size", flushes > 0 ? (float) statsFlushedStanzas.get() / flushes : 0f, Level.FINE);
+        list.add(name, "CSI average hold time [ms]", flushes > 0 ? statsHoldTime.get() / flushes : 0, Level.FINE);
+    }
+
     @Override
     public String id() {
         return ID;
@@ -301,67 +369,326 @@ public class ClientStateIndication extends XMPPProcessorAbstract implements XMPP
         return packet.getElemName() == ELEM_ACTIVE || packet.getElemName() == ELEM_INACTIVE;
     }
 
-    /** A typedef for the internal stanza queue for CSI. */
-    static final class InternalQueue extends LinkedHashMap<JID, Presence> {
-        private static final DateFormat formatter;
-        static {
-            formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-            formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+    /**
+     * The internal stanza queue for CSI: latest presence by sender and
+     * delivery receipts in arrival order. Arrival times are kept aside and
+     * the delay element is added only when stanzas are flushed.
+     * The queue is owned by one thread at a time without blocking: stanzas
+     * held while another thread owns the queue go through a lock-free inbox
+     * and are moved to the queue by whoever owns it next. Only flushes wait
+     * for ownership.
+     */
+    static final class InternalQueue {
+        private static final DateTimeFormatter formatter = DateTimeFormatter
+                .ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'")
+                .withZone(ZoneOffset.UTC);
+
+        private static final int INITIAL_CAPACITY = 16;
+        /** Approximate size of the delay element. */
+        private static final int DELAY_SIZE = 80;
+
+        /** A stanza waiting in the inbox. */
+        private static final class Held {
+            final Packet packet;
+            final long timestamp;
+
+            Held(Packet packet, long timestamp) {
+                this.packet = packet;
+                this.timestamp = timestamp;
+            }
+        }
+
+        final ClientStateFlushPolicy policy;
+        private final Runnable holdTask;
+
+        private final AtomicBoolean owner = new AtomicBoolean();
+        private final Queue<Held> inbox = new ConcurrentLinkedQueue<>();
+        private volatile boolean closed;
+
+        // latest presence by sender (open addressing, linear probing)
+        private JID[] presenceKeys;
+        private Presence[] presences;
+        private long[] presenceTimes;
+        /** Used slots in insertion order. */
+        private int[] presenceOrder;
+        private int presenceCount;
+
+        // delivery receipts ring buffer
+        private Message[] messages;
+        private long[] messageTimes;
+        private int messageHead;
+        private int messageCount;
+
+        /** Total weight of queued stanzas (written by the owner only). */
+        private volatile int weight;
+        /** Total size of queued stanzas (only computed if there is a size limit). */
+        private int bytes;
+        /** Time the oldest stanza was queued at. */
+        long firstQueued;
+        /** Hold time timer, started when the first stanza is queued. */
+        TimerWheel.Timeout holdTimer;
+
+        public InternalQueue(ClientStateFlushPolicy policy, Runnable holdTask) {
+            this.policy = policy;
+            this.holdTask = holdTask;
+        }
+
+        /**
+         * Holds a presence or delivery receipt until the next flush.
+         * @return false if the queue has been closed and the packet must go through
+         */
+        public boolean hold(Packet packet, long timestamp) {
+            if (closed)
+                return false;
+
+            if (owner.compareAndSet(false, true)) {
+                try {
+                    if (closed)
+                        return false;
+                    // keep stanzas in order
+                    drainInbox();
+                    put(packet, timestamp);
+                    return true;
+                }
+                finally {
+                    release();
+                }
+            }
+
+            Held held = new Held(packet, timestamp);
+            inbox.offer(held);
+            if (closed && inbox.remove(held)) {
+                // closed before the stanza could be collected
+                return false;
+            }
+            // owner might have released the queue in the meantime
+            collect();
+            return true;
+        }
+
+        /** Waits for ownership of the queue. Flushes are rare, so we just spin. */
+        public void acquire() {
+            while (!owner.compareAndSet(false, true))
+                Thread.yield();
+        }
+
+        /** Releases ownership, collecting any stanza left in the inbox. */
+        public void release() {
+            owner.set(false);
+            collect();
+        }
+
+        /** Moves stanzas left in the inbox to the queue, unless someone else owns it. */
+        private void collect() {
+            while (!closed && !inbox.isEmpty() && owner.compareAndSet(false, true)) {
+                try {
+                    if (!closed)
+                        drainInbox();
+                }
+                finally {
+                    owner.set(false);
+                }
+            }
+        }
+
+        /** Closes the queue: no more stanzas will be held. Must be called by the owner. */
+        public void close() {
+            closed = true;
+        }
+
+        public boolean isClosed() {
+            return closed;
         }
 
-        private List<Message> messages;
-        private int maxSize;
+        /** Moves stanzas from the inbox to the queue. Must be called by the owner. */
+        public void drainInbox() {
+            Held held;
+            while ((held = inbox.poll()) != null)
+                put(held.packet, held.timestamp);
+        }
 
-        public InternalQueue(int max) {
-            super();
-            maxSize = max;
+        private void put(Packet packet, long timestamp) {
+            if (packet instanceof Presence)
+                putPresence(packet.getStanzaFrom(), (Presence) packet, timestamp);
+            else
+                putMessage((Message) packet, timestamp);
         }
 
-        @Override
-        public Presence put(JID key, Presence value) {
-            return super.put(key, addDelay(value));
+        public void putPresence(JID from, Presence packet, long timestamp) {
+            if (presenceKeys == null)
+                allocPresences(INITIAL_CAPACITY);
+            else if ((presenceCount + 1) * 2 > presenceKeys.length)
+                resizePresences(presenceKeys.length * 2);
+
+            queued(timestamp);
+            int slot = findSlot(presenceKeys, from);
+            if (presenceKeys[slot] == null) {
+                presenceKeys[slot] = from;
+                presenceOrder[presenceCount++] = slot;
+                weight += policy.presenceWeight;
+            }
+            else {
+                // replaced presence is not going to be sent
+                bytes -= sizeOf(presences[slot]);
+            }
+            presences[slot] = packet;
+            presenceTimes[slot] = timestamp;
+            bytes += sizeOf(packet);
         }
 
-        public void putMessage(Message packet) {
+        public void putMessage(Message packet, long timestamp) {
             if (messages == null) {
-                messages = new LinkedList<>();
+                messages = new Message[INITIAL_CAPACITY];
+                messageTimes = new long[INITIAL_CAPACITY];
             }
-            messages.add(addDelay(packet));
+            else if (messageCount == messages.length) {
+                growMessages();
+            }
+
+            queued(timestamp);
+            int tail = (messageHead + messageCount) & (messages.length - 1);
+            messages[tail] = packet;
+            messageTimes[tail] = timestamp;
+            messageCount++;
+            weight += policy.receiptWeight;
+            bytes += sizeOf(packet);
+        }
+
+        private void queued(long timestamp) {
+            if (pendingCount() == 0) {
+                firstQueued = timestamp;
+                if (holdTimer == null && holdTask != null && policy.maxHoldTime > 0)
+                    holdTimer = TimerWheel.getInstance().schedule(holdTask, policy.maxHoldTime);
+            }
+        }
+
+        private int sizeOf(Packet packet) {
+            return policy.maxBytes > 0 ? packet.getElement().toString().length() + DELAY_SIZE : 0;
+        }
+
+        private static int findSlot(JID[] keys, JID key) {
+            int mask = keys.length - 1;
+            int h = key.hashCode();
+            int i = (h ^ (h >>> 16)) & mask;
+            while (keys[i] != null && !keys[i].equals(key))
+                i = (i + 1) & mask;
+            return i;
+        }
+
+        private void allocPresences(int capacity) {
+            presenceKeys = new JID[capacity];
+            presences = new Presence[capacity];
+            presenceTimes = new long[capacity];
+            presenceOrder = new int[capacity / 2];
+        }
+
+        private void resizePresences(int capacity) {
+            JID[] oldKeys = presenceKeys;
+            Presence[] oldPresences = presences;
+            long[] oldTimes = presenceTimes;
+            int[] oldOrder = presenceOrder;
+
+            allocPresences(capacity);
+            for (int i = 0; i < presenceCount; i++) {
+                int oldSlot = oldOrder[i];
+                int slot = findSlot(presenceKeys, oldKeys[oldSlot]);
+                presenceKeys[slot] = oldKeys[oldSlot];
+                presences[slot] = oldPresences[oldSlot];
+                presenceTimes[slot] = oldTimes[oldSlot];
+                presenceOrder[i] = slot;
+            }
+        }
+
+        private void growMessages() {
+            int capacity = messages.length * 2;
+            Message[] newMessages = new Message[capacity];
+            long[] newTimes = new long[capacity];
+            for (int i = 0; i < messageCount; i++) {
+                int index = (messageHead + i) & (messages.length - 1);
+                newMessages[i] = messages[index];
+                newTimes[i] = messageTimes[index];
+            }
+            messages = newMessages;
+            messageTimes = newTimes;
+            messageHead = 0;
+        }
+
+        /** Number of queued presence stanzas. */
+        public int presenceCount() {
+            return presenceCount;
+        }
+
+        /** Number of queued messages. */
+        public int messageCount() {
+            return messageCount;
+        }
+
+        /** Number of queued stanzas. */
+        public int pendingCount() {
+            return presenceCount + messageCount;
+        }
+
+        /** Adds delay to queued presence stanzas and removes them from the queue in insertion order. */
+        public void drainPresences(Consumer<Presence> consumer) {
+            for (int i = 0; i < presenceCount; i++) {
+                int slot = presenceOrder[i];
+                Presence packet = presences[slot];
+                presenceKeys[slot] = null;
+                presences[slot] = null;
+                consumer.accept(addDelay(packet, presenceTimes[slot]));
+            }
+            presenceCount = 0;
         }
 
-        public List<Message> getMessages() {
-            return messages;
+        /** Adds delay to queued messages and removes them from the queue in arrival order. */
+        public void drainMessages(Consumer<Message> consumer) {
+            for (int i = 0; i < messageCount; i++) {
+                int index = (messageHead + i) & (messages.length - 1);
+                Message packet = messages[index];
+                messages[index] = null;
+                consumer.accept(addDelay(packet, messageTimes[index]));
+            }
+            messageHead = 0;
+            messageCount = 0;
         }
 
-        private <T extends Packet> T addDelay(T packet) {
+        private static <T extends Packet> T addDelay(T packet, long timestamp) {
             Element elem = packet.getElement();
             // do not overwrite old delay element
             if (elem.getChild("delay", "urn:xmpp:delay") == null) {
-                String stamp;
-
-                synchronized (formatter) {
-                    stamp = formatter.format(new Date());
-                }
-
                 Element x = new Element("delay", (String) null,
                         new String[] { "stamp", "xmlns" },
-                        new String[] {  stamp, "urn:xmpp:delay" }
+                        new String[] { formatter.format(Instant.ofEpochMilli(timestamp)), "urn:xmpp:delay" }
                 );
                 elem.addChild(x);
             }
             return packet;
         }
 
-        @Override
+        /** Discards all queued stanzas. */
         public void clear() {
-            super.clear();
-            if (messages != null) {
-                messages.clear();
+            for (int i = 0; i < presenceCount; i++) {
+                int slot = presenceOrder[i];
+                presenceKeys[slot] = null;
+                presences[slot] = null;
+            }
+            presenceCount = 0;
+            for (int i = 0; i < messageCount; i++) {
+                messages[(messageHead + i) & (messages.length - 1)] = null;
+            }
+            messageHead = 0;
+            messageCount = 0;
+
+            weight = 0;
+            bytes = 0;
+            if (holdTimer != null) {
+                holdTimer.cancel();
+                holdTimer = null;
             }
         }
 
         public boolean needsFlush() {
-            return ((messages != null ? messages.size() : 0) + size()) >= maxSize;
+            return policy.isFull(weight, bytes);
         }
     }
 
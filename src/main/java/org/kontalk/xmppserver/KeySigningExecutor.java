@@ -0,0 +1,151 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Bounded executor for public key signing.
+ * Signing is slow, so it's done outside the session manager processing
+ * threads; requests exceeding the queue capacity are rejected right away
+ * so the client can try again later.
+ * @author Daniele Ricci
+ */
+public class KeySigningExecutor {
+
+    private static final Logger log = Logger.getLogger(KeySigningExecutor.class.getName());
+
+    /** Receives the result of a signing request, in a signing thread. */
+    public interface Callback {
+        /**
+         * @param signedKey the signed key, null on error
+         * @param error the signing error, null on success
+         */
+        void signed(byte[] signedKey, Exception error);
+    }
+
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong statsCompleted = new AtomicLong();
+    private final AtomicLong statsFailed = new AtomicLong();
+    private final AtomicLong statsRejected = new AtomicLong();
+    private final AtomicLong statsQueueTime = new AtomicLong();
+    private final AtomicLong statsSigningTime = new AtomicLong();
+    private final AtomicLong statsMaxLatency = new AtomicLong();
+
+    /**
+     * @param threads number of signing threads
+     * @param queueSize maximum number of requests waiting for a signing thread
+     */
+    public KeySigningExecutor(int threads, int queueSize) {
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), r -> {
+            Thread t = new Thread(r, "key-signing-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Queues a signing request.
+     * @return false if the queue is full and the request was rejected
+     */
+    public boolean submit(KontalkKeyring keyring, byte[] keyData, Callback callback) {
+        long queuedAt = System.nanoTime();
+        try {
+            executor.execute(() -> sign(keyring, keyData, callback, queuedAt));
+            return true;
+        }
+        catch (RejectedExecutionException e) {
+            statsRejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    private void sign(KontalkKeyring keyring, byte[] keyData, Callback callback, long queuedAt) {
+        long start = System.nanoTime();
+        byte[] signedKey = null;
+        Exception error = null;
+        try {
+            signedKey = keyring.signKey(keyData);
+            statsCompleted.incrementAndGet();
+        }
+        catch (Exception e) {
+            error = e;
+            statsFailed.incrementAndGet();
+        }
+
+        long end = System.nanoTime();
+        statsQueueTime.addAndGet(start - queuedAt);
+        statsSigningTime.addAndGet(end - start);
+        statsMaxLatency.accumulateAndGet(end - queuedAt, Math::max);
+
+        try {
+            callback.signed(signedKey, error);
+        }
+        catch (Exception e) {
+            log.log(Level.WARNING, "error delivering signing result", e);
+        }
+    }
+
+    /** Number of requests waiting for a signing thread. */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public long getCompletedCount() {
+        return statsCompleted.get();
+    }
+
+    public long getFailedCount() {
+        return statsFailed.get();
+    }
+
+    /** Number of requests rejected because the queue was full. */
+    public long getRejectedCount() {
+        return statsRejected.get();
+    }
+
+    /** Average time spent waiting in queue, in milliseconds. */
+    public long getAverageQueueTime() {
+        long count = statsCompleted.get() + statsFailed.get();
+        return count > 0 ? TimeUnit.NANOSECONDS.toMillis(statsQueueTime.get() / count) : 0;
+    }
+
+    /** Average signing time, in milliseconds. */
+    public long getAverageSigningTime() {
+        long count = statsCompleted.get() + statsFailed.get();
+        return count > 0 ? TimeUnit.NANOSECONDS.toMillis(statsSigningTime.get() / count) : 0;
+    }
+
+    /** Maximum time from submission to completion, in milliseconds. */
+    public long getMaxLatency() {
+        return TimeUnit.NANOSECONDS.toMillis(statsMaxLatency.get());
+    }
+
+}
@@ -18,30 +18,91 @@
 
 package org.kontalk.xmppserver;
 
-import tigase.server.Message;
+import org.kontalk.xmppserver.messages.OfflineDeliveryTracker;
+import org.kontalk.xmppserver.util.StanzaClassifier;
 import tigase.server.Packet;
 import tigase.server.xmppclient.StreamManagementIOProcessor;
-import tigase.xml.Element;
+import tigase.stats.StatisticsList;
 import tigase.xmpp.XMPPIOService;
 
 import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
 /**
  * Custom IO processor for Kontalk.
+ * Acknowledgement requests are paced: after an {@code <r/>} is sent, the
+ * next one is sent only when its answer arrives or when enough messages,
+ * bytes or time have accumulated since.
  * @author Daniele Ricci
  */
 public class KontalkIOProcessor extends StreamManagementIOProcessor {
 
     private static final Logger log = Logger.getLogger(KontalkIOProcessor.class.getCanonicalName());
 
+    private static final int DEF_PACING_COUNT = 10;
+    private static final int DEF_PACING_BYTES = 0;
+    private static final long DEF_PACING_INTERVAL = 5000;
+
+    /** Messages sent since the last unanswered request before requesting again. */
+    private int pacingCount = DEF_PACING_COUNT;
+    /** Bytes sent since the last unanswered request before requesting again (0 to disable). */
+    private int pacingBytes = DEF_PACING_BYTES;
+    /** Time (in milliseconds) since the last unanswered request before requesting again. */
+    private long pacingInterval = DEF_PACING_INTERVAL;
+
+    private final LongAdder statsRequests = new LongAdder();
+    private final LongAdder statsMessages = new LongAdder();
+    private final AtomicInteger statsMaxQueueDepth = new AtomicInteger();
+
+    @Override
+    public void setProperties(Map<String, Object> props) {
+        super.setProperties(props);
+        pacingCount = getIntProperty(props, "ack-pacing-count", pacingCount);
+        pacingBytes = getIntProperty(props, "ack-pacing-bytes", pacingBytes);
+        pacingInterval = getIntProperty(props, "ack-pacing-interval", (int) pacingInterval);
+    }
+
+    private static int getIntProperty(Map<String, Object> props, String key, int defaultValue) {
+        Object value = props.get(key);
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        else if (value != null) {
+            try {
+                return Integer.parseInt(value.toString());
+            }
+            catch (NumberFormatException ignored) {
+            }
+        }
+        return defaultValue;
+    }
+
     @Override
     protected boolean shouldRequestAck(XMPPIOService service, OutQueue outQueue) {
-        return super.shouldRequestAck(service, outQueue) ||
-                (outQueue instanceof MyOutQueue &&
-                        ((MyOutQueue) outQueue).messagesWaitingForAck() > 0);
+        if (outQueue instanceof MyOutQueue) {
+            MyOutQueue queue = (MyOutQueue) outQueue;
+            if (queue.shouldRequestAck())
+                return true;
+            if (super.shouldRequestAck(service, outQueue)) {
+                queue.requested(System.currentTimeMillis());
+                return true;
+            }
+            return false;
+        }
+        return super.shouldRequestAck(service, outQueue);
+    }
+
+    @Override
+    public boolean processOutgoing(XMPPIOService service, Packet packet) {
+        boolean stop = super.processOutgoing(service, packet);
+        // the out queue has taken the offline storage id already, if any
+        OfflineDeliveryTracker.unmark(packet.getElement());
+        return stop;
     }
 
     @Override
@@ -54,16 +115,59 @@ public class KontalkIOProcessor extends StreamManagementIOProcessor {
         return new MyOutQueue();
     }
 
-    private static class MyOutQueue extends OutQueue {
+    /**
+     * Adds ack pacing statistics. Figures are totals for all the connections
+     * handled by this node, not per-connection values; per-connection state
+     * is only logged at FINEST level.
+     */
+    @Override
+    public void getStatistics(StatisticsList list) {
+        super.getStatistics(list);
+        long messages = statsMessages.sum();
+        long requests = statsRequests.sum();
+        list.add("c2s", "SM ack requests", requests, Level.FINE);
+        list.add("c2s", "SM ack requests per 100 messages", messages > 0 ? (float) requests * 100 / messages : 0f, Level.FINE);
+        // maximum since the last report
+        list.add("c2s", "SM max resend queue depth", statsMaxQueueDepth.getAndSet(0), Level.FINE);
+    }
+
+    private class MyOutQueue extends OutQueue {
         private int messagesWaiting;
+        private long bytesWaiting;
+
+        /**
+         * Weight of queued entries, in queue order: 0 for packets not needing
+         * an ack, their size (or 1 if not measured) otherwise.
+         */
+        private int[] weights = new int[16];
+        /** Offline storage id of queued entries, in queue order (0 for live packets). */
+        private long[] rowIds = new long[16];
+        private int weightsHead;
+        private int weightsCount;
+
+        private boolean requestPending;
+        private long lastRequest;
+        private int messagesAtRequest;
+        private long bytesAtRequest;
+
+        private int requests;
 
         @Override
         public void append(Packet packet) {
             if (!packet.wasProcessedBy(XMLNS)) {
+                int weight = 0;
                 if (shouldRequestAck(packet)) {
+                    weight = pacingBytes > 0 ? Math.max(1, packet.getElement().toString().length()) : 1;
                     messagesWaiting++;
+                    bytesWaiting += weight;
+                    statsMessages.increment();
                 }
+                pushWeight(weight, OfflineDeliveryTracker.unmark(packet.getElement()));
                 super.append(packet);
+
+                int depth = getQueue().size();
+                if (depth > statsMaxQueueDepth.get())
+                    statsMaxQueueDepth.accumulateAndGet(depth, Math::max);
             }
         }
 
@@ -80,28 +184,95 @@ public class KontalkIOProcessor extends StreamManagementIOProcessor {
                 log.log(Level.FINEST, "acking {0} packets", new Object[] { queue.size() - count });
             }
 
+            // entries removed from the queue without being acked
+            while (weightsCount > queue.size())
+                removed(pollWeight());
+
+            OfflineDeliveryTracker tracker = OfflineDeliveryTracker.getInstance();
             while (count < queue.size()) {
                 Entry entry = queue.poll();
-                Packet packet = entry.getPacketWithStamp();
-                if (shouldRequestAck(packet)) {
-                    if (log.isLoggable(Level.FINEST)) {
-                        log.log(Level.FINEST, "acking message: {0}", packet.toString());
-                    }
-                    messagesWaiting--;
-                }
+                long rowId = weightsCount > 0 ? rowIds[weightsHead] : 0;
+                removed(pollWeight());
+
+                // offline message delivered, it can be deleted now
+                if (tracker != null && rowId > 0)
+                    tracker.acked(entry.getPacketWithStamp(), rowId);
+            }
+
+            // our request has been answered
+            requestPending = false;
+        }
+
+        /** Updates counters for an entry leaving the queue. */
+        private void removed(int weight) {
+            if (weight > 0) {
+                messagesWaiting--;
+                bytesWaiting -= weight;
             }
         }
 
-        private boolean shouldRequestAck(Packet packet) {
-            if (packet.getElemName() == Message.ELEM_NAME) {
-                Element element = packet.getElement();
+        /** Decides whether to send an ack request, recording it. */
+        boolean shouldRequestAck() {
+            if (messagesWaiting <= 0)
+                return false;
+
+            long now = System.currentTimeMillis();
+            boolean request = !requestPending ||
+                    messagesWaiting - messagesAtRequest >= pacingCount ||
+                    (pacingBytes > 0 && bytesWaiting - bytesAtRequest >= pacingBytes) ||
+                    now - lastRequest >= pacingInterval;
+            if (request)
+                requested(now);
+            return request;
+        }
 
-                // check for message body or delivery receipt
-                return (element.getChild("body") != null ||
-                        element.getChild("received", "urn:xmpp:receipts") != null);
+        void requested(long now) {
+            requestPending = true;
+            lastRequest = now;
+            messagesAtRequest = messagesWaiting;
+            bytesAtRequest = bytesWaiting;
+            requests++;
+            statsRequests.increment();
+
+            if (log.isLoggable(Level.FINEST)) {
+                log.log(Level.FINEST, "requesting ack (#{0}), {1} messages waiting, {2} packets in queue",
+                        new Object[] { requests, messagesWaiting, getQueue().size() });
             }
+        }
 
-            return false;
+        private void pushWeight(int weight, long rowId) {
+            if (weightsCount == weights.length) {
+                int[] newWeights = new int[weights.length * 2];
+                long[] newRowIds = new long[weights.length * 2];
+                for (int i = 0; i < weightsCount; i++) {
+                    int index = (weightsHead + i) & (weights.length - 1);
+                    newWeights[i] = weights[index];
+                    newRowIds[i] = rowIds[index];
+                }
+                weights = newWeights;
+                rowIds = newRowIds;
+                weightsHead = 0;
+            }
+            int index = (weightsHead + weightsCount) & (weights.length - 1);
+            weights[index] = weight;
+            rowIds[index] = rowId;
+            weightsCount++;
+        }
+
+        private int pollWeight() {
+            if (weightsCount == 0)
+                return 0;
+            int weight = weights[weightsHead];
+            weightsHead = (weightsHead + 1) & (weights.length - 1);
+            weightsCount--;
+            return weight;
+        }
+
+        private boolean shouldRequestAck(Packet packet) {
+            int flags = StanzaClassifier.classify(packet);
+            // check for message body or delivery receipt
+            return (flags & StanzaClassifier.MESSAGE) != 0 &&
+                    (flags & (StanzaClassifier.BODY | StanzaClassifier.RECEIPT_RECEIVED)) != 0;
         }
 
         public int messagesWaitingForAck() {
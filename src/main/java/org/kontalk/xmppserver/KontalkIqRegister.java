@@ -25,6 +25,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPPublicKey;
 import org.bouncycastle.util.encoders.Hex;
+import org.kontalk.xmppserver.auth.CertificateAuthCache;
 import org.kontalk.xmppserver.auth.KontalkAuth;
 import org.kontalk.xmppserver.pgp.PGPUserID;
 import org.kontalk.xmppserver.pgp.PGPUtils;
@@ -35,6 +36,7 @@ import org.kontalk.xmppserver.probe.ProbeManager;
 import org.kontalk.xmppserver.registration.PhoneNumberVerificationProvider;
 import org.kontalk.xmppserver.registration.RegistrationRequest;
 import org.kontalk.xmppserver.registration.VerificationRepository;
+import org.kontalk.xmppserver.util.UserUidCache;
 import org.kontalk.xmppserver.util.Utils;
 import org.kontalk.xmppserver.x509.X509Utils;
 import tigase.annotations.TODO;
@@ -65,7 +67,9 @@ import java.io.IOException;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -127,6 +131,14 @@ public class KontalkIqRegister extends XMPPProcessor implements XMPPProcessorIfc
 
     private static final int PRIVATE_KEY_ID_LEN = 40;
 
+    /** Default number of key signing threads. */
+    private static final int DEF_SIGNING_THREADS = 2;
+    /** Default maximum number of key signing requests waiting for a thread. */
+    private static final int DEF_SIGNING_QUEUE_SIZE = 50;
+
+    /** Number of locks serializing account changes for the same user. */
+    private static final int USER_LOCKS = 64;
+
     private static final RosterFlat rosterUtil = new RosterFlat();
     private static final SessionManagerHandler loginHandler = new SessionManagerHandler() {
         @Override
@@ -168,12 +180,16 @@ public class KontalkIqRegister extends XMPPProcessor implements XMPPProcessorIfc
     private PhoneNumberVerificationProvider fallbackProvider;
 
     private long statsRegistrationAttempts;
-    private long statsRegisteredUsers;
+    private final AtomicLong statsRegisteredUsers = new AtomicLong();
     private long statsInvalidRegistrations;
     private Map<BareJID, RegistrationRequest> requests;
 
     private JDBCPresenceRepository userRepository = new JDBCPresenceRepository();
 
+    private KeySigningExecutor signingExecutor;
+
+    private final Object[] userLocks = createLocks(USER_LOCKS);
+
     @Override
     public String id() {
         return ID;
@@ -181,7 +197,8 @@ public class KontalkIqRegister extends XMPPProcessor implements XMPPProcessorIfc
 
     @Override
     public void init(Map<String, Object> settings) throws TigaseDBException {
-        requests = new HashMap<>();
+        // read by signing threads too
+        requests = new ConcurrentHashMap<>();
 
         // registration providers
         providers = new LinkedHashMap<>();
@@ -241,6 +258,10 @@ public class KontalkIqRegister extends XMPPProcessor implements XMPPProcessorIfc
             }
         }
 
+        signingExecutor = new KeySigningExecutor(
+                getIntSetting(settings, "signing-threads", DEF_SIGNING_THREADS),
+                getIntSetting(settings, "signing-queue-size", DEF_SIGNING_QUEUE_SIZE));
+
         // user repository for periodical purge of old users
         String uri = (String) settings.get("db-uri");
         userRepository.initRepository(uri, null);
@@ -268,6 +289,21 @@ public class KontalkIqRegister extends XMPPProcessor implements XMPPProcessorIfc
         }, timeout, timeout);
     }
 
+    private static int getIntSetting(Map<String, Object> settings, String key, int defaultValue) {
+        Object value = settings.get(key);
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        else if (value != null) {
+            try {
+                return Integer.parseInt(value.toString());
+            }
+            catch (NumberFormatException ignored) {
+            }
+        }
+        return defaultValue;
+    }
+
     private Map<String, Object> getPrefixedSettings(Map<String, Object> settings, String prefix) {
         Map<String, Object> out = new HashMap<>(settings);
         for (Map.Entry<String, Object> entry : settings.entrySet()) {
@@ -296,18 +332,38 @@ public class KontalkIqRegister extends XMPPProcessor implements XMPPProcessorIfc
         return null;
     }
 
+    private static Object[] createLocks(int count) {
+        Object[] locks = new Object[count];
+        for (int i = 0; i < count; i++)
+            locks[i] = new Object();
+        return locks;
+    }
+
+    /** Returns the lock serializing account removal and creation for the given user. */
+    private Object getUserLock(BareJID jid) {
+        return userLocks[(jid.hashCode() & 0x7fffffff) % userLocks.length];
+    }
+
     private void removeUser(BareJID jid) throws TigaseDBException {
         if (log.isLoggable(Level.FINE)) {
             log.log(Level.FINE, "Deleting user {0}", jid);
         }
-        try {
-            // send unsubscribed to all contacts
-            unsubscribeFromRoster(jid);
-        }
-        catch (NotAuthorizedException e) {
-            log.log(Level.WARNING, "unable to unsubscribe from roster of " + jid, e);
+        synchronized (getUserLock(jid)) {
+            try {
+                // send unsubscribed to all contacts
+                unsubscribeFromRoster(jid);
+            }
+            catch (NotAuthorizedException e) {
+                log.log(Level.WARNING, "unable to unsubscribe from roster of " + jid, e);
+            }
+            try {
+                userRepository.removeUser(jid);
+            }
+            finally {
+                UserUidCache.getInstance().invalidate(jid);
+                CertificateAuthCache.getInstance().invalidate(jid);
+            }
         }
-        userRepository.removeUser(jid);
     }
 
     /** Sends an unsubscribed stanza to all user in the given user's roster. */
@@ -433,13 +489,9 @@ public class KontalkIqRegister extends XMPPProcessor implements XMPPProcessorIfc
                                 // verify user id
                                 BareJID jid = verifyPublicKey(session, key);
 
-                                if (verifyCode(session, jid, code)) {
-                                    byte[] signedKey = signPublicKey(session, publicKeyData);
-
-                                    Packet response = register(session, packet, jid, key.getFingerprint(), signedKey);
-                                    statsRegisteredUsers++;
-                                    packet.processedBy(ID);
-                                    results.offer(response);
+                                if (code != null && requests.get(jid) != null) {
+                                    // code will be verified (and response sent) when the key is signed
+                                    signAndRegister(session, packet, jid, key, publicKeyData, code, results);
                                 }
                                 else {
                                     // invalid verification code
@@ -744,6 +796,7 @@ public class KontalkIqRegister extends XMPPProcessor implements XMPPProcessorIfc
         return query;
     }
 
+    /** Must be called while holding the lock for the given user. */
     private Packet register(XMPPResourceConnection session, Packet packet, BareJID jid, byte[] fingerprint, byte[] publicKey)
             throws TigaseDBException {
         try {
@@ -761,10 +814,25 @@ public class KontalkIqRegister extends XMPPProcessor implements XMPPProcessorIfc
         catch (UserExistsException e) {
             // user already exists
         }
+        UserUidCache.getInstance().invalidate(jid);
         KontalkAuth.setUserFingerprint(session, jid, Hex.toHexString(fingerprint).toUpperCase());
         return packet.okResult(prepareRegisteredResponseForm(publicKey), 0);
     }
 
+    /**
+     * Returns true if the session is still bound to the given connection,
+     * and still authorized if it was when the request was made.
+     */
+    private static boolean isSessionActive(XMPPResourceConnection session, JID connectionId, boolean authorized) {
+        try {
+            return connectionId.equals(session.getConnectionId()) &&
+                    (!authorized || session.isAuthorized());
+        }
+        catch (NoConnectionIdException e) {
+            return false;
+        }
+    }
+
     private Element prepareRegisteredResponseForm(byte[] publicKey) {
         Element query = new Element("query", new String[] { "xmlns" }, XMLNSS);
         Form form = new Form("form", null, null);
@@ -777,18 +845,14 @@ public class KontalkIqRegister extends XMPPProcessor implements XMPPProcessorIfc
     }
 
     private void rolloverContinue(XMPPResourceConnection session, byte[] publicKeyData, Packet packet, Queue<Packet> results)
-            throws IOException, PGPException, TigaseDBException, PacketErrorTypeException, NotAuthorizedException {
+            throws IOException, PGPException, PacketErrorTypeException, NotAuthorizedException, NoConnectionIdException {
 
         PGPPublicKey key = loadPublicKey(publicKeyData);
         // verify user id
         BareJID jid = verifyPublicKey(session, key);
         if (jid != null) {
-            byte[] signedKey = signPublicKey(session, publicKeyData);
-            Packet response = register(session, packet, jid, key.getFingerprint(), signedKey);
-
             // send signed key in response
-            packet.processedBy(ID);
-            results.offer(response);
+            signAndRegister(session, packet, jid, key, publicKeyData, null, results);
         }
         else {
             results.offer(Authorization.FORBIDDEN.getResponseMessage(packet, ERROR_INVALID_PUBKEY, false));
@@ -834,8 +898,9 @@ public class KontalkIqRegister extends XMPPProcessor implements XMPPProcessorIfc
         String publicKeyData;
         try {
             KontalkKeyring keyring = KontalkKeyring.getInstance(domain.toString());
-            byte[] _publicKeyData = keyring.exportKey(fingerprint);
-            publicKeyData = Base64.encode(_publicKeyData);
+            publicKeyData = keyring.exportKeyBase64(fingerprint);
+            if (publicKeyData == null)
+                throw new PGPException("key not found");
         }
         catch (Exception e) {
             log.log(Level.WARNING, "Public key for user not found or not valid: " + userId, e);
@@ -912,9 +977,87 @@ public class KontalkIqRegister extends XMPPProcessor implements XMPPProcessorIfc
         return prov != null && prov.endVerification(session, request, code);
     }
 
-    private byte[] signPublicKey(XMPPResourceConnection session, byte[] publicKeyData) throws IOException, PGPException {
+    /**
+     * Signs the given public key in a signing thread, then registers the
+     * key and sends the response through the session manager.
+     * For new users, the verification code is checked only once the key is
+     * signed, so that it's not used up by a request that can't be served.
+     * Registration is skipped if the session was closed while signing.
+     * If the signing queue is full, a wait error is returned right away.
+     * @param code the verification code for new users, null for key rollover
+     */
+    private void signAndRegister(XMPPResourceConnection session, Packet packet, BareJID jid, PGPPublicKey key,
+            byte[] publicKeyData, String code, Queue<Packet> results)
+            throws IOException, PGPException, PacketErrorTypeException, NoConnectionIdException {
+
+        boolean newUser = code != null;
         KontalkKeyring keyring = getKeyring(session);
-        return keyring.signKey(publicKeyData);
+        JID connectionId = session.getConnectionId();
+        byte[] fingerprint = key.getFingerprint();
+
+        packet.processedBy(ID);
+        boolean queued = signingExecutor.submit(keyring, publicKeyData, (signedKey, error) -> {
+            Packet response;
+            try {
+                if (error != null)
+                    throw error;
+
+                synchronized (getUserLock(jid)) {
+                    if (!isSessionActive(session, connectionId, !newUser)) {
+                        if (log.isLoggable(Level.FINE)) {
+                            log.log(Level.FINE, "Session closed while signing, not registering {0}", jid);
+                        }
+                        return;
+                    }
+                    if (newUser && !verifyCode(session, jid, code)) {
+                        // invalid verification code
+                        response = errorResponse(Authorization.BAD_REQUEST, packet, ERROR_INVALID_CODE);
+                    }
+                    else {
+                        response = register(session, packet, jid, fingerprint, signedKey);
+                        if (newUser)
+                            statsRegisteredUsers.incrementAndGet();
+                    }
+                }
+            }
+            catch (TigaseDBException e) {
+                log.warning("Database problem: " + e);
+                response = errorResponse(Authorization.INTERNAL_SERVER_ERROR, packet,
+                        "Database access problem, please contact administrator.");
+            }
+            catch (PGPException e) {
+                log.log(Level.WARNING, "PGP problem", e);
+                response = errorResponse(Authorization.BAD_REQUEST, packet, ERROR_INVALID_PUBKEY);
+            }
+            catch (Exception e) {
+                log.warning("Unknown error: " + e);
+                response = errorResponse(Authorization.INTERNAL_SERVER_ERROR, packet,
+                        "Internal PGP error. Please contact administrator.");
+            }
+
+            if (response != null) {
+                // we are not in a processing queue so we need direct access to the SessionManager
+                SessionManager sessMan = (SessionManager) XMPPServer.getComponent("sess-man");
+                response.setPacketTo(connectionId);
+                sessMan.addOutPacket(response);
+            }
+        });
+
+        if (!queued) {
+            log.log(Level.INFO, "Signing queue full, rejecting request from {0}", jid);
+            results.offer(Authorization.RESOURCE_CONSTRAINT.getResponseMessage(packet,
+                    "Server busy, please try again later.", true));
+        }
+    }
+
+    private Packet errorResponse(Authorization error, Packet packet, String text) {
+        try {
+            return error.getResponseMessage(packet, text, true);
+        }
+        catch (PacketErrorTypeException e) {
+            log.log(Level.WARNING, "unable to create error response", e);
+            return null;
+        }
     }
 
     private KontalkKeyring getKeyring(XMPPResourceConnection session) throws IOException, PGPException {
@@ -961,8 +1104,22 @@ public class KontalkIqRegister extends XMPPProcessor implements XMPPProcessorIfc
     public void getStatistics(StatisticsList list) {
         super.getStatistics(list);
         list.add(getComponentInfo().getName(), "Registration attempts", statsRegistrationAttempts, Level.INFO);
-        list.add(getComponentInfo().getName(), "Registered users", statsRegisteredUsers, Level.INFO);
+        list.add(getComponentInfo().getName(), "Registered users", statsRegisteredUsers.get(), Level.INFO);
         list.add(getComponentInfo().getName(), "Invalid registrations", statsInvalidRegistrations, Level.INFO);
+        if (signingExecutor != null) {
+            list.add(getComponentInfo().getName(), "Signing queue size", signingExecutor.getQueueSize(), Level.FINE);
+            list.add(getComponentInfo().getName(), "Signed keys", signingExecutor.getCompletedCount(), Level.INFO);
+            list.add(getComponentInfo().getName(), "Signing errors", signingExecutor.getFailedCount(), Level.INFO);
+            list.add(getComponentInfo().getName(), "Signing requests rejected", signingExecutor.getRejectedCount(), Level.INFO);
+            list.add(getComponentInfo().getName(), "Average signing queue time", signingExecutor.getAverageQueueTime(), Level.FINE);
+            list.add(getComponentInfo().getName(), "Average signing time", signingExecutor.getAverageSigningTime(), Level.FINE);
+            list.add(getComponentInfo().getName(), "Maximum signing latency", signingExecutor.getMaxLatency(), Level.FINE);
+        }
+        KontalkKeyring.getStatistics(getComponentInfo().getName(), list);
+        CertificateAuthCache authCache = CertificateAuthCache.getInstance();
+        list.add(getComponentInfo().getName(), "Certificate auth cache size", authCache.size(), Level.FINE);
+        list.add(getComponentInfo().getName(), "Certificate auth cache hits", authCache.getHits(), Level.INFO);
+        list.add(getComponentInfo().getName(), "Certificate auth cache misses", authCache.getMisses(), Level.INFO);
     }
 
     @Override
@@ -21,10 +21,15 @@ package org.kontalk.xmppserver;
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPPublicKey;
 import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.kontalk.xmppserver.auth.CertificateAuthCache;
 import org.kontalk.xmppserver.pgp.GnuPGInterface;
 import org.kontalk.xmppserver.pgp.PGPLocalKeyring;
+import org.kontalk.xmppserver.pgp.PGPSigner;
 import org.kontalk.xmppserver.pgp.PGPUserID;
 import org.kontalk.xmppserver.pgp.PGPUtils;
+import org.kontalk.xmppserver.util.BoundedCache;
+import tigase.util.Base64;
+import tigase.stats.StatisticsList;
 import tigase.xmpp.BareJID;
 
 import javax.xml.bind.DatatypeConverter;
@@ -32,7 +37,12 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 
 /**
@@ -40,41 +50,72 @@ import java.util.Map;
  * @author Daniele Ricci
  */
 public class KontalkKeyring {
+    private static final Logger log = Logger.getLogger(KontalkKeyring.class.getName());
+
     private static final Map<String, KontalkKeyring> instances = new HashMap<>();
 
+    private static final int EXPORT_CACHE_SIZE = 10000;
+    private static final long EXPORT_CACHE_TTL = TimeUnit.MINUTES.toMillis(30);
+
     private final String domain;
     private final PGPLocalKeyring keyring;
 
     private final PGPPublicKey secretMasterKey;
     private final PGPPublicKeyRing secretPublicKeyring;
     private final String secretKeyFingerprint;
+    private final String secretPublicKeyBase64;
+
+    /** Base64-encoded public keys by fingerprint, ready to be sent to clients. */
+    private final BoundedCache<String, String> exportCache = new BoundedCache<>(EXPORT_CACHE_SIZE, EXPORT_CACHE_TTL);
+    /** Incremented on every import, to detect exports racing with it. */
+    private final AtomicLong exportGeneration = new AtomicLong();
+
+    /** In-process signer, null if signing goes through GnuPG. */
+    private final PGPSigner signer;
 
     /** Use {@link #getInstance(String)} instead. */
     private KontalkKeyring(String domain, String secretPrivateKeyFile, String secretPublicKeyFile, String keyring) throws IOException, PGPException {
         this.domain = domain;
         this.keyring = new PGPLocalKeyring(keyring);
 
-        // import into GnuPG
-        GnuPGInterface.getInstance().importKey(secretPrivateKeyFile);
-        GnuPGInterface.getInstance().importKey(secretPublicKeyFile);
+        PGPSigner signer = null;
+        try {
+            signer = PGPSigner.load(secretPrivateKeyFile, getConfiguredSecretPassphrase().toCharArray());
+        }
+        catch (IOException | PGPException e) {
+            log.log(Level.WARNING, "unable to load server secret key, falling back to GnuPG for signing", e);
+        }
+        this.signer = signer;
+
+        if (signer == null) {
+            // import into GnuPG
+            GnuPGInterface.getInstance().importKey(secretPrivateKeyFile);
+            GnuPGInterface.getInstance().importKey(secretPublicKeyFile);
+        }
 
         // calculate secret key fingerprint for signing
         secretPublicKeyring = PGPUtils.readPublicKeyring(new FileInputStream(secretPublicKeyFile));
         secretMasterKey = PGPUtils.getMasterKey(secretPublicKeyring);
         secretKeyFingerprint = PGPUtils.getFingerprint(secretMasterKey);
+        secretPublicKeyBase64 = Base64.encode(secretPublicKeyring.getEncoded());
     }
 
     public PGPPublicKeyRing getSecretPublicKey() {
         return secretPublicKeyring;
     }
 
+    /** Returns the server public key, Base64-encoded. */
+    public String getSecretPublicKeyBase64() {
+        return secretPublicKeyBase64;
+    }
+
     /**
      * Authenticates the given public key in Kontalk.
      * @param keyData public key data to check
      * @return a user instance with JID and public key fingerprint.
      */
     public KontalkUser authenticate(byte[] keyData) throws IOException, PGPException {
-        PGPPublicKeyRing key = keyring.importKey(keyData);
+        PGPPublicKeyRing key = importKey(keyData);
         BareJID jid = validate(key);
         return jid != null ? new KontalkUser(jid, PGPUtils.getFingerprint(key)) : null;
     }
@@ -110,7 +151,7 @@ public class KontalkKeyring {
      * key is revoked correctly.
      */
     public boolean revoked(byte[] keyData, String fingerprint) throws IOException, PGPException {
-        PGPPublicKeyRing key = keyring.importKey(keyData);
+        PGPPublicKeyRing key = importKey(keyData);
         PGPPublicKey masterKey = PGPUtils.getMasterKey(key);
 
         return masterKey != null && PGPUtils.isRevoked(masterKey) &&
@@ -133,17 +174,56 @@ public class KontalkKeyring {
         return null;
     }
 
+    private PGPPublicKeyRing importKey(byte[] keyData) throws IOException, PGPException {
+        PGPPublicKeyRing key = keyring.importKey(keyData);
+        exportCache.invalidate(PGPUtils.getFingerprint(key));
+        exportGeneration.incrementAndGet();
+
+        // logins cached with a now revoked key must not be accepted anymore
+        PGPPublicKey masterKey = PGPUtils.getMasterKey(key);
+        if (masterKey != null && PGPUtils.isRevoked(masterKey)) {
+            PGPUserID uid = PGPUtils.findUserID(masterKey, domain);
+            if (uid != null) {
+                CertificateAuthCache.getInstance().invalidate(BareJID.bareJIDInstanceNS(uid.getEmail()));
+            }
+        }
+        return key;
+    }
+
     public byte[] exportKey(String fingerprint) throws IOException, PGPException {
         PGPPublicKeyRing pk = keyring.getKey(fingerprint);
         return (pk != null) ? pk.getEncoded() : null;
     }
 
-    // TODO this needs to be implemented in Java
+    /** Returns the public key with the given fingerprint, Base64-encoded, or null if not found. */
+    public String exportKeyBase64(String fingerprint) throws IOException, PGPException {
+        String fpr = fingerprint.toUpperCase(Locale.US);
+        String encoded = exportCache.get(fpr);
+        if (encoded == null) {
+            long generation = exportGeneration.get();
+            byte[] keyData = exportKey(fpr);
+            if (keyData == null || keyData.length == 0)
+                return null;
+
+            encoded = Base64.encode(keyData);
+            exportCache.putIfAbsent(fpr, encoded);
+            if (exportGeneration.get() != generation) {
+                // an import happened meanwhile, what we cached might be stale
+                exportCache.invalidate(fpr);
+            }
+        }
+        return encoded;
+    }
+
     public byte[] signKey(byte[] keyData) throws IOException, PGPException {
+        if (signer != null)
+            return signer.signKey(keyData);
         return GnuPGInterface.getInstance().signKey(keyData, secretKeyFingerprint);
     }
 
     public byte[] signData(byte[] data) throws IOException, PGPException {
+        if (signer != null)
+            return signer.signData(data);
         return GnuPGInterface.getInstance().signData(data, secretKeyFingerprint);
     }
 
@@ -154,6 +234,27 @@ public class KontalkKeyring {
         }
     }
 
+    /** Adds public keys cache statistics of all keyrings to the given list. */
+    public static void getStatistics(String name, StatisticsList list) {
+        int size = 0;
+        long hits = 0, misses = 0, writes = 0, skippedWrites = 0;
+        synchronized (instances) {
+            for (KontalkKeyring instance : instances.values()) {
+                PGPLocalKeyring keyring = instance.keyring;
+                size += keyring.getCacheSize();
+                hits += keyring.getCacheHits();
+                misses += keyring.getCacheMisses();
+                writes += keyring.getWriteCount();
+                skippedWrites += keyring.getSkippedWriteCount();
+            }
+        }
+        list.add(name, "Public key cache size", size, Level.FINE);
+        list.add(name, "Public key cache hits", hits, Level.INFO);
+        list.add(name, "Public key cache misses", misses, Level.INFO);
+        list.add(name, "Public key writes", writes, Level.FINE);
+        list.add(name, "Public key writes skipped", skippedWrites, Level.FINE);
+    }
+
     private static String getConfiguredKeyringPath() {
         return System.getProperty("pgp.keyring");
     }
@@ -166,6 +267,10 @@ public class KontalkKeyring {
         return System.getProperty("pgp.secret.private");
     }
 
+    private static String getConfiguredSecretPassphrase() {
+        return System.getProperty("pgp.secret.passphrase", "");
+    }
+
     /** Initializes the keyring. */
     public static KontalkKeyring getInstance(String domain) throws IOException, PGPException {
         synchronized (instances) {
@@ -18,6 +18,7 @@
 
 package org.kontalk.xmppserver;
 
+import org.kontalk.xmppserver.util.StanzaClassifier;
 import tigase.db.NonAuthUserRepository;
 import tigase.db.TigaseDBException;
 import tigase.server.Message;
@@ -56,9 +57,9 @@ public class KontalkPushNotifications extends XMPPProcessor implements XMPPPostp
 
     @Override
     public void postProcess(Packet packet, XMPPResourceConnection session, NonAuthUserRepository repo, Queue<Packet> results, Map<String, Object> settings) {
-        if (session == null && packet.getElemName().equals(Message.ELEM_NAME) &&
-            packet.getType() == StanzaType.chat && (packet.getElement().getChild("body") != null ||
-                packet.getElement().getChild("request", "urn:xmpp:receipts") != null)) {
+        if (session == null && packet.getElemName().equals(Message.ELEM_NAME) && !BlockingCommand.isBlocked(packet) &&
+            packet.getType() == StanzaType.chat &&
+                StanzaClassifier.isAny(packet, StanzaClassifier.BODY | StanzaClassifier.RECEIPT_REQUEST)) {
 
             if (log.isLoggable(Level.FINEST)) {
                 log.log(Level.FINEST, "Processing packet: {0}", packet);
@@ -19,9 +19,11 @@
 package org.kontalk.xmppserver;
 
 import org.kontalk.xmppserver.auth.KontalkAuth;
+import org.kontalk.xmppserver.blocking.ReverseBlockIndex;
 import org.kontalk.xmppserver.probe.DataServerlistRepository;
 import org.kontalk.xmppserver.probe.ProbeComponent;
 import org.kontalk.xmppserver.probe.ServerlistRepository;
+import org.kontalk.xmppserver.util.UserUidCache;
 import tigase.db.DBInitException;
 import tigase.db.NonAuthUserRepository;
 import tigase.db.TigaseDBException;
@@ -115,6 +117,11 @@ public class KontalkRoster extends XMPPProcessor implements XMPPProcessorIfc {
                 if (items != null) {
                     String serverDomain = session.getDomainAsJID().getDomain();
 
+                    UserUidCache uidCache = UserUidCache.getInstance();
+                    ReverseBlockIndex blockIndex = ReverseBlockIndex.getInstance();
+                    BareJID requester = session.getBareJID();
+                    long requesterUid = uidCache.getUserUID(KontalkAuth.getUserRepository(), requester);
+
                     Set<BareJID> found = new HashSet<BareJID>();
                     Set<BareJID> remote = new HashSet<BareJID>();
                     for (Element item : items) {
@@ -127,15 +134,16 @@ public class KontalkRoster extends XMPPProcessor implements XMPPProcessorIfc {
                         BareJID localJid = BareJID.bareJIDInstance(jid.getLocalpart(), serverDomain);
                         String domain = jid.getDomain();
 
-                        // TODO check for block status (XEP-0191)
-                        // blocked contacts must not be found as existing
-
                         boolean isLocalJid = domain.equalsIgnoreCase(serverDomain);
 
                         if (isLocalJid) {
-                            if (KontalkAuth.getUserRepository().getUserUID(localJid) > 0) {
-                                // local user
-                                found.add(jid);
+                            long uid = uidCache.getUserUID(KontalkAuth.getUserRepository(), localJid);
+                            if (uid > 0) {
+                                // blocked contacts must not be found as existing
+                                if (requesterUid <= 0 || !blockIndex.isBlockedEitherWay(requester, requesterUid, localJid, uid)) {
+                                    // local user
+                                    found.add(jid);
+                                }
                             }
                             else {
                                 // queue for remote lookup
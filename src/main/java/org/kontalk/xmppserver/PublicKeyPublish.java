@@ -25,7 +25,6 @@ import tigase.db.TigaseDBException;
 import tigase.db.UserNotFoundException;
 import tigase.server.Iq;
 import tigase.server.Packet;
-import tigase.util.Base64;
 import tigase.xml.Element;
 import tigase.xmpp.*;
 import tigase.xmpp.impl.roster.RosterAbstract;
@@ -93,11 +92,11 @@ public class PublicKeyPublish extends XMPPProcessor implements XMPPProcessorIfc
                 JID domain = session.getDomainAsJID();
                 if (domain.equals(to)) {
                     try {
-                        byte[] publicKeyData = KontalkKeyring.getInstance(domain.toString())
-                                .getSecretPublicKey().getEncoded();
+                        String publicKeyData = KontalkKeyring.getInstance(domain.toString())
+                                .getSecretPublicKeyBase64();
                         Element pubkey = new Element("pubkey");
                         pubkey.setXMLNS(XMLNS);
-                        pubkey.setCData(Base64.encode(publicKeyData));
+                        pubkey.setCData(publicKeyData);
                         results.offer(packet.okResult(pubkey, 0));
                     }
                     catch (IOException | PGPException e) {
@@ -114,12 +113,12 @@ public class PublicKeyPublish extends XMPPProcessor implements XMPPProcessorIfc
                     String fingerprint = KontalkAuth.getUserFingerprint(session, to.getBareJID());
                     if (fingerprint != null) {
                         try {
-                            byte[] publicKeyData = KontalkKeyring.
-                                    getInstance(session.getDomainAsJID().toString()).exportKey(fingerprint);
+                            String publicKeyData = KontalkKeyring.
+                                    getInstance(session.getDomainAsJID().toString()).exportKeyBase64(fingerprint);
                             if (publicKeyData != null) {
                                 pubkey = new Element("pubkey");
                                 pubkey.setXMLNS(XMLNS);
-                                pubkey.setCData(Base64.encode(publicKeyData));
+                                pubkey.setCData(publicKeyData);
                             }
                         }
                         catch (IOException | PGPException e) {
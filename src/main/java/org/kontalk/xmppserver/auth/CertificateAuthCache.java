@@ -0,0 +1,157 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.auth;
+
+import org.bouncycastle.util.encoders.Hex;
+import org.kontalk.xmppserver.KontalkUser;
+import org.kontalk.xmppserver.util.BoundedCache;
+import tigase.xmpp.BareJID;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Cache of successful certificate authentications, keyed by the SHA-256 of
+ * the certificate. Entries expire with the certificate or the key, and are
+ * discarded when the user's stored fingerprint changes (e.g. key rollover
+ * or revocation) or the user is removed: code doing that must call
+ * {@link #invalidate(BareJID)}.
+ * Invalidations made by other nodes are seen when entries expire.
+ * @author Daniele Ricci
+ */
+public class CertificateAuthCache {
+
+    private static final int MAX_SIZE = 10000;
+    private static final long TTL = TimeUnit.MINUTES.toMillis(30);
+
+    private static final CertificateAuthCache instance = new CertificateAuthCache();
+
+    public static CertificateAuthCache getInstance() {
+        return instance;
+    }
+
+    private static final class Entry {
+        final KontalkUser user;
+        final long version;
+
+        Entry(KontalkUser user, long version) {
+            this.user = user;
+            this.version = version;
+        }
+    }
+
+    private static final class Invalidation {
+        final long version;
+        final long time;
+
+        Invalidation(long version, long time) {
+            this.version = version;
+            this.time = time;
+        }
+    }
+
+    private final BoundedCache<String, Entry> cache = new BoundedCache<>(MAX_SIZE, TTL);
+
+    /**
+     * Latest invalidation of each user. Entries older than an invalidation
+     * are ignored; invalidations are kept as long as any entry can live.
+     */
+    private final Map<BareJID, Invalidation> invalidations = new ConcurrentHashMap<>();
+    private final AtomicLong versions = new AtomicLong();
+    private volatile long lastPurge = System.currentTimeMillis();
+
+    private CertificateAuthCache() {
+    }
+
+    /** Returns the cache key for the given certificate. */
+    public static String hash(X509Certificate cert) throws CertificateEncodingException {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return Hex.toHexString(md.digest(cert.getEncoded()));
+        }
+        catch (NoSuchAlgorithmException e) {
+            // SHA-256 is always available
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Returns the current version, to be passed to {@link #put} once
+     * verification is complete. Must be taken before verification starts,
+     * so that invalidations made meanwhile discard the result.
+     */
+    public long getVersion() {
+        return versions.get();
+    }
+
+    /** Returns the user authenticated by the given certificate, or null if not cached. */
+    public KontalkUser get(String certHash) {
+        Entry entry = cache.get(certHash);
+        if (entry != null) {
+            Invalidation inv = invalidations.get(entry.user.getJID());
+            if (inv == null || entry.version >= inv.version)
+                return entry.user;
+
+            cache.invalidate(certHash);
+        }
+        return null;
+    }
+
+    /**
+     * Caches a successful authentication.
+     * @param expires expiration time of the certificate or key
+     * @param version value of {@link #getVersion()} before verification
+     */
+    public void put(String certHash, KontalkUser user, long expires, long version) {
+        long ttl = Math.min(TTL, expires - System.currentTimeMillis());
+        if (ttl > 0)
+            cache.put(certHash, new Entry(user, version), ttl);
+    }
+
+    /** Discards all cached authentications of the given user. */
+    public void invalidate(BareJID user) {
+        long now = System.currentTimeMillis();
+        invalidations.put(user, new Invalidation(versions.incrementAndGet(), now));
+
+        if (now - lastPurge > TTL) {
+            lastPurge = now;
+            invalidations.values().removeIf(inv -> now - inv.time > TTL);
+        }
+    }
+
+    public long getHits() {
+        return cache.getHits();
+    }
+
+    public long getMisses() {
+        return cache.getMisses();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+}
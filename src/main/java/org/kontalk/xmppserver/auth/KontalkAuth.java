@@ -71,6 +71,7 @@ public class KontalkAuth {
     public static void setUserFingerprint(XMPPResourceConnection session, BareJID jid, String fingerprint)
             throws TigaseDBException {
         getUserRepository().setData(jid, NODE_AUTH, KEY_FINGERPRINT, fingerprint);
+        CertificateAuthCache.getInstance().invalidate(jid);
     }
 
     public static KontalkKeyring getKeyring(XMPPResourceConnection session) throws IOException, PGPException {
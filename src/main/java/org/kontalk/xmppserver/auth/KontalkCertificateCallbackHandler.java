@@ -25,6 +25,7 @@ import java.security.cert.X509Certificate;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -32,10 +33,12 @@ import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.UnsupportedCallbackException;
 
 import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPublicKey;
 import org.kontalk.xmppserver.KontalkKeyring;
 import org.kontalk.xmppserver.KontalkUser;
 import org.kontalk.xmppserver.Security;
 import org.kontalk.xmppserver.pgp.PGPUtils;
+import org.kontalk.xmppserver.util.UserUidCache;
 
 import org.kontalk.xmppserver.x509.X509Utils;
 import tigase.auth.DomainAware;
@@ -119,6 +122,17 @@ public class KontalkCertificateCallbackHandler extends CertBasedCallbackHandler
 
         if (peerCert instanceof X509Certificate) {
             X509Certificate cert = (X509Certificate) peerCert;
+
+            // same certificate already verified
+            String certHash = CertificateAuthCache.hash(cert);
+            KontalkUser cached = CertificateAuthCache.getInstance().get(certHash);
+            if (cached != null) {
+                if (log.isLoggable(Level.FINEST)) {
+                    log.log(Level.FINEST, "Certificate authentication cached for {0}", cached);
+                }
+                return cached;
+            }
+
             byte[] publicKeyData = X509Utils.getPublicKeyBlock(cert);
 
             if (publicKeyData != null) {
@@ -127,7 +141,7 @@ public class KontalkCertificateCallbackHandler extends CertBasedCallbackHandler
                 byte[] keyDataFromCertificate = cert.getPublicKey().getEncoded();
 
                 if (Arrays.equals(keyDataFromCertificate, keyDataFromExtension)) {
-                    return verifyPublicKey(publicKeyData);
+                    return verifyPublicKey(cert, certHash, publicKeyData);
                 }
                 else {
                     log.log(Level.WARNING, "Public key in extension does not match certificate public key");
@@ -144,7 +158,11 @@ public class KontalkCertificateCallbackHandler extends CertBasedCallbackHandler
         return null;
     }
 
-    private KontalkUser verifyPublicKey(byte[] publicKeyData) throws IOException, PGPException {
+    private KontalkUser verifyPublicKey(X509Certificate cert, String certHash, byte[] publicKeyData) throws IOException, PGPException {
+        CertificateAuthCache authCache = CertificateAuthCache.getInstance();
+        // any invalidation from now on (e.g. a revocation) discards the result
+        long version = authCache.getVersion();
+
         KontalkKeyring keyring = getKeyring();
         KontalkUser user = keyring.authenticate(publicKeyData);
         if (user == null) {
@@ -172,6 +190,7 @@ public class KontalkCertificateCallbackHandler extends CertBasedCallbackHandler
             if (!userExists) {
                 try {
                     KontalkAuth.getUserRepository().addUser(user.getJID());
+                    UserUidCache.getInstance().invalidate(user.getJID());
                 }
                 catch (TigaseDBException dbe) {
                     log.log(Level.WARNING, "unable to create user " + user.getJID(), dbe);
@@ -180,19 +199,35 @@ public class KontalkCertificateCallbackHandler extends CertBasedCallbackHandler
             }
 
             // store latest fingerprint
-            try {
-                KontalkAuth.setUserFingerprint(session, user.getJID(), user.getFingerprint());
-            }
-            catch (TigaseDBException e) {
-                log.log(Level.WARNING, "no access to storage for storing fingerprint", e);
-                return null;
+            // a new fingerprint invalidates cached logins, including this one
+            if (!user.getFingerprint().equalsIgnoreCase(oldFingerprint)) {
+                try {
+                    KontalkAuth.setUserFingerprint(session, user.getJID(), user.getFingerprint());
+                }
+                catch (TigaseDBException e) {
+                    log.log(Level.WARNING, "no access to storage for storing fingerprint", e);
+                    return null;
+                }
             }
+
+            authCache.put(certHash, user, getExpiration(cert, publicKeyData), version);
             return user;
         }
 
         return null;
     }
 
+    /** Returns the time after which the certificate or the key is not valid anymore. */
+    private long getExpiration(X509Certificate cert, byte[] publicKeyData) throws IOException, PGPException {
+        long expires = cert.getNotAfter().getTime();
+        PGPPublicKey key = PGPUtils.getMasterKey(publicKeyData);
+        if (key != null && key.getValidSeconds() > 0) {
+            expires = Math.min(expires, key.getCreationTime().getTime() +
+                    TimeUnit.SECONDS.toMillis(key.getValidSeconds()));
+        }
+        return expires;
+    }
+
     @Override
     public void setSession(XMPPResourceConnection session) {
         super.setSession(session);
@@ -0,0 +1,127 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.blocking;
+
+import tigase.xmpp.BareJID;
+
+import java.util.*;
+
+
+/**
+ * An immutable block list.
+ * Lookups use an open-addressed hash table; iteration follows insertion order.
+ * @author Daniele Ricci
+ */
+public final class Blocklist implements Iterable<BareJID> {
+
+    public static final Blocklist EMPTY = new Blocklist(new BareJID[0]);
+
+    /** Items in insertion order. */
+    private final BareJID[] items;
+    /** Hash table (linear probing, load factor at most 0.5). */
+    private final BareJID[] table;
+
+    private Blocklist(BareJID[] items) {
+        this.items = items;
+        int size = Integer.highestOneBit(Math.max(1, items.length * 2 - 1)) << 1;
+        this.table = new BareJID[size];
+        for (BareJID jid : items) {
+            table[slot(table, jid)] = jid;
+        }
+    }
+
+    /** Creates a block list with the given items. Duplicates are ignored. */
+    public static Blocklist of(Collection<BareJID> jids) {
+        if (jids.isEmpty())
+            return EMPTY;
+        return new Blocklist(new LinkedHashSet<>(jids).toArray(new BareJID[0]));
+    }
+
+    private static int slot(BareJID[] table, BareJID jid) {
+        int mask = table.length - 1;
+        int h = jid.hashCode();
+        int i = (h ^ (h >>> 16)) & mask;
+        while (table[i] != null && !table[i].equals(jid))
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    public boolean contains(BareJID jid) {
+        return jid != null && items.length > 0 && table[slot(table, jid)] != null;
+    }
+
+    /** Returns a block list with the given items added. */
+    public Blocklist with(Collection<BareJID> jids) {
+        Set<BareJID> set = new LinkedHashSet<>(Arrays.asList(items));
+        if (!set.addAll(jids))
+            return this;
+        return new Blocklist(set.toArray(new BareJID[0]));
+    }
+
+    /** Returns a block list with the given items removed. */
+    public Blocklist without(Collection<BareJID> jids) {
+        Set<BareJID> set = new LinkedHashSet<>(Arrays.asList(items));
+        if (!set.removeAll(jids))
+            return this;
+        return set.isEmpty() ? EMPTY : new Blocklist(set.toArray(new BareJID[0]));
+    }
+
+    public int size() {
+        return items.length;
+    }
+
+    public boolean isEmpty() {
+        return items.length == 0;
+    }
+
+    @Override
+    public Iterator<BareJID> iterator() {
+        return Collections.unmodifiableList(Arrays.asList(items)).iterator();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof Blocklist))
+            return false;
+        Blocklist other = (Blocklist) o;
+        if (other.size() != size())
+            return false;
+        for (BareJID jid : items) {
+            if (!other.contains(jid))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = 0;
+        for (BareJID jid : items)
+            h += jid.hashCode();
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(items);
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.blocking;
+
+import tigase.db.DBInitException;
+import tigase.db.TigaseDBException;
+import tigase.xmpp.BareJID;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Interface for block list repository.
+ * Items are stored individually, so changes are incremental.
+ * @author Daniele Ricci
+ */
+public interface BlocklistRepository {
+
+    /** Receives block list items when scanning all block lists. */
+    interface ItemHandler {
+        void item(long uid, BareJID jid);
+    }
+
+    /** Page size used when loading a whole block list. */
+    int DEFAULT_PAGE_SIZE = 1000;
+
+    public void init(Map<String, Object> props) throws DBInitException;
+
+    /**
+     * Loads a page of a user's block list.
+     * Items are returned in a stable order, suitable for paging.
+     * @param after last item of the previous page, null for the first page
+     */
+    public List<BareJID> getBlocklist(BareJID user, BareJID after, int limit) throws TigaseDBException;
+
+    /** Loads a user's whole block list. */
+    public default Blocklist getBlocklist(BareJID user) throws TigaseDBException {
+        List<BareJID> items = new ArrayList<>();
+        BareJID after = null;
+        while (true) {
+            List<BareJID> page = getBlocklist(user, after, DEFAULT_PAGE_SIZE);
+            items.addAll(page);
+            if (page.size() < DEFAULT_PAGE_SIZE)
+                break;
+            after = page.get(page.size() - 1);
+        }
+        return Blocklist.of(items);
+    }
+
+    /** Adds items to a user's block list. Items already in the list are ignored. */
+    public void block(BareJID user, Collection<BareJID> jids) throws TigaseDBException;
+
+    /** Removes items from a user's block list. */
+    public void unblock(BareJID user, Collection<BareJID> jids) throws TigaseDBException;
+
+    /** Scans the block lists of all users, passing every item to the given handler. */
+    public void getAllItems(ItemHandler handler) throws TigaseDBException;
+
+    /**
+     * Returns the users whose block list is still stored with the old format
+     * (a single XML document in the user repository).
+     * @param node node and key the old format is stored under
+     */
+    public List<BareJID> getLegacyUsers(String node) throws TigaseDBException;
+
+}
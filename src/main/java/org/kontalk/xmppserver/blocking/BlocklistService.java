@@ -0,0 +1,195 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.blocking;
+
+import org.kontalk.xmppserver.auth.KontalkAuth;
+import org.kontalk.xmppserver.util.BoundedCache;
+import org.kontalk.xmppserver.util.UserUidCache;
+import tigase.db.TigaseDBException;
+import tigase.db.UserNotFoundException;
+import tigase.db.UserRepository;
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+import tigase.xmpp.BareJID;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Node-wide block list lookup service.
+ * Block lists are loaded from the repository and kept in a bounded cache,
+ * so they can be checked for users that are not online. Changes made
+ * through this node update the cache right away; changes made by other
+ * nodes are seen when cached entries expire. Block lists still stored with
+ * the old format (a single XML document) are migrated all at once by
+ * {@link #migrateAll()}, which must be run before any lookup.
+ * @author Daniele Ricci
+ */
+public class BlocklistService {
+
+    private static final Logger log = Logger.getLogger(BlocklistService.class.getName());
+
+    /** Node and key of block lists stored with the old format. */
+    private static final String LEGACY_BLOCKLIST = "blocklist";
+
+    private static final int MAX_SIZE = 10000;
+    private static final long TTL = TimeUnit.MINUTES.toMillis(10);
+
+    private static BlocklistService instance;
+
+    private final BlocklistRepository repo;
+    private final BoundedCache<BareJID, Blocklist> cache = new BoundedCache<>(MAX_SIZE, TTL);
+    /** Incremented by every change, to detect loads racing with one. */
+    private final AtomicLong generation = new AtomicLong();
+
+    private BlocklistService(BlocklistRepository repo) {
+        this.repo = repo;
+    }
+
+    public static synchronized BlocklistService init(BlocklistRepository repo) {
+        if (instance == null)
+            instance = new BlocklistService(repo);
+        return instance;
+    }
+
+    /** Returns the service instance, or null if block lists are not in use. */
+    public static BlocklistService getInstance() {
+        return instance;
+    }
+
+    /** Returns the block list of the given user, loading it from the repository if needed. */
+    public Blocklist getBlocklist(BareJID user) throws TigaseDBException {
+        Blocklist list = cache.get(user);
+        if (list == null) {
+            long gen = generation.get();
+            list = load(user);
+            // a list updated in the meantime is newer than ours
+            list = cache.putIfAbsent(user, list);
+            if (generation.get() != gen)
+                cache.invalidate(user);
+        }
+        return list;
+    }
+
+    private Blocklist load(BareJID user) throws TigaseDBException {
+        Blocklist list;
+        try {
+            list = repo.getBlocklist(user);
+        }
+        catch (UserNotFoundException e) {
+            // not a local user
+            list = Blocklist.EMPTY;
+        }
+        return list;
+    }
+
+    /**
+     * Moves all block lists still stored with the old format to the block list
+     * repository. Lists failing to migrate are logged and left in place, to
+     * be retried at next startup.
+     * @return the number of migrated block lists
+     */
+    public int migrateAll() {
+        List<BareJID> users;
+        try {
+            users = repo.getLegacyUsers(LEGACY_BLOCKLIST);
+        }
+        catch (TigaseDBException e) {
+            log.log(Level.WARNING, "unable to look for block lists to migrate", e);
+            return 0;
+        }
+
+        int migrated = 0;
+        for (BareJID user : users) {
+            try {
+                migrate(user);
+                cache.invalidate(user);
+                migrated++;
+            }
+            catch (Exception e) {
+                log.log(Level.WARNING, "unable to migrate block list for " + user, e);
+            }
+        }
+
+        if (migrated > 0) {
+            log.log(Level.INFO, "Migrated {0} block lists", migrated);
+        }
+        return migrated;
+    }
+
+    /** Moves a block list stored with the old format to the block list repository. */
+    private Blocklist migrate(BareJID user) throws TigaseDBException {
+        UserRepository userRepo = KontalkAuth.getUserRepository();
+        String list_str = userRepo.getData(user, LEGACY_BLOCKLIST, LEGACY_BLOCKLIST, null);
+        if ((list_str == null) || list_str.isEmpty())
+            return Blocklist.EMPTY;
+
+        SimpleParser parser = SingletonFactory.getParserInstance();
+        DomBuilderHandler domHandler = new DomBuilderHandler();
+
+        parser.parse(domHandler, list_str.toCharArray(), 0, list_str.length());
+
+        Queue<Element> elems = domHandler.getParsedElements();
+        Element result = elems.poll();
+
+        if (log.isLoggable(Level.FINEST)) {
+            log.log(Level.FINEST, "Migrating block list: {0}", result);
+        }
+
+        List<BareJID> jids = new ArrayList<>();
+        List<Element> children = result != null ? result.getChildren() : null;
+        if (children != null) {
+            for (Element item : children) {
+                jids.add(BareJID.bareJIDInstanceNS(item.getAttributeStaticStr("jid")));
+            }
+            if (!jids.isEmpty()) {
+                repo.block(user, jids);
+                ReverseBlockIndex.getInstance().blocked(UserUidCache.getInstance().getUserUID(userRepo, user), jids);
+            }
+        }
+        userRepo.removeData(user, LEGACY_BLOCKLIST, LEGACY_BLOCKLIST);
+        return Blocklist.of(jids);
+    }
+
+    /** Returns true if the given user has blocked the given JID. */
+    public boolean isBlocked(BareJID user, BareJID jid) throws TigaseDBException {
+        return getBlocklist(user).contains(jid);
+    }
+
+    /** Updates the cached block list of the given user. Must be called after changing it. */
+    public void updated(BareJID user, Blocklist list) {
+        generation.incrementAndGet();
+        cache.put(user, list);
+    }
+
+    /** Removes the given user's block list from the cache. */
+    public void invalidate(BareJID user) {
+        generation.incrementAndGet();
+        cache.invalidate(user);
+    }
+
+}
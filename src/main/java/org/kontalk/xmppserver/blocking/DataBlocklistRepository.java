@@ -0,0 +1,266 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.blocking;
+
+import org.bouncycastle.util.encoders.Hex;
+import org.kontalk.xmppserver.util.UserUidCache;
+import tigase.db.*;
+import tigase.xmpp.BareJID;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+
+/**
+ * Block list repository backed by a {@link tigase.db.DataRepository}.
+ * Each item is a row keyed by user UID and a hash of the blocked JID.
+ * @author Daniele Ricci
+ */
+public class DataBlocklistRepository implements BlocklistRepository {
+
+    private static final String BLOCKLIST_TABLE = "blocklist";
+
+    private static final String MYSQL_CREATE_BLOCKLIST_TABLE =
+            "CREATE TABLE `" + BLOCKLIST_TABLE + "` (" +
+            " `uid` bigint(20) unsigned NOT NULL," +
+            " `jid_hash` char(40) CHARACTER SET ascii NOT NULL COMMENT 'SHA-1 of the blocked JID'," +
+            " `jid` varchar(300) NOT NULL COMMENT 'Blocked JID'," +
+            " PRIMARY KEY (`uid`, `jid_hash`)," +
+            " KEY `jid_hash` (`jid_hash`)," +
+            "CONSTRAINT FOREIGN KEY (`uid`) REFERENCES `tig_users` (`uid`) ON DELETE CASCADE" +
+            ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='Block lists'";
+
+    private static final String SELECT_QUERY_ID = "blocklist-select-query";
+    private static final String SELECT_QUERY_SQL = "SELECT jid FROM " + BLOCKLIST_TABLE +
+            " WHERE uid = ? AND jid_hash > ? ORDER BY jid_hash LIMIT ?";
+
+    private static final String SELECT_ALL_QUERY_ID = "blocklist-select-all-query";
+    private static final String SELECT_ALL_QUERY_SQL = "SELECT uid, jid_hash, jid FROM " + BLOCKLIST_TABLE +
+            " WHERE uid > ? OR (uid = ? AND jid_hash > ?) ORDER BY uid, jid_hash LIMIT ?";
+
+    private static final String INSERT_QUERY_ID = "blocklist-insert-query";
+    private static final String INSERT_QUERY_SQL = "INSERT IGNORE INTO " + BLOCKLIST_TABLE +
+            " (uid, jid_hash, jid) VALUES (?, ?, ?)";
+
+    private static final String DELETE_QUERY_ID = "blocklist-delete-query";
+    private static final String DELETE_QUERY_SQL = "DELETE FROM " + BLOCKLIST_TABLE +
+            " WHERE uid = ? AND jid_hash = ?";
+
+    private static final String SELECT_LEGACY_QUERY_ID = "blocklist-select-legacy-query";
+    private static final String SELECT_LEGACY_QUERY_SQL = "SELECT tig_users.user_id FROM tig_pairs" +
+            " INNER JOIN tig_nodes ON tig_pairs.nid = tig_nodes.nid" +
+            " INNER JOIN tig_users ON tig_pairs.uid = tig_users.uid" +
+            " WHERE tig_nodes.node = ? AND tig_pairs.pkey = ?";
+
+    private DataRepository repo;
+    private UserRepository userRepo;
+    private final UserUidCache uidCache = UserUidCache.getInstance();
+
+    @Override
+    public void init(Map<String, Object> props) throws DBInitException {
+        try {
+            String dbUri = (String) props.get("db-uri");
+            if (dbUri == null) {
+                // fallback on user database
+                dbUri = System.getProperty(RepositoryFactory.GEN_USER_DB_URI_PROP_KEY);
+            }
+            if (dbUri != null) {
+                repo = RepositoryFactory.getDataRepository(null, dbUri, null);
+                if (repo.getDatabaseType() == DataRepository.dbTypes.mysql)
+                    repo.checkTable(BLOCKLIST_TABLE, MYSQL_CREATE_BLOCKLIST_TABLE);
+                repo.initPreparedStatement(SELECT_QUERY_ID, SELECT_QUERY_SQL);
+                repo.initPreparedStatement(SELECT_ALL_QUERY_ID, SELECT_ALL_QUERY_SQL);
+                repo.initPreparedStatement(INSERT_QUERY_ID, INSERT_QUERY_SQL);
+                repo.initPreparedStatement(DELETE_QUERY_ID, DELETE_QUERY_SQL);
+                repo.initPreparedStatement(SELECT_LEGACY_QUERY_ID, SELECT_LEGACY_QUERY_SQL);
+                userRepo = RepositoryFactory.getUserRepository(null, dbUri, null);
+            }
+        }
+        catch (Exception e) {
+            throw new DBInitException("error initializing block list storage", e);
+        }
+    }
+
+    private long getUserUID(BareJID user) throws TigaseDBException {
+        long uid = uidCache.getUserUID(userRepo, user);
+        if (uid <= 0)
+            throw new UserNotFoundException("user not found: " + user);
+        return uid;
+    }
+
+    /** Returns the hash used as the item key. */
+    static String hash(BareJID jid) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            return Hex.toHexString(md.digest(jid.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+        catch (NoSuchAlgorithmException e) {
+            // SHA-1 is always available
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public List<BareJID> getBlocklist(BareJID user, BareJID after, int limit) throws TigaseDBException {
+        PreparedStatement stm;
+        ResultSet rs = null;
+        try {
+            long uid = getUserUID(user);
+            stm = repo.getPreparedStatement(user, SELECT_QUERY_ID);
+            synchronized (stm) {
+                stm.setLong(1, uid);
+                stm.setString(2, after != null ? hash(after) : "");
+                stm.setInt(3, limit);
+                rs = stm.executeQuery();
+
+                List<BareJID> list = new ArrayList<>();
+                while (rs.next()) {
+                    list.add(BareJID.bareJIDInstanceNS(rs.getString(1)));
+                }
+                return list;
+            }
+        }
+        catch (SQLException e) {
+            throw new TigaseDBException("database error", e);
+        }
+        finally {
+            repo.release(null, rs);
+        }
+    }
+
+    @Override
+    public void block(BareJID user, Collection<BareJID> jids) throws TigaseDBException {
+        PreparedStatement stm;
+        try {
+            long uid = getUserUID(user);
+            stm = repo.getPreparedStatement(user, INSERT_QUERY_ID);
+            synchronized (stm) {
+                try {
+                    for (BareJID jid : jids) {
+                        stm.setLong(1, uid);
+                        stm.setString(2, hash(jid));
+                        stm.setString(3, jid.toString());
+                        stm.addBatch();
+                    }
+                    stm.executeBatch();
+                }
+                finally {
+                    stm.clearBatch();
+                }
+            }
+        }
+        catch (SQLException e) {
+            throw new TigaseDBException("database error", e);
+        }
+    }
+
+    @Override
+    public void unblock(BareJID user, Collection<BareJID> jids) throws TigaseDBException {
+        PreparedStatement stm;
+        try {
+            long uid = getUserUID(user);
+            stm = repo.getPreparedStatement(user, DELETE_QUERY_ID);
+            synchronized (stm) {
+                try {
+                    for (BareJID jid : jids) {
+                        stm.setLong(1, uid);
+                        stm.setString(2, hash(jid));
+                        stm.addBatch();
+                    }
+                    stm.executeBatch();
+                }
+                finally {
+                    stm.clearBatch();
+                }
+            }
+        }
+        catch (SQLException e) {
+            throw new TigaseDBException("database error", e);
+        }
+    }
+
+    @Override
+    public void getAllItems(ItemHandler handler) throws TigaseDBException {
+        long lastUid = 0;
+        String lastHash = "";
+        while (true) {
+            PreparedStatement stm;
+            ResultSet rs = null;
+            int count = 0;
+            try {
+                stm = repo.getPreparedStatement(null, SELECT_ALL_QUERY_ID);
+                synchronized (stm) {
+                    stm.setLong(1, lastUid);
+                    stm.setLong(2, lastUid);
+                    stm.setString(3, lastHash);
+                    stm.setInt(4, DEFAULT_PAGE_SIZE);
+                    rs = stm.executeQuery();
+
+                    while (rs.next()) {
+                        lastUid = rs.getLong(1);
+                        lastHash = rs.getString(2);
+                        handler.item(lastUid, BareJID.bareJIDInstanceNS(rs.getString(3)));
+                        count++;
+                    }
+                }
+            }
+            catch (SQLException e) {
+                throw new TigaseDBException("database error", e);
+            }
+            finally {
+                repo.release(null, rs);
+            }
+
+            if (count < DEFAULT_PAGE_SIZE)
+                break;
+        }
+    }
+
+    @Override
+    public List<BareJID> getLegacyUsers(String node) throws TigaseDBException {
+        PreparedStatement stm;
+        ResultSet rs = null;
+        try {
+            stm = repo.getPreparedStatement(null, SELECT_LEGACY_QUERY_ID);
+            synchronized (stm) {
+                stm.setString(1, node);
+                stm.setString(2, node);
+                rs = stm.executeQuery();
+
+                List<BareJID> list = new ArrayList<>();
+                while (rs.next()) {
+                    list.add(BareJID.bareJIDInstanceNS(rs.getString(1)));
+                }
+                return list;
+            }
+        }
+        catch (SQLException e) {
+            throw new TigaseDBException("database error", e);
+        }
+        finally {
+            repo.release(null, rs);
+        }
+    }
+
+}
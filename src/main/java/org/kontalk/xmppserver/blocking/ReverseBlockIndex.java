@@ -0,0 +1,225 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.blocking;
+
+import tigase.db.TigaseDBException;
+import tigase.xmpp.BareJID;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Node-wide reverse block index: for each blocked user, the UIDs of the
+ * users who blocked it. Used by contact discovery to hide blocked and
+ * blocking users with a single lookup per contact.
+ * Users are indexed by local part, since it identifies a user network-wide.
+ * Blocker UIDs are kept in sorted arrays that are replaced on every change.
+ * Changes made through this node are applied right away; changes made by
+ * other nodes are seen when the index is reloaded, every
+ * {@value #REFRESH_INTERVAL_MINUTES} minutes. Each load builds a new index
+ * that replaces the current one when complete; changes made while loading
+ * are applied immediately and replayed onto the new index, so that rows
+ * read by the scan before they were deleted don't come back. Until
+ * {@link #isLoaded()} returns true, lookups may miss blocks that haven't
+ * been scanned yet.
+ * @author Daniele Ricci
+ */
+public class ReverseBlockIndex {
+
+    private static final Logger log = Logger.getLogger(ReverseBlockIndex.class.getName());
+
+    private static final ReverseBlockIndex instance = new ReverseBlockIndex();
+
+    /** Time between two loads of the whole index. */
+    private static final long REFRESH_INTERVAL_MINUTES = 10;
+
+    /** Replaced by every load. Changes are made while holding the lock on this. */
+    private volatile ConcurrentHashMap<String, long[]> blockers = new ConcurrentHashMap<>();
+    private final AtomicBoolean loading = new AtomicBoolean();
+    private volatile boolean loaded;
+    /** Changes made during a load, replayed when it ends. Guarded by this. */
+    private List<Consumer<Map<String, long[]>>> pending;
+
+    ReverseBlockIndex() {
+    }
+
+    public static ReverseBlockIndex getInstance() {
+        return instance;
+    }
+
+    /**
+     * Loads the whole index from the repository in a background thread, then
+     * reloads it periodically. Only the first call has effect.
+     */
+    public void loadAsync(BlocklistRepository repo) {
+        if (!loading.compareAndSet(false, true))
+            return;
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "blocklist-index-loader");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            long start = System.currentTimeMillis();
+            try {
+                boolean first = !loaded;
+                load(repo);
+                Level level = first ? Level.INFO : Level.FINE;
+                if (log.isLoggable(level)) {
+                    log.log(level, "Reverse block index loaded: {0} blocked users in {1} ms",
+                            new Object[] { blockers.size(), System.currentTimeMillis() - start });
+                }
+            }
+            catch (Exception e) {
+                // we'll try again at next refresh
+                log.log(Level.WARNING, "error loading reverse block index", e);
+            }
+        }, 0, REFRESH_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /** Scans the whole repository into a new index, replaying any change made meanwhile. */
+    void load(BlocklistRepository repo) throws TigaseDBException {
+        ConcurrentHashMap<String, long[]> fresh = new ConcurrentHashMap<>();
+        synchronized (this) {
+            pending = new ArrayList<>();
+        }
+        boolean success = false;
+        try {
+            repo.getAllItems((uid, jid) -> add(fresh, uid, jid));
+            success = true;
+        }
+        finally {
+            synchronized (this) {
+                if (success) {
+                    for (Consumer<Map<String, long[]>> change : pending) {
+                        change.accept(fresh);
+                    }
+                    blockers = fresh;
+                }
+                pending = null;
+            }
+        }
+        loaded = true;
+    }
+
+    /** Returns true once the index has been fully loaded from storage. */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /** Records that the given user blocked the given JIDs. */
+    public void blocked(long blockerUid, Collection<BareJID> jids) {
+        List<BareJID> items = new ArrayList<>(jids);
+        apply(map -> {
+            for (BareJID jid : items) {
+                add(map, blockerUid, jid);
+            }
+        });
+    }
+
+    /** Records that the given user unblocked the given JIDs. */
+    public void unblocked(long blockerUid, Collection<BareJID> jids) {
+        List<BareJID> items = new ArrayList<>(jids);
+        apply(map -> {
+            for (BareJID jid : items) {
+                String key = jid.getLocalpart();
+                if (key != null) {
+                    map.computeIfPresent(key, (k, uids) -> remove(uids, blockerUid));
+                }
+            }
+        });
+    }
+
+    /** Applies a live change, also recording it if a load is in progress. Changes are idempotent. */
+    private synchronized void apply(Consumer<Map<String, long[]>> change) {
+        if (pending != null)
+            pending.add(change);
+        change.accept(blockers);
+    }
+
+    private static void add(Map<String, long[]> map, long blockerUid, BareJID jid) {
+        String key = jid.getLocalpart();
+        if (key != null) {
+            map.compute(key, (k, uids) -> insert(uids, blockerUid));
+        }
+    }
+
+    /**
+     * Returns true if the user with the given local part was blocked by the given user.
+     * Before the index is loaded, only blocks made since startup are guaranteed to be found.
+     */
+    public boolean isBlockedBy(String localpart, long blockerUid) {
+        long[] uids = blockers.get(localpart);
+        return uids != null && Arrays.binarySearch(uids, blockerUid) >= 0;
+    }
+
+    /** Returns true if any of the two users blocked the other. */
+    public boolean isBlockedEitherWay(BareJID user, long userUid, BareJID contact, long contactUid) {
+        return isBlockedBy(user.getLocalpart(), contactUid) ||
+                isBlockedBy(contact.getLocalpart(), userUid);
+    }
+
+    /** Number of blocked users in the index. */
+    public int size() {
+        return blockers.size();
+    }
+
+    private static long[] insert(long[] uids, long uid) {
+        if (uids == null)
+            return new long[] { uid };
+
+        int index = Arrays.binarySearch(uids, uid);
+        if (index >= 0)
+            return uids;
+
+        index = -index - 1;
+        long[] result = new long[uids.length + 1];
+        System.arraycopy(uids, 0, result, 0, index);
+        result[index] = uid;
+        System.arraycopy(uids, index, result, index + 1, uids.length - index);
+        return result;
+    }
+
+    private static long[] remove(long[] uids, long uid) {
+        int index = Arrays.binarySearch(uids, uid);
+        if (index < 0)
+            return uids;
+        if (uids.length == 1)
+            return null;
+
+        long[] result = new long[uids.length - 1];
+        System.arraycopy(uids, 0, result, 0, index);
+        System.arraycopy(uids, index + 1, result, index, uids.length - index - 1);
+        return result;
+    }
+
+}
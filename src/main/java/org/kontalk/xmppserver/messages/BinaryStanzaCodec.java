@@ -0,0 +1,378 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.messages;
+
+import tigase.xml.CData;
+import tigase.xml.Element;
+import tigase.xml.XMLNodeIfc;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * Compact binary stanza codec.
+ * Element and attribute names (and common attribute values) are written as
+ * references to a static dictionary or to strings already seen in the same
+ * stanza; base64 character data is stored decoded. Big stanzas are deflated.
+ * Encoded data starts with a version byte which is never {@code '<'}, so it can
+ * be told apart from plain XML.
+ * @author Daniele Ricci
+ */
+public class BinaryStanzaCodec implements StanzaCodec {
+
+    private static final Logger log = Logger.getLogger(BinaryStanzaCodec.class.getName());
+
+    public static final byte VERSION = 1;
+
+    private static final int FLAG_DEFLATED = 0x01;
+
+    private static final int NODE_END = 0;
+    private static final int NODE_ELEMENT = 1;
+    private static final int NODE_CDATA = 2;
+    private static final int NODE_CDATA_BASE64 = 3;
+
+    /** Minimum length of character data to try base64 decoding on. */
+    private static final int MIN_BASE64_LENGTH = 64;
+
+    /**
+     * Static dictionary of common strings. Strings can only be appended to
+     * this list: changing existing entries breaks stored data.
+     */
+    private static final String[] DICTIONARY = {
+            "message", "presence", "iq", "body", "id", "type", "to", "from", "xmlns",
+            "jabber:client", "chat", "normal", "error", "subscribe", "subscribed",
+            "unsubscribe", "unsubscribed", "delay", "urn:xmpp:delay", "stamp",
+            "request", "received", "urn:xmpp:receipts", "x", "jabber:x:delay",
+            "jabber:x:encrypted", "e2e", "urn:ietf:params:xml:ns:xmpp-e2e:0",
+            "status", "show", "priority", "html", "http://jabber.org/protocol/xhtml-im",
+            "pubkey", "urn:xmpp:pubkey:2", "fingerprint", "forwarded", "urn:xmpp:forward:0",
+            "group", "http://kontalk.org/extensions/message#group", "chatstate",
+            "http://jabber.org/protocol/chatstates", "active", "composing", "paused",
+            "inactive", "gone", "storage", "url", "jabber:x:oob", "mime", "length",
+    };
+
+    private static final Map<String, Integer> DICTIONARY_INDEX;
+
+    static {
+        Map<String, Integer> index = new HashMap<>(DICTIONARY.length * 2);
+        for (int i = 0; i < DICTIONARY.length; i++)
+            index.put(DICTIONARY[i], i);
+        DICTIONARY_INDEX = Collections.unmodifiableMap(index);
+    }
+
+    private final int compressThreshold;
+
+    /**
+     * @param compressThreshold minimum encoded size (in bytes) for compression to be tried
+     */
+    public BinaryStanzaCodec(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+    }
+
+    @Override
+    public byte[] encode(Element stanza) {
+        Writer writer = new Writer();
+        writer.writeElement(stanza);
+        byte[] payload = writer.toByteArray();
+
+        int flags = 0;
+        int length = payload.length;
+        if (length >= compressThreshold) {
+            byte[] compressed = deflate(payload);
+            if (compressed != null) {
+                payload = compressed;
+                flags |= FLAG_DEFLATED;
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length + 7);
+        out.write(VERSION);
+        out.write(flags);
+        if ((flags & FLAG_DEFLATED) != 0)
+            writeVarint(out, length);
+        out.write(payload, 0, payload.length);
+        return out.toByteArray();
+    }
+
+    @Override
+    public Element decode(byte[] data) {
+        if (data.length < 2 || data[0] != VERSION) {
+            return null;
+        }
+
+        try {
+            int flags = data[1];
+            Reader reader;
+            if ((flags & FLAG_DEFLATED) != 0) {
+                Reader header = new Reader(data, 2);
+                int length = header.readVarint();
+                reader = new Reader(inflate(data, header.pos, length), 0);
+            }
+            else {
+                reader = new Reader(data, 2);
+            }
+            return reader.readElement();
+        }
+        catch (DataFormatException | RuntimeException e) {
+            log.log(Level.WARNING, "invalid encoded stanza", e);
+            return null;
+        }
+    }
+
+    /** Returns the deflated data, or null if compression did not reduce size. */
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buf = new byte[data.length];
+            int len = 0;
+            while (!deflater.finished() && len < buf.length) {
+                len += deflater.deflate(buf, len, buf.length - len);
+            }
+            return deflater.finished() && len < data.length ? Arrays.copyOf(buf, len) : null;
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data, int offset, int length) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, data.length - offset);
+            byte[] buf = new byte[length];
+            int len = 0;
+            while (len < length) {
+                int n = inflater.inflate(buf, len, length - len);
+                if (n == 0 && (inflater.finished() || inflater.needsInput()))
+                    throw new DataFormatException("truncated data");
+                len += n;
+            }
+            return buf;
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /** Returns the decoded data if the string is canonical base64, null otherwise. */
+    private static byte[] decodeBase64(String cdata) {
+        int len = cdata.length();
+        if (len < MIN_BASE64_LENGTH || (len & 3) != 0)
+            return null;
+
+        try {
+            byte[] decoded = Base64.getDecoder().decode(cdata);
+            // data must be encoded back exactly as it was
+            return Base64.getEncoder().encodeToString(decoded).equals(cdata) ? decoded : null;
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static final class Writer {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        void writeElement(Element elem) {
+            writeRef(elem.getName());
+
+            Map<String, String> attrs = elem.getAttributes();
+            if (attrs != null) {
+                writeVarint(out, attrs.size());
+                for (Map.Entry<String, String> attr : attrs.entrySet()) {
+                    writeRef(attr.getKey());
+                    writeRef(attr.getValue());
+                }
+            }
+            else {
+                writeVarint(out, 0);
+            }
+
+            // nodes are written in document order to keep mixed content intact
+            List<XMLNodeIfc> nodes = elem.getNodes();
+            if (nodes != null) {
+                for (XMLNodeIfc node : nodes) {
+                    if (node instanceof Element) {
+                        out.write(NODE_ELEMENT);
+                        writeElement((Element) node);
+                    }
+                    else if (node instanceof CData) {
+                        writeCData(((CData) node).getCData());
+                    }
+                }
+            }
+
+            out.write(NODE_END);
+        }
+
+        void writeCData(String cdata) {
+            if (cdata == null || cdata.length() == 0)
+                return;
+
+            byte[] binary = decodeBase64(cdata);
+            if (binary != null) {
+                out.write(NODE_CDATA_BASE64);
+                writeBytes(binary);
+            }
+            else {
+                out.write(NODE_CDATA);
+                writeString(cdata);
+            }
+        }
+
+        /**
+         * Writes a string reference: 0 followed by the string itself the first
+         * time it is seen, its index in the string table plus one otherwise.
+         */
+        void writeRef(String value) {
+            Integer index = DICTIONARY_INDEX.get(value);
+            if (index == null)
+                index = strings.get(value);
+
+            if (index != null) {
+                writeVarint(out, index + 1);
+            }
+            else {
+                strings.put(value, DICTIONARY.length + strings.size());
+                writeVarint(out, 0);
+                writeString(value);
+            }
+        }
+
+        void writeString(String value) {
+            writeBytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void writeBytes(byte[] data) {
+            writeVarint(out, data.length);
+            out.write(data, 0, data.length);
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] data;
+        private final List<String> strings = new ArrayList<>();
+        int pos;
+
+        Reader(byte[] data, int pos) {
+            this.data = data;
+            this.pos = pos;
+        }
+
+        Element readElement() {
+            Element elem = new Element(readRef(true));
+
+            int attrCount = readVarint();
+            for (int i = 0; i < attrCount; i++) {
+                String name = readRef(true);
+                String value = readRef(false);
+                if (name == "xmlns")
+                    elem.setXMLNS(value);
+                else
+                    elem.setAttribute(name, value);
+            }
+
+            while (true) {
+                int node = data[pos++];
+                switch (node) {
+                    case NODE_END:
+                        return elem;
+                    case NODE_ELEMENT:
+                        elem.addChild(readElement());
+                        break;
+                    case NODE_CDATA:
+                        elem.addCData(readString());
+                        break;
+                    case NODE_CDATA_BASE64:
+                        elem.addCData(Base64.getEncoder().encodeToString(readBytes()));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown node type " + node);
+                }
+            }
+        }
+
+        String readRef(boolean intern) {
+            int index = readVarint();
+            if (index == 0) {
+                String value = readString();
+                // names are interned by the XML parser too
+                if (intern)
+                    value = value.intern();
+                strings.add(value);
+                return value;
+            }
+            else if (--index < DICTIONARY.length) {
+                return DICTIONARY[index];
+            }
+            else {
+                String value = strings.get(index - DICTIONARY.length);
+                return intern ? value.intern() : value;
+            }
+        }
+
+        String readString() {
+            int len = readVarint();
+            String value = new String(data, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return value;
+        }
+
+        byte[] readBytes() {
+            int len = readVarint();
+            byte[] value = Arrays.copyOfRange(data, pos, pos + len);
+            pos += len;
+            return value;
+        }
+
+        int readVarint() {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                byte b = data[pos++];
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IllegalArgumentException("malformed varint");
+        }
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.messages;
+
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Append-only write-ahead log for the offline messages hot tier.
+ * Each line is either an added message:
+ * <pre>A id timestamp expire user compactKey base64(stanza)</pre>
+ * or a removed message (delivered or spilled to the database):
+ * <pre>D id</pre>
+ * The file is truncated every time no live message is left. Since a busy
+ * node may never get there, the log is also rewritten with live messages
+ * only when removed entries outnumber them.
+ * @author Daniele Ricci
+ */
+class HotTierLog {
+
+    private static final Logger log = Logger.getLogger(HotTierLog.class.getName());
+
+    /** A message recovered from the log. */
+    static final class Record {
+        final long id;
+        final PendingMessage message;
+
+        Record(long id, PendingMessage message) {
+            this.id = id;
+            this.message = message;
+        }
+    }
+
+    private static final String NO_KEY = "-";
+
+    /** Minimum number of dead lines before compacting the log. */
+    private static final int COMPACT_MIN_LINES = 10000;
+
+    private final File file;
+    private final boolean sync;
+
+    private FileOutputStream stream;
+    private Writer writer;
+    private int liveCount;
+    /** Lines belonging to removed messages. */
+    private int deadCount;
+
+    /**
+     * @param file the log file
+     * @param sync true to force every record to the storage device
+     */
+    HotTierLog(File file, boolean sync) {
+        this.file = file;
+        this.sync = sync;
+    }
+
+    /** Reads all messages still live in the log. */
+    synchronized List<Record> replay(XmlStanzaCodec codec) throws IOException {
+        Map<Long, Record> records = new LinkedHashMap<>();
+        if (file.exists()) {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    try {
+                        String[] parts = line.split(" ");
+                        if (parts[0].equals("A") && parts.length == 7) {
+                            long id = Long.parseLong(parts[1]);
+                            long timestamp = Long.parseLong(parts[2]);
+                            long expire = Long.parseLong(parts[3]);
+                            BareJID user = BareJID.bareJIDInstance(parts[4]);
+                            String compactKey = parts[5].equals(NO_KEY) ? null : parts[5];
+                            Element stanza = codec.decode(Base64.getDecoder().decode(parts[6]));
+                            if (stanza != null) {
+                                records.put(id, new Record(id, new PendingMessage(user, stanza,
+                                        expire > 0 ? new Date(expire) : null, compactKey, timestamp)));
+                            }
+                        }
+                        else if (parts[0].equals("D") && parts.length == 2) {
+                            records.remove(Long.parseLong(parts[1]));
+                        }
+                    }
+                    catch (Exception e) {
+                        // most probably a partially written last line
+                        log.log(Level.WARNING, "skipping invalid hot tier log entry", e);
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(records.values());
+    }
+
+    synchronized void open() throws IOException {
+        stream = new FileOutputStream(file, true);
+        writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+    }
+
+    synchronized void added(long id, PendingMessage msg, byte[] stanza) throws IOException {
+        Date expire = msg.getExpire();
+        writer.write("A " + id + " " + msg.getTimestamp() + " " + (expire != null ? expire.getTime() : 0) +
+                " " + msg.getUser() + " " + (msg.getCompactKey() != null ? msg.getCompactKey() : NO_KEY) +
+                " " + Base64.getEncoder().encodeToString(stanza) + "\n");
+        liveCount++;
+        flush();
+    }
+
+    synchronized void removed(long[] ids, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            writer.write("D " + ids[i] + "\n");
+        }
+        liveCount -= count;
+        // the add and the remove line
+        deadCount += count * 2;
+        if (liveCount <= 0) {
+            // nothing left: start over
+            truncate();
+        }
+        else if (deadCount >= COMPACT_MIN_LINES && deadCount > liveCount) {
+            compact();
+        }
+        else {
+            flush();
+        }
+    }
+
+    /** Empties the log. */
+    synchronized void truncate() throws IOException {
+        writer.flush();
+        stream.getChannel().truncate(0);
+        liveCount = 0;
+        deadCount = 0;
+    }
+
+    /** Rewrites the log keeping only live messages. */
+    private void compact() throws IOException {
+        writer.flush();
+
+        Map<String, String> live = new LinkedHashMap<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split(" ", 3);
+                if (parts.length < 2)
+                    continue;
+                if (parts[0].equals("A"))
+                    live.put(parts[1], line);
+                else if (parts[0].equals("D"))
+                    live.remove(parts[1]);
+            }
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            for (String line : live.values()) {
+                w.write(line);
+                w.write("\n");
+            }
+            w.flush();
+            out.getFD().sync();
+        }
+
+        writer.close();
+        try {
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally {
+            // keep appending to whichever file is in place
+            open();
+        }
+
+        liveCount = live.size();
+        deadCount = 0;
+        if (log.isLoggable(Level.FINE)) {
+            log.log(Level.FINE, "Hot tier log compacted: {0} live messages", liveCount);
+        }
+    }
+
+    private void flush() throws IOException {
+        writer.flush();
+        if (sync)
+            stream.getFD().sync();
+    }
+
+}
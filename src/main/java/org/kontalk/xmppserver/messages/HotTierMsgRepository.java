@@ -0,0 +1,462 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.messages;
+
+import tigase.db.DBInitException;
+import tigase.db.TigaseDBException;
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * An in-memory tier in front of another message repository.
+ * When a user disconnects, a grace period starts: messages for the user are
+ * kept in memory and delivered from there if the user comes back in time.
+ * Messages are spilled to the backend repository when the grace period
+ * expires, when the user buffer is full or when the memory limit is hit.
+ * Messages already sent to the client are not spilled: they stay in memory
+ * until they are deleted, or until they are released for redelivery, so
+ * that deleting them by id still works.
+ * An optional write-ahead log keeps in-memory messages safe from crashes.
+ * @author Daniele Ricci
+ */
+public class HotTierMsgRepository implements MsgRepository {
+
+    private static final Logger log = Logger.getLogger(HotTierMsgRepository.class.getName());
+
+    /** In-memory messages have ids starting from this value, above any database id. */
+    static final long HOT_ID_BASE = 1L << 62;
+
+    private static final long REAPER_INTERVAL = 1000;
+
+    private final MsgRepository backend;
+    private final long gracePeriod;
+    private final long maxMemory;
+    private final int maxUserMessages;
+    private final HotTierLog wal;
+    private final XmlStanzaCodec walCodec = new XmlStanzaCodec();
+
+    private final Map<BareJID, UserBuffer> buffers = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(HOT_ID_BASE);
+    private final AtomicLong memory = new AtomicLong();
+    private ScheduledExecutorService reaper;
+
+    private final AtomicLong statsStored = new AtomicLong();
+    private final AtomicLong statsDelivered = new AtomicLong();
+    private final AtomicLong statsSpilled = new AtomicLong();
+
+    private static final class HotMessage {
+        final long id;
+        final PendingMessage message;
+        final int size;
+        /** Set while the message is out to the client. Guarded by the buffer lock. */
+        boolean sent;
+
+        HotMessage(long id, PendingMessage message, int size) {
+            this.id = id;
+            this.message = message;
+            this.size = size;
+        }
+    }
+
+    private static final class UserBuffer {
+        final BareJID user;
+        final Deque<HotMessage> messages = new ArrayDeque<>();
+        final long deadline;
+        /**
+         * Set when the buffer has been spilled: no more messages can be added.
+         * Sent messages are kept until deleted or released.
+         */
+        boolean closed;
+
+        UserBuffer(BareJID user, long deadline) {
+            this.user = user;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * @param backend the repository messages will be spilled to
+     * @param gracePeriod time (in milliseconds) messages are kept in memory after a user disconnects
+     * @param maxMemory approximate maximum memory (in bytes) used by in-memory messages
+     * @param maxUserMessages maximum number of in-memory messages per user
+     * @param walFile write-ahead log file, null to disable crash safety
+     * @param walSync true to sync the write-ahead log to disk on every write
+     */
+    public HotTierMsgRepository(MsgRepository backend, long gracePeriod, long maxMemory,
+            int maxUserMessages, File walFile, boolean walSync) {
+        this.backend = backend;
+        this.gracePeriod = gracePeriod;
+        this.maxMemory = maxMemory;
+        this.maxUserMessages = maxUserMessages;
+        this.wal = walFile != null ? new HotTierLog(walFile, walSync) : null;
+    }
+
+    @Override
+    public void initRepository(String resource_uri, Map<String, String> params) throws DBInitException {
+        backend.initRepository(resource_uri, params);
+
+        if (wal != null) {
+            try {
+                // messages left in memory by a crash go straight to the database
+                List<HotTierLog.Record> records = wal.replay(walCodec);
+                if (records.size() > 0) {
+                    log.log(Level.INFO, "Recovering {0} offline messages from hot tier log", records.size());
+                    List<PendingMessage> messages = new ArrayList<>(records.size());
+                    for (HotTierLog.Record r : records)
+                        messages.add(r.message);
+                    backend.storeMessages(messages);
+                }
+                wal.open();
+                wal.truncate();
+            }
+            catch (IOException | TigaseDBException e) {
+                throw new DBInitException("unable to recover hot tier log", e);
+            }
+        }
+
+        if (reaper == null) {
+            reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "msgoffline-hot-tier");
+                t.setDaemon(true);
+                return t;
+            });
+            reaper.scheduleWithFixedDelay(this::reap, REAPER_INTERVAL, REAPER_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Starts the grace period for a disconnected user. */
+    public void startGracePeriod(BareJID user) {
+        buffers.computeIfAbsent(user, u -> new UserBuffer(u, System.currentTimeMillis() + gracePeriod));
+    }
+
+    @Override
+    public int expireMessages(int limit) throws TigaseDBException {
+        // in-memory messages will expire after being spilled
+        return backend.expireMessages(limit);
+    }
+
+    @Override
+    public List<StoredMessage> loadMessages(BareJID user, long afterId, int limit) throws TigaseDBException {
+        // older messages are in the backend: load them first
+        List<StoredMessage> messages;
+        if (afterId < HOT_ID_BASE) {
+            messages = backend.loadMessages(user, afterId, limit);
+            if (messages.size() >= limit)
+                return messages;
+        }
+        else {
+            messages = new ArrayList<>();
+        }
+
+        UserBuffer buffer = buffers.get(user);
+        if (buffer != null) {
+            synchronized (buffer) {
+                for (HotMessage msg : buffer.messages) {
+                    if (messages.size() >= limit)
+                        break;
+                    if (msg.id > afterId) {
+                        // callers may modify the stanza
+                        messages.add(new StoredMessage(msg.id, msg.message.getStanza().clone()));
+                        msg.sent = true;
+                    }
+                }
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public int deleteMessages(BareJID user, long[] ids) throws TigaseDBException {
+        long[] hotIds = new long[ids.length];
+        long[] coldIds = new long[ids.length];
+        int hotCount = 0, coldCount = 0;
+        for (long id : ids) {
+            if (id >= HOT_ID_BASE)
+                hotIds[hotCount++] = id;
+            else
+                coldIds[coldCount++] = id;
+        }
+
+        int deleted = 0;
+        if (coldCount > 0)
+            deleted += backend.deleteMessages(user, Arrays.copyOf(coldIds, coldCount));
+
+        UserBuffer buffer = buffers.get(user);
+        if (hotCount > 0 && buffer != null) {
+            // only ids actually removed go to the log, others might be gone already
+            long[] removedIds = new long[hotCount];
+            int removed = 0;
+            synchronized (buffer) {
+                Arrays.sort(hotIds, 0, hotCount);
+                Iterator<HotMessage> iter = buffer.messages.iterator();
+                while (iter.hasNext()) {
+                    HotMessage msg = iter.next();
+                    if (Arrays.binarySearch(hotIds, 0, hotCount, msg.id) >= 0) {
+                        iter.remove();
+                        memory.addAndGet(-msg.size);
+                        removedIds[removed++] = msg.id;
+                    }
+                }
+                if (buffer.closed && buffer.messages.isEmpty())
+                    buffers.remove(user, buffer);
+            }
+
+            if (removed > 0) {
+                statsDelivered.addAndGet(removed);
+                logRemoved(removedIds, removed);
+            }
+            deleted += removed;
+        }
+        return deleted;
+    }
+
+    /**
+     * Called when a message sent to the client is coming back for redelivery.
+     * The message will be delivered again at next login, or spilled.
+     */
+    public void released(BareJID user, long id) {
+        UserBuffer buffer = buffers.get(user);
+        if (id >= HOT_ID_BASE && buffer != null) {
+            synchronized (buffer) {
+                for (HotMessage msg : buffer.messages) {
+                    if (msg.id == id) {
+                        msg.sent = false;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void storeMessage(BareJID user, Element msg, Date expire, String compactKey) throws TigaseDBException {
+        UserBuffer buffer = buffers.get(user);
+        if (buffer != null) {
+            synchronized (buffer) {
+                if (!buffer.closed) {
+                    if (buffer.messages.size() >= maxUserMessages) {
+                        // too many messages for this user: stop buffering
+                        spill(buffer);
+                    }
+                    else {
+                        if (compactKey != null)
+                            removeCompacted(buffer, compactKey);
+
+                        PendingMessage pending = new PendingMessage(user, msg, expire, compactKey);
+                        byte[] data = walCodec.encode(msg);
+                        long id = nextId.getAndIncrement();
+                        if (wal != null) {
+                            try {
+                                wal.added(id, pending, data);
+                            }
+                            catch (IOException e) {
+                                throw new TigaseDBException("unable to write to hot tier log", e);
+                            }
+                        }
+
+                        buffer.messages.add(new HotMessage(id, pending, data.length));
+                        memory.addAndGet(data.length);
+                        statsStored.incrementAndGet();
+                        return;
+                    }
+                }
+            }
+        }
+
+        backend.storeMessage(user, msg, expire, compactKey);
+    }
+
+    /** Removes the in-memory message with the given compaction key, if any. Must hold the buffer lock. */
+    private void removeCompacted(UserBuffer buffer, String compactKey) {
+        Iterator<HotMessage> iter = buffer.messages.iterator();
+        while (iter.hasNext()) {
+            HotMessage msg = iter.next();
+            if (compactKey.equals(msg.message.getCompactKey())) {
+                iter.remove();
+                memory.addAndGet(-msg.size);
+                logRemoved(new long[] { msg.id }, 1);
+                break;
+            }
+        }
+    }
+
+    @Override
+    public int countMessages(BareJID user) throws TigaseDBException {
+        int count = backend.countMessages(user);
+        UserBuffer buffer = buffers.get(user);
+        if (buffer != null) {
+            synchronized (buffer) {
+                count += buffer.messages.size();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int deleteOldestMessages(BareJID user, int count) throws TigaseDBException {
+        // oldest messages are in the backend
+        int deleted = backend.deleteOldestMessages(user, count);
+
+        UserBuffer buffer = buffers.get(user);
+        if (deleted < count && buffer != null) {
+            long[] ids = new long[count - deleted];
+            int removed = 0;
+            synchronized (buffer) {
+                while (removed < ids.length && !buffer.messages.isEmpty()) {
+                    HotMessage msg = buffer.messages.removeFirst();
+                    memory.addAndGet(-msg.size);
+                    ids[removed++] = msg.id;
+                }
+            }
+            if (removed > 0)
+                logRemoved(ids, removed);
+            deleted += removed;
+        }
+        return deleted;
+    }
+
+    /** Spills expired buffers and, under memory pressure, the oldest ones. */
+    private void reap() {
+        try {
+            long now = System.currentTimeMillis();
+            List<UserBuffer> pressure = null;
+            for (UserBuffer buffer : buffers.values()) {
+                if (now >= buffer.deadline) {
+                    synchronized (buffer) {
+                        spill(buffer);
+                    }
+                }
+                else if (memory.get() > maxMemory) {
+                    if (pressure == null)
+                        pressure = new ArrayList<>();
+                    pressure.add(buffer);
+                }
+            }
+
+            if (pressure != null) {
+                // spill buffers expiring first until we are below the limit again
+                pressure.sort(Comparator.comparingLong(b -> b.deadline));
+                long target = maxMemory * 3 / 4;
+                for (UserBuffer buffer : pressure) {
+                    if (memory.get() <= target)
+                        break;
+                    synchronized (buffer) {
+                        spill(buffer);
+                    }
+                }
+            }
+        }
+        catch (Exception e) {
+            log.log(Level.WARNING, "unexpected error in hot tier reaper", e);
+        }
+    }
+
+    /**
+     * Writes all buffered messages not sent to the client to the backend and
+     * closes the buffer; the buffer is discarded once no message is left.
+     * If writing fails, messages are kept in the buffer and the reaper will
+     * try again. Must hold the buffer lock.
+     */
+    private void spill(UserBuffer buffer) {
+        List<PendingMessage> messages = new ArrayList<>();
+        List<HotMessage> spilled = new ArrayList<>();
+        for (HotMessage msg : buffer.messages) {
+            // sent messages will be deleted by id: the backend would give them a new one
+            if (!msg.sent) {
+                messages.add(msg.message);
+                spilled.add(msg);
+            }
+        }
+
+        int count = messages.size();
+        if (count > 0) {
+            try {
+                backend.storeMessages(messages);
+            }
+            catch (TigaseDBException e) {
+                // the buffer is still registered, so the reaper will find it again
+                log.log(Level.WARNING, "unable to spill offline messages for " + buffer.user + ", will retry", e);
+                return;
+            }
+
+            long[] ids = new long[count];
+            long size = 0;
+            for (int i = 0; i < count; i++) {
+                HotMessage msg = spilled.get(i);
+                ids[i] = msg.id;
+                size += msg.size;
+            }
+            buffer.messages.removeAll(spilled);
+
+            statsSpilled.addAndGet(count);
+            // messages are safe in the database now
+            logRemoved(ids, count);
+            memory.addAndGet(-size);
+        }
+
+        buffer.closed = true;
+        if (buffer.messages.isEmpty())
+            buffers.remove(buffer.user, buffer);
+    }
+
+    private void logRemoved(long[] ids, int count) {
+        if (wal != null) {
+            try {
+                wal.removed(ids, count);
+            }
+            catch (IOException e) {
+                log.log(Level.WARNING, "unable to write to hot tier log", e);
+            }
+        }
+    }
+
+    /** Number of messages stored in memory. */
+    public long getStoredCount() {
+        return statsStored.get();
+    }
+
+    /** Number of messages delivered straight from memory. */
+    public long getDeliveredCount() {
+        return statsDelivered.get();
+    }
+
+    /** Number of messages spilled to the backend. */
+    public long getSpilledCount() {
+        return statsSpilled.get();
+    }
+
+    /** Approximate memory used by in-memory messages, in bytes. */
+    public long getMemoryUsage() {
+        return memory.get();
+    }
+
+    public int getBufferCount() {
+        return buffers.size();
+    }
+
+}
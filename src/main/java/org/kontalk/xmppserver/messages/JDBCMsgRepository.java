@@ -18,16 +18,18 @@
 
 package org.kontalk.xmppserver.messages;
 
+import org.kontalk.xmppserver.util.UserUidCache;
 import tigase.db.*;
-import tigase.xml.DomBuilderHandler;
+import tigase.db.jdbc.DataRepositoryImpl;
 import tigase.xml.Element;
-import tigase.xml.SimpleParser;
-import tigase.xml.SingletonFactory;
 import tigase.xmpp.BareJID;
 
 import java.sql.*;
 import java.util.*;
 import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -46,123 +48,371 @@ public class JDBCMsgRepository implements MsgRepository {
     private static final String MSG_STANZA_COLUMN = "stanza";
     private static final String MSG_TIMESTAMP_COLUMN = "timestamp";
     private static final String MSG_EXPIRED_COLUMN = "expired";
+    private static final String MSG_COMPACT_KEY_COLUMN = "compact_key";
 
     private static final String MYSQL_CREATE_MSG_TABLE =
             "CREATE TABLE `"+MSG_TABLE+"` (" +
             " `"+MSG_ID_COLUMN+"` bigint(20) NOT NULL PRIMARY KEY AUTO_INCREMENT," +
             " `"+MSG_UID_COLUMN+"` bigint(20) unsigned NOT NULL," +
-            " `"+MSG_STANZA_COLUMN+"` mediumtext NOT NULL," +
+            " `"+MSG_STANZA_COLUMN+"` mediumblob NOT NULL," +
             " `"+MSG_TIMESTAMP_COLUMN+"` datetime NOT NULL," +
             " `"+MSG_EXPIRED_COLUMN+"` datetime DEFAULT NULL," +
+            " `"+MSG_COMPACT_KEY_COLUMN+"` char(40) CHARACTER SET ascii DEFAULT NULL," +
+            " KEY `"+MSG_EXPIRED_COLUMN+"` (`"+MSG_EXPIRED_COLUMN+"`)," +
+            " KEY `"+MSG_COMPACT_KEY_COLUMN+"` (`"+MSG_UID_COLUMN+"`, `"+MSG_COMPACT_KEY_COLUMN+"`)," +
             "CONSTRAINT FOREIGN KEY (`"+MSG_UID_COLUMN+"`) REFERENCES `tig_users` (`uid`) ON DELETE CASCADE" +
             ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='Offline message storage'";
 
     private static final String MSG_QUERY_LOAD_ID = "messages_load";
-    private static final String MSG_QUERY_LOAD_SQL = "select * from " + MSG_TABLE + " where "+MSG_UID_COLUMN+" = ?";
+    private static final String MSG_QUERY_LOAD_SQL = "select " + MSG_ID_COLUMN + ", " + MSG_STANZA_COLUMN +
+            " from " + MSG_TABLE + " where " + MSG_UID_COLUMN + " = ? and " + MSG_ID_COLUMN + " > ?" +
+            " order by " + MSG_ID_COLUMN + " limit ?";
 
     private static final String MSG_QUERY_STORE_ID = "messages_store";
-    private static final String MSG_QUERY_STORE_SQL = "insert into " + MSG_TABLE + " VALUES (NULL, ?, ?, ?, ?)";
+    private static final String MSG_QUERY_STORE_SQL = "insert into " + MSG_TABLE + " (" + MSG_UID_COLUMN + ", " +
+            MSG_STANZA_COLUMN + ", " + MSG_TIMESTAMP_COLUMN + ", " + MSG_EXPIRED_COLUMN + ", " + MSG_COMPACT_KEY_COLUMN +
+            ") VALUES (?, ?, ?, ?, ?)";
 
-    private static final String MSG_QUERY_DELETE_ID = "messages_delete";
-    private static final String MSG_QUERY_DELETE_SQL = "delete from " + MSG_TABLE + " where "+MSG_UID_COLUMN+" = ?";
+    private static final String MSG_QUERY_STORE_BATCH_ID = "messages_store_batch";
 
-    private static final String MSG_QUERY_DELETE_EXPIRED_SQL = "delete from " + MSG_TABLE + " where expired < now()";
+    private static final String MSG_QUERY_COMPACT_ID = "messages_compact";
+    private static final String MSG_QUERY_COMPACT_BATCH_ID = "messages_compact_batch";
+    private static final String MSG_QUERY_COMPACT_SQL = "delete from " + MSG_TABLE + " where " + MSG_UID_COLUMN +
+            " = ? and " + MSG_COMPACT_KEY_COLUMN + " = ?";
+
+    private static final String MSG_QUERY_COUNT_ID = "messages_count";
+    private static final String MSG_QUERY_COUNT_SQL = "select count(*) from " + MSG_TABLE + " where " + MSG_UID_COLUMN + " = ?";
+
+    private static final String MSG_QUERY_DELETE_OLDEST_ID = "messages_delete_oldest";
+    private static final String MSG_QUERY_DELETE_OLDEST_SQL = "delete from " + MSG_TABLE + " where " + MSG_UID_COLUMN +
+            " = ? order by " + MSG_ID_COLUMN + " limit ?";
+
+    private static final String MSG_QUERY_DELETE_SQL = "delete from " + MSG_TABLE + " where " + MSG_UID_COLUMN + " = ";
+
+    private static final String MSG_QUERY_SELECT_EXPIRED_ID = "messages_select_expired";
+    private static final String MSG_QUERY_SELECT_EXPIRED_SQL = "select " + MSG_ID_COLUMN + " from " + MSG_TABLE +
+            " where " + MSG_EXPIRED_COLUMN + " < now() order by " + MSG_EXPIRED_COLUMN + " limit ?";
+
+    private static final String MSG_QUERY_DELETE_EXPIRED_SQL = "delete from " + MSG_TABLE + " where " + MSG_ID_COLUMN + " in (";
+
+    /** Minimum encoded stanza size for compression. */
+    private static final int DEF_COMPRESS_THRESHOLD = 512;
+
+    /** Maximum time to wait for a batch connection. */
+    private static final long BATCH_CONNECTION_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
 
     private boolean initialized = false;
 
     private DataRepository data_repo;
+    /** Dedicated connections for batch writes, so each batch can run in its own transaction. */
+    private final BlockingQueue<DataRepository> batchRepos;
+    private final UserUidCache uidCache = UserUidCache.getInstance();
     private UserRepository user_repo;
 
-    private SimpleParser parser = SingletonFactory.getParserInstance();
+    private final StanzaCodec codec;
+    private final XmlStanzaCodec xmlCodec = new XmlStanzaCodec();
+    private final BinaryStanzaCodec binaryCodec;
+
+    public JDBCMsgRepository() {
+        this(null, 1);
+    }
+
+    /**
+     * @param codec the codec used to store stanzas, null for the default binary codec
+     * @param batchConnections number of dedicated connections for batch writes
+     */
+    public JDBCMsgRepository(StanzaCodec codec, int batchConnections) {
+        this.binaryCodec = new BinaryStanzaCodec(DEF_COMPRESS_THRESHOLD);
+        this.codec = codec != null ? codec : binaryCodec;
+        this.batchRepos = new ArrayBlockingQueue<>(Math.max(1, batchConnections));
+    }
 
     @Override
-    public int expireMessages() throws TigaseDBException {
+    public int expireMessages(int limit) throws TigaseDBException {
+        PreparedStatement selectStmt;
         Statement stmt = null;
+        ResultSet rs = null;
 
         try {
+            // select a chunk of expired ids using the index on expiration...
+            long[] ids = new long[limit];
+            int count = 0;
+            selectStmt = data_repo.getPreparedStatement(null, MSG_QUERY_SELECT_EXPIRED_ID);
+            synchronized (selectStmt) {
+                selectStmt.setInt(1, limit);
+                rs = selectStmt.executeQuery();
+                while (rs.next() && count < limit) {
+                    ids[count++] = rs.getLong(1);
+                }
+            }
+
+            if (count == 0)
+                return 0;
+
+            // ...then delete them by primary key, locking only those rows
+            Arrays.sort(ids, 0, count);
+            StringBuilder sql = new StringBuilder(MSG_QUERY_DELETE_EXPIRED_SQL);
+            for (int i = 0; i < count; i++) {
+                if (i > 0)
+                    sql.append(',');
+                sql.append(ids[i]);
+            }
+            sql.append(')');
+
             stmt = data_repo.createStatement(null);
-            return stmt.executeUpdate(MSG_QUERY_DELETE_EXPIRED_SQL);
+            return stmt.executeUpdate(sql.toString());
         }
         catch (SQLException e) {
             throw new TigaseDBException("database error", e);
         }
         finally {
+            data_repo.release(null, rs);
             data_repo.release(stmt, null);
         }
     }
 
     @Override
-    public Queue<Element> loadMessagesToJID(BareJID user, boolean delete) throws TigaseDBException {
+    public List<StoredMessage> loadMessages(BareJID user, long afterId, int limit) throws TigaseDBException {
         PreparedStatement stmt;
         ResultSet rs = null;
 
         try {
-            long uid = user_repo.getUserUID(user);
+            long uid = uidCache.getUserUID(user_repo, user);
             if (uid <= 0)
                 throw new UserNotFoundException("user not found: " + user);
             stmt = data_repo.getPreparedStatement(user, MSG_QUERY_LOAD_ID);
-            StringBuilder sb = new StringBuilder();
+
+            List<StoredMessage> messages = new ArrayList<>(limit);
+            long[] invalid = null;
+            int invalidCount = 0;
             synchronized (stmt) {
                 stmt.setLong(1, uid);
+                stmt.setLong(2, afterId);
+                stmt.setInt(3, limit);
                 rs = stmt.executeQuery();
 
                 while (rs.next()) {
-                    String stanza = rs.getString(MSG_STANZA_COLUMN);
-                    sb.append(stanza);
+                    long id = rs.getLong(1);
+                    Element stanza = decodeStanza(rs.getBytes(2));
+                    if (stanza != null) {
+                        messages.add(new StoredMessage(id, stanza));
+                    }
+                    else {
+                        log.log(Level.WARNING, "unable to parse stored message {0}, deleting it", id);
+                        if (invalid == null)
+                            invalid = new long[limit];
+                        invalid[invalidCount++] = id;
+                    }
                 }
             }
 
-            if (sb.length() > 0) {
-                DomBuilderHandler domHandler = new DomBuilderHandler();
-                char[] data = sb.toString().toCharArray();
-                parser.parse(domHandler, data, 0, data.length);
+            // undeliverable rows would otherwise be loaded again at every login
+            if (invalidCount > 0)
+                deleteMessages(user, Arrays.copyOf(invalid, invalidCount));
 
-                Queue<Element> elements = domHandler.getParsedElements();
+            return messages;
+        }
+        catch (SQLException e) {
+            throw new TigaseDBException("database error", e);
+        }
+        finally {
+            data_repo.release(null, rs);
+        }
+    }
+
+    /** Decodes a stored stanza, also supporting rows written as plain XML. */
+    private Element decodeStanza(byte[] data) {
+        if (data.length > 0 && data[0] == BinaryStanzaCodec.VERSION)
+            return binaryCodec.decode(data);
+        else
+            return xmlCodec.decode(data);
+    }
 
-                if (delete)
-                    deleteMessages(uid);
+    @Override
+    public int deleteMessages(BareJID user, long[] ids) throws TigaseDBException {
+        if (ids.length == 0)
+            return 0;
 
-                // we will return the data only when everything went well
-                return elements;
+        Statement stmt = null;
+
+        try {
+            long uid = uidCache.getUserUID(user_repo, user);
+            if (uid <= 0)
+                throw new UserNotFoundException("user not found: " + user);
+
+            // ids are numbers so it's safe to build the statement by hand
+            StringBuilder sql = new StringBuilder(MSG_QUERY_DELETE_SQL)
+                    .append(uid)
+                    .append(" and ")
+                    .append(MSG_ID_COLUMN)
+                    .append(" in (");
+            for (int i = 0; i < ids.length; i++) {
+                if (i > 0)
+                    sql.append(',');
+                sql.append(ids[i]);
             }
+            sql.append(')');
+
+            stmt = data_repo.createStatement(user);
+            return stmt.executeUpdate(sql.toString());
         }
         catch (SQLException e) {
             throw new TigaseDBException("database error", e);
         }
         finally {
-            data_repo.release(null, rs);
+            data_repo.release(stmt, null);
         }
+    }
+
+    @Override
+    public void storeMessage(BareJID user, Element msg, Date expire, String compactKey) throws TigaseDBException {
+        PreparedStatement stmt;
 
-        return null;
+        try {
+            long uid = uidCache.getUserUID(user_repo, user);
+            if (uid <= 0)
+                throw new UserNotFoundException("user not found: " + user);
+
+            if (compactKey != null) {
+                // replace any previous message with the same key
+                stmt = data_repo.getPreparedStatement(user, MSG_QUERY_COMPACT_ID);
+                synchronized (stmt) {
+                    stmt.setLong(1, uid);
+                    stmt.setString(2, compactKey);
+                    stmt.executeUpdate();
+                }
+            }
+
+            stmt = data_repo.getPreparedStatement(user, MSG_QUERY_STORE_ID);
+            synchronized (stmt) {
+                setStoreParameters(stmt, uid, msg, System.currentTimeMillis(), expire, compactKey);
+                stmt.execute();
+            }
+        }
+        catch (SQLException e) {
+            throw new TigaseDBException("database error", e);
+        }
+    }
+
+    @Override
+    public void storeMessages(List<PendingMessage> messages) throws TigaseDBException {
+        // only the last message for each compaction key will be stored
+        long[] uids = new long[messages.size()];
+        Set<String> compacted = new HashSet<>();
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            PendingMessage msg = messages.get(i);
+            if (msg.getCompactKey() != null && !compacted.add(msg.getUser() + "/" + msg.getCompactKey()))
+                continue;
+
+            uids[i] = uidCache.getUserUID(user_repo, msg.getUser());
+            if (uids[i] <= 0 && log.isLoggable(Level.FINEST)) {
+                log.log(Level.FINEST, "discarding message for unknown user {0}", msg.getUser());
+            }
+        }
+
+        DataRepository repo;
+        try {
+            repo = batchRepos.poll(BATCH_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            throw new TigaseDBException("interrupted waiting for a batch connection", e);
+        }
+        if (repo == null)
+            throw new TigaseDBException("no batch connection available");
+
+        try {
+            // the connection is ours until we put it back, no need to synchronize
+            PreparedStatement compactStmt = repo.getPreparedStatement(null, MSG_QUERY_COMPACT_BATCH_ID);
+            PreparedStatement stmt = repo.getPreparedStatement(null, MSG_QUERY_STORE_BATCH_ID);
+            Connection conn = stmt.getConnection();
+            conn.setAutoCommit(false);
+            try {
+                int count = 0, compactCount = 0;
+                for (int i = 0; i < uids.length; i++) {
+                    if (uids[i] <= 0)
+                        continue;
+
+                    PendingMessage msg = messages.get(i);
+                    String compactKey = msg.getCompactKey();
+                    if (compactKey != null) {
+                        compactStmt.setLong(1, uids[i]);
+                        compactStmt.setString(2, compactKey);
+                        compactStmt.addBatch();
+                        compactCount++;
+                    }
+
+                    setStoreParameters(stmt, uids[i], msg.getStanza(), msg.getTimestamp(), msg.getExpire(), compactKey);
+                    stmt.addBatch();
+                    count++;
+                }
+
+                // rows are written in a single round trip for each statement
+                if (compactCount > 0)
+                    compactStmt.executeBatch();
+                if (count > 0)
+                    stmt.executeBatch();
+
+                // all or nothing, so the batch can be safely retried
+                conn.commit();
+            }
+            catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+            finally {
+                // do not leave half a batch around in case of errors
+                compactStmt.clearBatch();
+                stmt.clearBatch();
+                conn.setAutoCommit(true);
+            }
+        }
+        catch (SQLException e) {
+            throw new TigaseDBException("database error", e);
+        }
+        finally {
+            batchRepos.offer(repo);
+        }
     }
 
-    private int deleteMessages(long uid) throws SQLException {
-        PreparedStatement stmt = data_repo.getPreparedStatement(null, MSG_QUERY_DELETE_ID);
-        synchronized (stmt) {
-            stmt.setLong(1, uid);
-            return stmt.executeUpdate();
+    @Override
+    public int countMessages(BareJID user) throws TigaseDBException {
+        PreparedStatement stmt;
+        ResultSet rs = null;
+
+        try {
+            long uid = uidCache.getUserUID(user_repo, user);
+            if (uid <= 0)
+                throw new UserNotFoundException("user not found: " + user);
+
+            stmt = data_repo.getPreparedStatement(user, MSG_QUERY_COUNT_ID);
+            synchronized (stmt) {
+                stmt.setLong(1, uid);
+                rs = stmt.executeQuery();
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        }
+        catch (SQLException e) {
+            throw new TigaseDBException("database error", e);
+        }
+        finally {
+            data_repo.release(null, rs);
         }
     }
 
     @Override
-    public void storeMessage(BareJID user, Element msg, Date expire) throws TigaseDBException {
+    public int deleteOldestMessages(BareJID user, int count) throws TigaseDBException {
         PreparedStatement stmt;
 
         try {
-            long uid = user_repo.getUserUID(user);
+            long uid = uidCache.getUserUID(user_repo, user);
             if (uid <= 0)
                 throw new UserNotFoundException("user not found: " + user);
 
-            stmt = data_repo.getPreparedStatement(user, MSG_QUERY_STORE_ID);
+            stmt = data_repo.getPreparedStatement(user, MSG_QUERY_DELETE_OLDEST_ID);
             synchronized (stmt) {
                 stmt.setLong(1, uid);
-                stmt.setString(2, msg.toString());
-                stmt.setTimestamp(3, new java.sql.Timestamp(System.currentTimeMillis()));
-                if (expire != null)
-                    stmt.setTimestamp(4, new java.sql.Timestamp(expire.getTime()));
-                else
-                    stmt.setNull(4, Types.TIMESTAMP);
-                stmt.execute();
+                stmt.setInt(2, count);
+                return stmt.executeUpdate();
             }
         }
         catch (SQLException e) {
@@ -170,6 +420,20 @@ public class JDBCMsgRepository implements MsgRepository {
         }
     }
 
+    private void setStoreParameters(PreparedStatement stmt, long uid, Element msg, long timestamp, Date expire, String compactKey) throws SQLException {
+        stmt.setLong(1, uid);
+        stmt.setBytes(2, codec.encode(msg));
+        stmt.setTimestamp(3, new java.sql.Timestamp(timestamp));
+        if (expire != null)
+            stmt.setTimestamp(4, new java.sql.Timestamp(expire.getTime()));
+        else
+            stmt.setNull(4, Types.TIMESTAMP);
+        if (compactKey != null)
+            stmt.setString(5, compactKey);
+        else
+            stmt.setNull(5, Types.CHAR);
+    }
+
     @Override
     public void initRepository(String resource_uri, Map<String, String> params) throws DBInitException {
         if (initialized) {
@@ -185,7 +449,19 @@ public class JDBCMsgRepository implements MsgRepository {
             checkDB();
             data_repo.initPreparedStatement(MSG_QUERY_LOAD_ID, MSG_QUERY_LOAD_SQL);
             data_repo.initPreparedStatement(MSG_QUERY_STORE_ID, MSG_QUERY_STORE_SQL);
-            data_repo.initPreparedStatement(MSG_QUERY_DELETE_ID, MSG_QUERY_DELETE_SQL);
+            data_repo.initPreparedStatement(MSG_QUERY_SELECT_EXPIRED_ID, MSG_QUERY_SELECT_EXPIRED_SQL);
+            data_repo.initPreparedStatement(MSG_QUERY_COMPACT_ID, MSG_QUERY_COMPACT_SQL);
+            data_repo.initPreparedStatement(MSG_QUERY_COUNT_ID, MSG_QUERY_COUNT_SQL);
+            data_repo.initPreparedStatement(MSG_QUERY_DELETE_OLDEST_ID, MSG_QUERY_DELETE_OLDEST_SQL);
+
+            // not shared with the repository pool: transactions would affect other statements
+            while (batchRepos.remainingCapacity() > 0) {
+                DataRepository repo = new DataRepositoryImpl();
+                repo.initRepository(resource_uri, params);
+                repo.initPreparedStatement(MSG_QUERY_STORE_BATCH_ID, MSG_QUERY_STORE_SQL);
+                repo.initPreparedStatement(MSG_QUERY_COMPACT_BATCH_ID, MSG_QUERY_COMPACT_SQL);
+                batchRepos.offer(repo);
+            }
 
             user_repo = RepositoryFactory.getUserRepository(null, resource_uri, params);
         }
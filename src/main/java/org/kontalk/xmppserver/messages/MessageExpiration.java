@@ -0,0 +1,124 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.messages;
+
+import tigase.db.TigaseDBException;
+
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Purges expired messages in small chunks, pausing between chunks so
+ * concurrent writes are not stalled. A single run stops when there are no more
+ * expired messages or when its time budget runs out; any leftover will be
+ * purged by the next run.
+ * @author Daniele Ricci
+ */
+public class MessageExpiration extends TimerTask {
+
+    private static final Logger log = Logger.getLogger(MessageExpiration.class.getName());
+
+    private final MsgRepository repo;
+    private final int chunkSize;
+    private final long timeBudget;
+    private final long pause;
+
+    private volatile long statsLastPurged;
+    private volatile long statsLastTime;
+    private volatile long statsTotalPurged;
+    private volatile long statsTotalTime;
+
+    /**
+     * @param repo the repository to purge
+     * @param chunkSize maximum number of messages deleted at once
+     * @param timeBudget maximum duration (in milliseconds) of a single run
+     * @param pause pause (in milliseconds) between chunks
+     */
+    public MessageExpiration(MsgRepository repo, int chunkSize, long timeBudget, long pause) {
+        this.repo = repo;
+        this.chunkSize = chunkSize;
+        this.timeBudget = timeBudget;
+        this.pause = pause;
+    }
+
+    @Override
+    public void run() {
+        if (log.isLoggable(Level.FINEST)) {
+            log.finest("Purging expired messages.");
+        }
+
+        long start = System.currentTimeMillis();
+        long deadline = start + timeBudget;
+        long purged = 0;
+
+        try {
+            while (true) {
+                int count = repo.expireMessages(chunkSize);
+                purged += count;
+                if (count < chunkSize)
+                    break;
+
+                if (System.currentTimeMillis() + pause >= deadline) {
+                    log.log(Level.FINE, "Time budget exhausted, expired messages left for the next run");
+                    break;
+                }
+
+                Thread.sleep(pause);
+            }
+        }
+        catch (TigaseDBException e) {
+            log.log(Level.WARNING, "error purging expired messages", e);
+        }
+        catch (InterruptedException ignored) {
+        }
+        finally {
+            long elapsed = System.currentTimeMillis() - start;
+            statsLastPurged = purged;
+            statsLastTime = elapsed;
+            statsTotalPurged += purged;
+            statsTotalTime += elapsed;
+
+            if (log.isLoggable(Level.FINE)) {
+                log.log(Level.FINE, "Purged {0} expired messages in {1} ms", new Object[] { purged, elapsed });
+            }
+        }
+    }
+
+    /** Number of messages purged by the last run. */
+    public long getLastPurged() {
+        return statsLastPurged;
+    }
+
+    /** Duration of the last run, in milliseconds. */
+    public long getLastTime() {
+        return statsLastTime;
+    }
+
+    public long getTotalPurged() {
+        return statsTotalPurged;
+    }
+
+    /** Total duration of all runs, in milliseconds. */
+    public long getTotalTime() {
+        return statsTotalTime;
+    }
+
+}
@@ -20,12 +20,15 @@ package org.kontalk.xmppserver.messages;
 
 import tigase.db.Repository;
 import tigase.db.TigaseDBException;
+import tigase.db.UserNotFoundException;
 import tigase.xml.Element;
 import tigase.xmpp.BareJID;
 import tigase.xmpp.JID;
 import tigase.xmpp.XMPPResourceConnection;
 
+import java.util.ArrayDeque;
 import java.util.Date;
+import java.util.List;
 import java.util.Queue;
 
 
@@ -36,19 +39,99 @@ import java.util.Queue;
  */
 public interface MsgRepository extends Repository {
 
+    /** Default number of messages to load in a single page. */
+    int DEFAULT_PAGE_SIZE = 100;
+
     /**
-     * Deletes all expired messages.
+     * Deletes expired messages, up to the given number of messages.
+     * Use repeatedly to purge all expired messages in small chunks.
+     * @param limit maximum number of messages to delete
      * @return number of deleted expired messages
      */
-    int expireMessages() throws TigaseDBException;
+    int expireMessages(int limit) throws TigaseDBException;
+
+    /**
+     * Loads all payloads for the given user's {@link JID} from repository.
+     * This will load everything in memory: use {@link #loadMessages} for big queues.
+     */
+    default Queue<Element> loadMessagesToJID(BareJID user, boolean delete) throws TigaseDBException {
+        Queue<Element> elements = new ArrayDeque<>();
+        long lastId = 0;
+        List<StoredMessage> page;
+        do {
+            page = loadMessages(user, lastId, DEFAULT_PAGE_SIZE);
+            if (page.isEmpty())
+                break;
+
+            long[] ids = new long[page.size()];
+            for (int i = 0; i < ids.length; i++) {
+                StoredMessage msg = page.get(i);
+                elements.offer(msg.getStanza());
+                ids[i] = msg.getId();
+            }
+            lastId = ids[ids.length - 1];
+
+            if (delete)
+                deleteMessages(user, ids);
+        } while (page.size() >= DEFAULT_PAGE_SIZE);
+
+        return elements.isEmpty() ? null : elements;
+    }
+
+    /**
+     * Loads a page of payloads for the given user, in storage order.
+     * @param afterId only messages stored after this id will be returned (use 0 for the first page)
+     * @param limit maximum number of messages to return
+     * @return the loaded messages, or an empty list if there are no more messages
+     */
+    List<StoredMessage> loadMessages(BareJID user, long afterId, int limit) throws TigaseDBException;
 
-    /** Loads all payloads for the given user's {@link JID} from repository. */
-    Queue<Element> loadMessagesToJID(BareJID user, boolean delete) throws TigaseDBException;
+    /**
+     * Deletes the given messages.
+     * @param ids ids of the messages to delete, as returned by {@link #loadMessages}
+     * @return number of deleted messages
+     */
+    int deleteMessages(BareJID user, long[] ids) throws TigaseDBException;
 
     /**
      * Saves the massage to the repository.
      * @param expire date of expiration (UTC)
      */
-    void storeMessage(BareJID user, Element msg, Date expire) throws TigaseDBException;
+    default void storeMessage(BareJID user, Element msg, Date expire) throws TigaseDBException {
+        storeMessage(user, msg, expire, null);
+    }
+
+    /**
+     * Saves the massage to the repository, replacing any message for the
+     * same user with the same compaction key.
+     * @param expire date of expiration (UTC)
+     * @param compactKey compaction key, null to never replace messages
+     */
+    void storeMessage(BareJID user, Element msg, Date expire, String compactKey) throws TigaseDBException;
+
+    /** Returns the number of messages stored for the given user. */
+    int countMessages(BareJID user) throws TigaseDBException;
+
+    /**
+     * Deletes the oldest messages for the given user.
+     * @return number of deleted messages
+     */
+    int deleteOldestMessages(BareJID user, int count) throws TigaseDBException;
+
+    /**
+     * Saves the given messages to the repository, possibly in a single batch.
+     * Messages for unknown users are discarded. Implementations should store
+     * either all of the messages or none of them, so a failed batch can be
+     * retried; this default implementation does not guarantee that.
+     */
+    default void storeMessages(List<PendingMessage> messages) throws TigaseDBException {
+        for (PendingMessage msg : messages) {
+            try {
+                storeMessage(msg.getUser(), msg.getStanza(), msg.getExpire(), msg.getCompactKey());
+            }
+            catch (UserNotFoundException ignored) {
+            }
+        }
+    }
 
 }
@@ -0,0 +1,274 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.messages;
+
+import tigase.server.Packet;
+import tigase.server.XMPPServer;
+import tigase.server.xmppsession.SessionManager;
+import tigase.xmpp.BareJID;
+import tigase.xmpp.XMPPResourceConnection;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Delivers big offline backlogs in windows.
+ * The next window is sent when most of the previous one has been
+ * acknowledged by the client; window size follows the acknowledgement rate,
+ * so slow links get smaller windows. Clients not acknowledging anything
+ * (e.g. not using stream management) get the rest of the backlog at once
+ * after a timeout.
+ * Windows are loaded and sent by the delivery executor; the pacer thread
+ * only looks for stalled deliveries.
+ * @author Daniele Ricci
+ */
+public class OfflineDeliveryPacer implements OfflineDeliveryTracker.AckListener {
+
+    private static final Logger log = Logger.getLogger(OfflineDeliveryPacer.class.getName());
+
+    /** Window size is computed to be acknowledged in about this time (in milliseconds). */
+    private static final long TARGET_WINDOW_TIME = 1000;
+
+    private static final long CHECK_INTERVAL = 1000;
+
+    /** Delivery cursor through a user's backlog. */
+    public static final class Cursor {
+        final XMPPResourceConnection session;
+        final BareJID user;
+        /** Last delivered storage id. */
+        long lastId;
+        /** Set when the backlog has been entirely delivered. */
+        boolean done;
+
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        int windowSize;
+        int windowCount;
+        long windowStart;
+        volatile long lastProgress;
+        volatile boolean acked;
+
+        Cursor(XMPPResourceConnection session, BareJID user, int windowSize) {
+            this.session = session;
+            this.user = user;
+            this.windowSize = windowSize;
+        }
+    }
+
+    /** Loads offline messages into a queue. */
+    public interface WindowHandler {
+        /**
+         * Loads up to limit messages after the cursor position, updating the cursor.
+         * @return the number of delivered messages waiting for acknowledgement
+         */
+        int deliver(Cursor cursor, Queue<Packet> results, int limit);
+    }
+
+    private final WindowHandler handler;
+    private final int initialWindow;
+    private final int minWindow;
+    private final int maxWindow;
+    private final long stallTimeout;
+
+    private final Map<BareJID, Cursor> cursors = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor;
+    private final Executor deliveryExecutor;
+
+    private final AtomicLong statsWindows = new AtomicLong();
+    private final AtomicLong statsUnpaced = new AtomicLong();
+
+    /**
+     * @param handler the actual delivery implementation
+     * @param initialWindow size of the first window
+     * @param minWindow minimum window size
+     * @param maxWindow maximum window size
+     * @param stallTimeout time (in milliseconds) to wait for acknowledgements before sending anyway
+     * @param deliveryExecutor executor for loading and sending windows
+     */
+    public OfflineDeliveryPacer(WindowHandler handler, int initialWindow, int minWindow, int maxWindow,
+            long stallTimeout, Executor deliveryExecutor) {
+        this.handler = handler;
+        this.deliveryExecutor = deliveryExecutor;
+        this.initialWindow = initialWindow;
+        this.minWindow = minWindow;
+        this.maxWindow = maxWindow;
+        this.stallTimeout = stallTimeout;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "msgoffline-pacer");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(this::checkStalled, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts delivering the backlog for the given session: the first window is added to results.
+     * @return the number of messages added to results
+     */
+    public int start(XMPPResourceConnection session, BareJID user, Queue<Packet> results) {
+        Cursor cursor = new Cursor(session, user, initialWindow);
+        // a new login takes over any previous delivery
+        cursors.put(user, cursor);
+
+        synchronized (cursor) {
+            return sendWindow(cursor, results);
+        }
+    }
+
+    @Override
+    public void acked(BareJID user) {
+        Cursor cursor = cursors.get(user);
+        if (cursor != null) {
+            cursor.acked = true;
+            cursor.lastProgress = System.currentTimeMillis();
+            // next window when half of the current one has been acknowledged
+            if (cursor.outstanding.decrementAndGet() <= cursor.windowSize / 2 &&
+                    cursor.scheduled.compareAndSet(false, true)) {
+                deliver(cursor, () -> nextWindow(cursor));
+            }
+        }
+    }
+
+    /** Runs a delivery task for a cursor whose scheduled flag has been set. */
+    private void deliver(Cursor cursor, Runnable task) {
+        try {
+            deliveryExecutor.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            // shutting down: the rest of the backlog stays in storage
+            cursor.scheduled.set(false);
+        }
+    }
+
+    /** Must hold the cursor lock. */
+    private int sendWindow(Cursor cursor, Queue<Packet> results) {
+        int before = results.size();
+        cursor.windowStart = System.currentTimeMillis();
+        cursor.lastProgress = cursor.windowStart;
+        cursor.windowCount = cursor.windowSize;
+        cursor.outstanding.addAndGet(handler.deliver(cursor, results, cursor.windowSize));
+        statsWindows.incrementAndGet();
+
+        if (cursor.done)
+            cursors.remove(cursor.user, cursor);
+        return results.size() - before;
+    }
+
+    private void nextWindow(Cursor cursor) {
+        try {
+            synchronized (cursor) {
+                if (cursors.get(cursor.user) != cursor)
+                    return;
+
+                if (!cursor.session.isAuthorized()) {
+                    // user is gone, rest of the backlog stays in storage
+                    cursors.remove(cursor.user, cursor);
+                    return;
+                }
+
+                // adapt window size to the acknowledgement rate
+                long elapsed = Math.max(1, System.currentTimeMillis() - cursor.windowStart);
+                int acked = cursor.windowCount - Math.max(0, cursor.outstanding.get());
+                int size = (int) (acked * TARGET_WINDOW_TIME / elapsed);
+                cursor.windowSize = Math.max(minWindow, Math.min(maxWindow, size));
+
+                Queue<Packet> results = new ArrayDeque<>();
+                sendWindow(cursor, results);
+                send(results);
+            }
+        }
+        catch (Exception e) {
+            log.log(Level.WARNING, "error delivering offline messages", e);
+        }
+        finally {
+            cursor.scheduled.set(false);
+        }
+    }
+
+    /** Delivers the whole remaining backlog for stalled clients never acknowledging anything. */
+    private void checkStalled() {
+        long now = System.currentTimeMillis();
+        for (Cursor cursor : cursors.values()) {
+            if (now - cursor.lastProgress >= stallTimeout && cursor.scheduled.compareAndSet(false, true)) {
+                if (cursor.acked) {
+                    // slow client, keep going
+                    deliver(cursor, () -> nextWindow(cursor));
+                }
+                else {
+                    deliver(cursor, () -> deliverAll(cursor));
+                }
+            }
+        }
+    }
+
+    private void deliverAll(Cursor cursor) {
+        try {
+            synchronized (cursor) {
+                if (cursors.remove(cursor.user, cursor) && cursor.session.isAuthorized()) {
+                    statsUnpaced.incrementAndGet();
+                    while (!cursor.done) {
+                        Queue<Packet> results = new ArrayDeque<>();
+                        handler.deliver(cursor, results, maxWindow);
+                        send(results);
+                    }
+                }
+            }
+        }
+        catch (Exception e) {
+            log.log(Level.WARNING, "error delivering offline messages", e);
+        }
+        finally {
+            cursor.scheduled.set(false);
+        }
+    }
+
+    private void send(Queue<Packet> results) {
+        if (!results.isEmpty()) {
+            // we are not in a processing queue so we need direct access to the SessionManager
+            SessionManager sessMan = (SessionManager) XMPPServer.getComponent("sess-man");
+            for (Packet packet : results) {
+                sessMan.addOutPacket(packet);
+            }
+        }
+    }
+
+    /** Number of backlogs currently being delivered. */
+    public int getActiveCount() {
+        return cursors.size();
+    }
+
+    /** Number of windows sent. */
+    public long getWindowCount() {
+        return statsWindows.get();
+    }
+
+    /** Number of backlogs delivered all at once because the client was not acknowledging. */
+    public long getUnpacedCount() {
+        return statsUnpaced.get();
+    }
+
+}
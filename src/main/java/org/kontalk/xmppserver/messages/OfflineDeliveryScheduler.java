@@ -0,0 +1,271 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.messages;
+
+import tigase.server.Packet;
+import tigase.server.XMPPServer;
+import tigase.server.xmppsession.SessionManager;
+import tigase.xml.Element;
+import tigase.xmpp.XMPPResourceConnection;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Defers offline messages delivery until the session has its initial
+ * presence set, without blocking the session manager processing threads.
+ * Deferred sessions are delivered either when a later packet for the session
+ * finds the presence set, when a periodic check does, or when the deferral
+ * timeout expires. Sessions sending a presence with a negative priority
+ * don't get offline messages.
+ * @author Daniele Ricci
+ */
+public class OfflineDeliveryScheduler {
+
+    private static final Logger log = Logger.getLogger(OfflineDeliveryScheduler.class.getName());
+
+    private static final String SESSION_KEY = "msgoffline-deferred";
+
+    /** Loads offline messages for a session into the given queue. */
+    public interface DeliveryHandler {
+        void deliver(XMPPResourceConnection session, Queue<Packet> results);
+    }
+
+    private final ScheduledExecutorService executor;
+    /** Deliveries are run here, so loading messages doesn't delay presence checks. */
+    private final ExecutorService deliveryExecutor;
+    private final Thread shutdownHook = new ShutdownThread();
+    private final DeliveryHandler handler;
+    private final long checkInterval;
+    private final long timeout;
+
+    private final AtomicLong statsDeferred = new AtomicLong();
+    private final AtomicLong statsTimedOut = new AtomicLong();
+    private final AtomicLong statsDeferralTime = new AtomicLong();
+    private final AtomicLong statsMaxDeferralTime = new AtomicLong();
+
+    /**
+     * @param handler the actual delivery implementation
+     * @param checkInterval interval (in milliseconds) between presence checks
+     * @param timeout maximum time (in milliseconds) a delivery can be deferred
+     * @param deliveryThreads number of threads delivering deferred messages
+     */
+    public OfflineDeliveryScheduler(DeliveryHandler handler, long checkInterval, long timeout, int deliveryThreads) {
+        this.handler = handler;
+        this.checkInterval = checkInterval;
+        this.timeout = timeout;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "msgoffline-delivery");
+            t.setDaemon(true);
+            return t;
+        });
+        AtomicInteger threadCount = new AtomicInteger();
+        this.deliveryExecutor = Executors.newFixedThreadPool(Math.max(1, deliveryThreads), r -> {
+            Thread t = new Thread(r, "msgoffline-deferred-" + threadCount.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /** Returns true if offline messages can be delivered to the session right away. */
+    public static boolean isReady(XMPPResourceConnection session) {
+        Element presence = session.getPresence();
+        return presence != null && getPriority(presence) >= 0;
+    }
+
+    /** Returns true if the session presence excludes it from offline messages delivery. */
+    private static boolean isDeclined(XMPPResourceConnection session) {
+        Element presence = session.getPresence();
+        return presence != null && getPriority(presence) < 0;
+    }
+
+    private static int getPriority(Element presence) {
+        Element priority = presence.getChild("priority");
+        String value = priority != null ? priority.getCData() : null;
+        if (value != null) {
+            try {
+                return Integer.decode(value.trim());
+            }
+            catch (NumberFormatException ignored) {
+            }
+        }
+        return 0;
+    }
+
+    /** Schedules offline messages delivery for when the session will be ready. */
+    public void defer(XMPPResourceConnection session) {
+        DeferredDelivery delivery = new DeferredDelivery(session);
+        session.putSessionData(SESSION_KEY, delivery);
+        statsDeferred.incrementAndGet();
+        delivery.task = executor.scheduleWithFixedDelay(delivery::check,
+                checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Delivers any deferred offline messages if the session is now ready.
+     * Meant to be called from a processing thread while handling a packet for the session.
+     * @return true if messages were delivered
+     */
+    public boolean deliverIfReady(XMPPResourceConnection session, Queue<Packet> results) {
+        Object data = session.getSessionData(SESSION_KEY);
+        if (data instanceof DeferredDelivery && isReady(session)) {
+            DeferredDelivery delivery = (DeferredDelivery) data;
+            if (delivery.claim()) {
+                handler.deliver(session, results);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the executor running deliveries, for other delivery work that must not block processing threads. */
+    public Executor getDeliveryExecutor() {
+        return deliveryExecutor;
+    }
+
+    /** Stops the scheduler. Deferred deliveries not started yet are dropped. */
+    public void shutdown() {
+        executor.shutdownNow();
+        deliveryExecutor.shutdown();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        }
+        catch (IllegalStateException ignored) {
+            // already shutting down
+        }
+    }
+
+    /** Number of deferred deliveries. */
+    public long getDeferredCount() {
+        return statsDeferred.get();
+    }
+
+    /** Number of deferred deliveries triggered by the timeout. */
+    public long getTimedOutCount() {
+        return statsTimedOut.get();
+    }
+
+    /** Total time deliveries were deferred, in milliseconds. */
+    public long getDeferralTime() {
+        return statsDeferralTime.get();
+    }
+
+    /** Maximum time a delivery was deferred, in milliseconds. */
+    public long getMaxDeferralTime() {
+        return statsMaxDeferralTime.get();
+    }
+
+    private final class DeferredDelivery {
+        private final XMPPResourceConnection session;
+        private final long deferredAt = System.currentTimeMillis();
+        private final AtomicBoolean done = new AtomicBoolean();
+        volatile ScheduledFuture<?> task;
+
+        DeferredDelivery(XMPPResourceConnection session) {
+            this.session = session;
+        }
+
+        /** Takes ownership of the delivery; only one caller will get true. */
+        boolean claim() {
+            if (!done.compareAndSet(false, true))
+                return false;
+
+            ScheduledFuture<?> t = task;
+            if (t != null)
+                t.cancel(false);
+            session.removeSessionData(SESSION_KEY);
+
+            long elapsed = System.currentTimeMillis() - deferredAt;
+            statsDeferralTime.addAndGet(elapsed);
+            statsMaxDeferralTime.accumulateAndGet(elapsed, Math::max);
+            return true;
+        }
+
+        void check() {
+            if (!session.isAuthorized()) {
+                // session is gone, messages will stay in storage
+                ScheduledFuture<?> t = task;
+                if (done.compareAndSet(false, true) && t != null)
+                    t.cancel(false);
+                return;
+            }
+
+            if (isDeclined(session)) {
+                if (claim()) {
+                    // messages will be loaded by the next presence with a non-negative priority
+                    session.removeSessionData(OfflineMessages.ID);
+                }
+                return;
+            }
+
+            boolean expired = System.currentTimeMillis() - deferredAt >= timeout;
+            if ((expired || isReady(session)) && claim()) {
+                if (expired)
+                    statsTimedOut.incrementAndGet();
+
+                try {
+                    deliveryExecutor.execute(this::deliver);
+                }
+                catch (RejectedExecutionException e) {
+                    log.log(Level.FINE, "scheduler stopped, not delivering deferred offline messages");
+                }
+            }
+        }
+
+        private void deliver() {
+            try {
+                Queue<Packet> results = new ArrayDeque<>();
+                handler.deliver(session, results);
+                if (!results.isEmpty()) {
+                    // we are not in a processing queue so we need direct access to the SessionManager
+                    SessionManager sessMan = (SessionManager) XMPPServer.getComponent("sess-man");
+                    for (Packet packet : results) {
+                        sessMan.addOutPacket(packet);
+                    }
+                }
+            }
+            catch (Exception e) {
+                log.log(Level.WARNING, "error delivering deferred offline messages", e);
+            }
+        }
+    }
+
+    private class ShutdownThread extends Thread {
+
+        ShutdownThread() {
+            super();
+            setName("msgoffline-delivery-shutdown");
+        }
+
+        @Override
+        public void run() {
+            executor.shutdownNow();
+            deliveryExecutor.shutdown();
+        }
+    }
+
+}
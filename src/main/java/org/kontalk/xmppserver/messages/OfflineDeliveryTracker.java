@@ -0,0 +1,350 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.messages;
+
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Tracks offline messages delivered to clients but not acknowledged yet.
+ * Stored messages are deleted only when the client acknowledges them through
+ * stream management; unacknowledged messages coming back for redelivery are
+ * just released and will be delivered again at next login. Messages never
+ * acknowledged nor redelivered (e.g. clients not using stream management)
+ * are deleted after a timeout.
+ * Delivered stanzas carry their storage id in an attribute until they reach
+ * the connection manager, which strips it and reports it back on ack; this
+ * way acks can't be mistaken for those of live messages with the same id.
+ * Messages coming back for redelivery are looked up by recipient, sender and
+ * stanza id, and must match the delivered stanza apart from delay stamps.
+ * @author Daniele Ricci
+ */
+public class OfflineDeliveryTracker {
+
+    private static final Logger log = Logger.getLogger(OfflineDeliveryTracker.class.getName());
+
+    private static final long FLUSH_INTERVAL = 1000;
+    private static final int MAX_BATCH_SIZE = 100;
+
+    /** Attribute carrying the storage id of a delivered offline message. */
+    private static final String ATTR_ROW_ID = "kontalk-offline-id";
+    private static final String DELAY_XMLNS = "urn:xmpp:delay";
+
+    private static OfflineDeliveryTracker instance;
+
+    private static final class Key {
+        final BareJID user;
+        final String from;
+        final String stanzaId;
+
+        Key(BareJID user, JID from, String stanzaId) {
+            this.user = user;
+            this.from = from != null ? from.toString() : "";
+            this.stanzaId = stanzaId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key key = (Key) o;
+            return user.equals(key.user) && from.equals(key.from) && stanzaId.equals(key.stanzaId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * user.hashCode() + from.hashCode()) + stanzaId.hashCode();
+        }
+    }
+
+    private static final class InFlight {
+        final BareJID user;
+        final long rowId;
+        /** The delivered stanza as returned by {@link #normalize}, to recognize it when it comes back. */
+        final String stanza;
+        final long deadline;
+
+        InFlight(BareJID user, long rowId, String stanza, long deadline) {
+            this.user = user;
+            this.rowId = rowId;
+            this.stanza = stanza;
+            this.deadline = deadline;
+        }
+    }
+
+    /** Deletion callback. */
+    public interface DeleteHandler {
+        void delete(BareJID user, long[] ids);
+    }
+
+    /** Acknowledgement listener. Must not block. */
+    public interface AckListener {
+        void acked(BareJID user);
+    }
+
+    private final DeleteHandler handler;
+    private final long ackTimeout;
+
+    /** Messages with the same key are kept in delivery order. Lists are only modified by map compute methods. */
+    private final Map<Key, List<InFlight>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+    /** Acknowledged messages waiting to be deleted. */
+    private final Queue<InFlight> acked = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService executor;
+    private volatile AckListener listener;
+
+    private final AtomicLong statsAcked = new AtomicLong();
+    private final AtomicLong statsReleased = new AtomicLong();
+    private final AtomicLong statsTimedOut = new AtomicLong();
+
+    private OfflineDeliveryTracker(DeleteHandler handler, long ackTimeout) {
+        this.handler = handler;
+        this.ackTimeout = ackTimeout;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "msgoffline-tracker");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Initializes the tracker.
+     * @param handler the callback used to delete acknowledged messages
+     * @param ackTimeout time (in milliseconds) after which unacknowledged messages are deleted anyway
+     */
+    static OfflineDeliveryTracker init(DeleteHandler handler, long ackTimeout) {
+        if (instance != null)
+            instance.executor.shutdown();
+        instance = new OfflineDeliveryTracker(handler, ackTimeout);
+        return instance;
+    }
+
+    /** Returns the tracker instance, or null if ack-driven delivery is not enabled. */
+    public static OfflineDeliveryTracker getInstance() {
+        return instance;
+    }
+
+    public void setAckListener(AckListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts tracking a delivered message.
+     * @return false if the message can't be tracked and should be deleted right away
+     */
+    public boolean delivered(BareJID user, Packet packet, long rowId) {
+        String stanzaId = packet.getStanzaId();
+        if (stanzaId == null)
+            return false;
+
+        Element elem = packet.getElement();
+        InFlight msg = new InFlight(user, rowId, normalize(elem), System.currentTimeMillis() + ackTimeout);
+        elem.setAttribute(ATTR_ROW_ID, String.valueOf(rowId));
+        inFlight.compute(new Key(user, packet.getStanzaFrom(), stanzaId), (k, list) -> {
+            if (list == null)
+                list = new ArrayList<>(1);
+            list.add(msg);
+            return list;
+        });
+        inFlightCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Removes the storage id attached to a stanza by {@link #delivered}.
+     * Must be called before the stanza is sent to the client.
+     * @return the storage id, or 0 if the stanza is not an offline message
+     */
+    public static long unmark(Element stanza) {
+        String value = stanza.getAttributeStaticStr(ATTR_ROW_ID);
+        if (value == null)
+            return 0;
+
+        stanza.removeAttribute(ATTR_ROW_ID);
+        try {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Called when the client acknowledges a packet.
+     * Meant to be called from the connection manager: no blocking operation is performed here.
+     * @param rowId the storage id returned by {@link #unmark} for the packet
+     */
+    public void acked(Packet packet, long rowId) {
+        if (rowId <= 0 || inFlight.isEmpty())
+            return;
+
+        String stanzaId = packet.getStanzaId();
+        JID to = packet.getStanzaTo();
+        if (stanzaId != null && to != null) {
+            BareJID user = to.getBareJID();
+            InFlight msg = remove(new Key(user, packet.getStanzaFrom(), stanzaId), m -> m.rowId == rowId);
+            if (msg != null) {
+                statsAcked.incrementAndGet();
+                acked.offer(msg);
+
+                AckListener l = listener;
+                if (l != null)
+                    l.acked(user);
+            }
+        }
+    }
+
+    /**
+     * Called when an offline message is coming back for redelivery.
+     * @return the storage id of the message if the packet is an offline
+     * message in flight (it is still in storage and should not be stored
+     * again), 0 otherwise
+     */
+    public long released(BareJID user, Packet packet) {
+        String stanzaId = packet.getStanzaId();
+        if (stanzaId == null || inFlight.isEmpty())
+            return 0;
+
+        // the sender chooses the id: make sure it's the very message delivered
+        String stanza = normalize(packet.getElement());
+        InFlight msg = remove(new Key(user, packet.getStanzaFrom(), stanzaId), m -> m.stanza.equals(stanza));
+        if (msg != null) {
+            statsReleased.incrementAndGet();
+            return msg.rowId;
+        }
+        return 0;
+    }
+
+    /**
+     * Stops tracking the first message with the given key matching the given filter.
+     * @return the message removed, if any
+     */
+    private InFlight remove(Key key, Predicate<InFlight> filter) {
+        InFlight[] removed = new InFlight[1];
+        inFlight.computeIfPresent(key, (k, list) -> {
+            for (int i = 0; i < list.size(); i++) {
+                if (filter.test(list.get(i))) {
+                    removed[0] = list.remove(i);
+                    break;
+                }
+            }
+            return list.isEmpty() ? null : list;
+        });
+        if (removed[0] != null)
+            inFlightCount.decrementAndGet();
+        return removed[0];
+    }
+
+    /**
+     * Returns the stanza as a string, leaving out the storage id and delay
+     * stamps, which may be added or removed on the way to the client.
+     */
+    private static String normalize(Element stanza) {
+        Element copy = stanza.clone();
+        copy.removeAttribute(ATTR_ROW_ID);
+        List<Element> children = copy.getChildren();
+        if (children != null) {
+            for (Element child : new ArrayList<>(children)) {
+                if ("delay".equals(child.getName()) && DELAY_XMLNS.equals(child.getXMLNS()))
+                    copy.removeChild(child);
+            }
+        }
+        return copy.toString();
+    }
+
+    /** Deletes acknowledged and timed out messages. */
+    void flush() {
+        try {
+            long now = System.currentTimeMillis();
+            for (Key key : inFlight.keySet()) {
+                inFlight.computeIfPresent(key, (k, list) -> {
+                    Iterator<InFlight> iter = list.iterator();
+                    while (iter.hasNext()) {
+                        InFlight msg = iter.next();
+                        if (now >= msg.deadline) {
+                            iter.remove();
+                            inFlightCount.decrementAndGet();
+                            statsTimedOut.incrementAndGet();
+                            acked.offer(msg);
+                        }
+                    }
+                    return list.isEmpty() ? null : list;
+                });
+            }
+
+            if (acked.isEmpty())
+                return;
+
+            // group by user
+            Map<BareJID, List<Long>> batches = new HashMap<>();
+            InFlight msg;
+            while ((msg = acked.poll()) != null) {
+                batches.computeIfAbsent(msg.user, u -> new ArrayList<>()).add(msg.rowId);
+            }
+
+            for (Map.Entry<BareJID, List<Long>> e : batches.entrySet()) {
+                List<Long> ids = e.getValue();
+                for (int i = 0; i < ids.size(); i += MAX_BATCH_SIZE) {
+                    List<Long> chunk = ids.subList(i, Math.min(ids.size(), i + MAX_BATCH_SIZE));
+                    long[] batch = new long[chunk.size()];
+                    for (int j = 0; j < batch.length; j++)
+                        batch[j] = chunk.get(j);
+                    handler.delete(e.getKey(), batch);
+                }
+            }
+        }
+        catch (Exception e) {
+            log.log(Level.WARNING, "error deleting acknowledged offline messages", e);
+        }
+    }
+
+    /** Number of messages waiting for acknowledgement. */
+    public int getInFlightCount() {
+        return inFlightCount.get();
+    }
+
+    public long getAckedCount() {
+        return statsAcked.get();
+    }
+
+    /** Number of unacknowledged messages released for redelivery at next login. */
+    public long getReleasedCount() {
+        return statsReleased.get();
+    }
+
+    /** Number of messages deleted because of acknowledgement timeout. */
+    public long getTimedOutCount() {
+        return statsTimedOut.get();
+    }
+
+}
@@ -18,11 +18,16 @@
 
 package org.kontalk.xmppserver.messages;
 
-import tigase.db.MsgRepositoryIfc;
+import org.bouncycastle.util.encoders.Hex;
+import org.kontalk.xmppserver.BlockingCommand;
+import org.kontalk.xmppserver.util.StanzaClassifier;
 import tigase.db.NonAuthUserRepository;
 import tigase.db.TigaseDBException;
 import tigase.db.UserNotFoundException;
 import tigase.server.Packet;
+import tigase.server.XMPPServer;
+import tigase.server.xmppsession.SessionManager;
+import tigase.stats.StatisticsList;
 import tigase.util.DNSResolver;
 import tigase.util.TigaseStringprepException;
 import tigase.xml.Element;
@@ -33,9 +38,14 @@ import tigase.xmpp.impl.Message;
 import tigase.xmpp.impl.PresenceState;
 import tigase.xmpp.impl.annotation.*;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -57,7 +67,7 @@ import static org.kontalk.xmppserver.messages.OfflineMessages.*;
     "msgoffline"
 })
 public class OfflineMessages extends AnnotatedXMPPProcessor
-        implements XMPPPostprocessorIfc, XMPPProcessorIfc {
+        implements XMPPPostprocessorIfc, XMPPProcessorIfc, XMPPStopListenerIfc {
 
     protected static final String XMLNS = "jabber:client";
     /**
@@ -72,12 +82,47 @@ public class OfflineMessages extends AnnotatedXMPPProcessor
 
     private static final int DEF_EXPIRE_SECONDS = 604800;
 
+    private static final int DEF_EXPIRE_CHUNK_SIZE = 1000;
+    private static final int DEF_EXPIRE_TIME_BUDGET = 60000;
+    private static final int DEF_EXPIRE_PAUSE = 100;
+
+    private static final int DEF_DEFERRAL_CHECK_INTERVAL = 50;
+    private static final int DEF_DEFERRAL_TIMEOUT = 250;
+    private static final int DEF_DEFERRAL_DELIVERY_THREADS = 2;
+
+    private static final int DEF_HOT_TIER_GRACE_SECONDS = 60;
+    private static final int DEF_HOT_TIER_MAX_MEMORY = 64 * 1024 * 1024;
+    private static final int DEF_HOT_TIER_MAX_USER_MESSAGES = 500;
+
+    private static final int DEF_QUOTA = 10000;
+
+    private static final int DEF_ACK_TIMEOUT_SECONDS = 120;
+
+    private static final int DEF_PACING_WINDOW = 50;
+    private static final int DEF_PACING_MIN_WINDOW = 10;
+    private static final int DEF_PACING_MAX_WINDOW = 500;
+    private static final int DEF_PACING_STALL_TIMEOUT_SECONDS = 10;
+
+    private static final int DEF_WRITE_BEHIND_WRITERS = 2;
+    private static final int DEF_WRITE_BEHIND_QUEUE_SIZE = 10000;
+    private static final int DEF_WRITE_BEHIND_FLUSH_SIZE = 100;
+    private static final int DEF_WRITE_BEHIND_FLUSH_LATENCY = 50;
+    private static final int DEF_WRITE_BEHIND_OFFER_TIMEOUT = 100;
+
     private int messageExpire;
     private int presenceExpire;
+    private int pageSize;
 
     private Timer taskTimer;
-
-    private MsgRepository msgRepo = new JDBCMsgRepository();
+    private MessageExpiration expiration;
+
+    private MsgRepository msgRepo;
+    private OfflineDeliveryScheduler deliveryScheduler;
+    private WriteBehindMsgRepository writeBehindRepo;
+    private HotTierMsgRepository hotTierRepo;
+    private OfflineQuota quota;
+    private OfflineDeliveryTracker deliveryTracker;
+    private OfflineDeliveryPacer pacer;
     private Message message = new Message();
     private final DateFormat formatter;
 
@@ -94,39 +139,135 @@ public class OfflineMessages extends AnnotatedXMPPProcessor
     @Override
     public void init(Map<String, Object> settings) throws TigaseDBException {
         super.init(settings);
-        String uri = (String) settings.get("db-uri");
-        msgRepo.initRepository(uri, null);
 
-        try {
-            messageExpire = (int) settings.get("message-expire");
+        messageExpire = getIntSetting(settings, "message-expire", DEF_EXPIRE_SECONDS);
+        presenceExpire = getIntSetting(settings, "presence-expire", DEF_EXPIRE_SECONDS);
+        pageSize = getIntSetting(settings, "page-size", MsgRepository.DEFAULT_PAGE_SIZE);
+
+        // stanzas are stored in binary form unless requested otherwise
+        StanzaCodec codec = "xml".equals(settings.get("stanza-codec")) ? new XmlStanzaCodec() : null;
+        boolean writeBehind = Boolean.parseBoolean(String.valueOf(settings.get("write-behind")));
+        int writers = getIntSetting(settings, "write-behind-writers", DEF_WRITE_BEHIND_WRITERS);
+        // one batch connection for each writer
+        msgRepo = new JDBCMsgRepository(codec, writeBehind ? writers : 1);
+        if (writeBehind) {
+            writeBehindRepo = new WriteBehindMsgRepository(msgRepo, writers,
+                    getIntSetting(settings, "write-behind-queue-size", DEF_WRITE_BEHIND_QUEUE_SIZE),
+                    getIntSetting(settings, "write-behind-flush-size", DEF_WRITE_BEHIND_FLUSH_SIZE),
+                    getIntSetting(settings, "write-behind-flush-latency", DEF_WRITE_BEHIND_FLUSH_LATENCY),
+                    getIntSetting(settings, "write-behind-offer-timeout", DEF_WRITE_BEHIND_OFFER_TIMEOUT));
+            msgRepo = writeBehindRepo;
         }
-        catch (Exception e) {
-            messageExpire = DEF_EXPIRE_SECONDS;
+        if (Boolean.parseBoolean(String.valueOf(settings.get("hot-tier")))) {
+            String walFile = (String) settings.get("hot-tier-wal");
+            hotTierRepo = new HotTierMsgRepository(msgRepo,
+                    TimeUnit.SECONDS.toMillis(getIntSetting(settings, "hot-tier-grace", DEF_HOT_TIER_GRACE_SECONDS)),
+                    getIntSetting(settings, "hot-tier-max-memory", DEF_HOT_TIER_MAX_MEMORY),
+                    getIntSetting(settings, "hot-tier-max-user-messages", DEF_HOT_TIER_MAX_USER_MESSAGES),
+                    walFile != null ? new File(walFile) : null,
+                    Boolean.parseBoolean(String.valueOf(settings.get("hot-tier-wal-sync"))));
+            msgRepo = hotTierRepo;
         }
-        try {
-            presenceExpire = (int) settings.get("presence-expire");
+
+        String uri = (String) settings.get("db-uri");
+        msgRepo.initRepository(uri, null);
+
+        int maxMessages = getIntSetting(settings, "quota", DEF_QUOTA);
+        if (maxMessages > 0) {
+            OfflineQuota.Policy policy = "drop-oldest".equals(settings.get("quota-policy")) ?
+                    OfflineQuota.Policy.DROP_OLDEST : OfflineQuota.Policy.REJECT;
+            quota = new OfflineQuota(msgRepo, maxMessages, policy);
         }
-        catch (Exception e) {
-            presenceExpire = DEF_EXPIRE_SECONDS;
+
+        if (deliveryScheduler != null)
+            deliveryScheduler.shutdown();
+        deliveryScheduler = new OfflineDeliveryScheduler(this::deliverOfflineMessages,
+                getIntSetting(settings, "deferral-check-interval", DEF_DEFERRAL_CHECK_INTERVAL),
+                getIntSetting(settings, "deferral-timeout", DEF_DEFERRAL_TIMEOUT),
+                getIntSetting(settings, "deferral-delivery-threads", DEF_DEFERRAL_DELIVERY_THREADS));
+
+        if (!"false".equals(String.valueOf(settings.get("ack-delivery")))) {
+            deliveryTracker = OfflineDeliveryTracker.init(this::deleteAcknowledged,
+                    TimeUnit.SECONDS.toMillis(getIntSetting(settings, "ack-timeout", DEF_ACK_TIMEOUT_SECONDS)));
+
+            // pacing needs acknowledgements
+            if (!"false".equals(String.valueOf(settings.get("pacing")))) {
+                pacer = new OfflineDeliveryPacer(this::deliverWindow,
+                        getIntSetting(settings, "pacing-window", DEF_PACING_WINDOW),
+                        getIntSetting(settings, "pacing-min-window", DEF_PACING_MIN_WINDOW),
+                        getIntSetting(settings, "pacing-max-window", DEF_PACING_MAX_WINDOW),
+                        TimeUnit.SECONDS.toMillis(getIntSetting(settings, "pacing-stall-timeout", DEF_PACING_STALL_TIMEOUT_SECONDS)),
+                        deliveryScheduler.getDeliveryExecutor());
+                deliveryTracker.setAckListener(pacer);
+            }
         }
 
+        expiration = new MessageExpiration(msgRepo,
+                getIntSetting(settings, "expire-chunk-size", DEF_EXPIRE_CHUNK_SIZE),
+                getIntSetting(settings, "expire-time-budget", DEF_EXPIRE_TIME_BUDGET),
+                getIntSetting(settings, "expire-pause", DEF_EXPIRE_PAUSE));
+
         long hour = TimeUnit.HOURS.toMillis(1);
         taskTimer = new Timer(ID + " tasks", true);
-        taskTimer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                try {
-                    if (log.isLoggable(Level.FINEST)) {
-                        log.finest("Purging expired messages.");
-                    }
-                    msgRepo.expireMessages();
-                }
-                catch (TigaseDBException e) {
-                    log.log(Level.WARNING, "error purging expired messages", e);
-                }
+        taskTimer.schedule(expiration, hour, hour);
+
+    }
+
+    private static int getIntSetting(Map<String, Object> settings, String key, int defaultValue) {
+        Object value = settings.get(key);
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        else if (value != null) {
+            try {
+                return Integer.parseInt(value.toString());
+            }
+            catch (NumberFormatException ignored) {
             }
-        }, hour, hour);
+        }
+        return defaultValue;
+    }
 
+    @Override
+    public void getStatistics(StatisticsList list) {
+        super.getStatistics(list);
+        String name = getComponentInfo().getName();
+        list.add(name, "Expired messages purged (last run)", expiration.getLastPurged(), Level.FINE);
+        list.add(name, "Expiration time (last run) [ms]", expiration.getLastTime(), Level.FINE);
+        list.add(name, "Expired messages purged", expiration.getTotalPurged(), Level.INFO);
+        list.add(name, "Expiration time [ms]", expiration.getTotalTime(), Level.FINE);
+        list.add(name, "Deferred deliveries", deliveryScheduler.getDeferredCount(), Level.FINE);
+        list.add(name, "Deferred deliveries timed out", deliveryScheduler.getTimedOutCount(), Level.FINE);
+        list.add(name, "Deferral time total [ms]", deliveryScheduler.getDeferralTime(), Level.FINE);
+        list.add(name, "Deferral time max [ms]", deliveryScheduler.getMaxDeferralTime(), Level.FINE);
+        if (deliveryTracker != null) {
+            list.add(name, "Messages waiting for ack", deliveryTracker.getInFlightCount(), Level.FINE);
+            list.add(name, "Acked messages", deliveryTracker.getAckedCount(), Level.FINE);
+            list.add(name, "Unacked messages released", deliveryTracker.getReleasedCount(), Level.FINE);
+            list.add(name, "Ack timeouts", deliveryTracker.getTimedOutCount(), Level.FINE);
+        }
+        if (pacer != null) {
+            list.add(name, "Paced deliveries in progress", pacer.getActiveCount(), Level.FINE);
+            list.add(name, "Paced delivery windows", pacer.getWindowCount(), Level.FINE);
+            list.add(name, "Unpaced deliveries", pacer.getUnpacedCount(), Level.FINE);
+        }
+        if (quota != null) {
+            list.add(name, "Messages rejected by quota", quota.getRejectedCount(), Level.INFO);
+            list.add(name, "Messages dropped by quota", quota.getDroppedCount(), Level.INFO);
+        }
+        if (hotTierRepo != null) {
+            list.add(name, "Hot tier buffers", hotTierRepo.getBufferCount(), Level.FINE);
+            list.add(name, "Hot tier memory [bytes]", hotTierRepo.getMemoryUsage(), Level.FINE);
+            list.add(name, "Hot tier stored messages", hotTierRepo.getStoredCount(), Level.FINE);
+            list.add(name, "Hot tier delivered messages", hotTierRepo.getDeliveredCount(), Level.FINE);
+            list.add(name, "Hot tier spilled messages", hotTierRepo.getSpilledCount(), Level.FINE);
+        }
+        if (writeBehindRepo != null) {
+            list.add(name, "Write-behind queue size", writeBehindRepo.getQueueSize(), Level.FINE);
+            list.add(name, "Write-behind batches", writeBehindRepo.getBatchCount(), Level.FINE);
+            list.add(name, "Write-behind batched messages", writeBehindRepo.getBatchedMessageCount(), Level.FINE);
+            list.add(name, "Write-behind synchronous writes", writeBehindRepo.getSyncWriteCount(), Level.FINE);
+        }
     }
 
     /**
@@ -151,28 +292,40 @@ public class OfflineMessages extends AnnotatedXMPPProcessor
     public void process(Packet packet, XMPPResourceConnection session, NonAuthUserRepository repo,
                         Queue<Packet> results, Map<String, Object> settings) throws XMPPException {
         if ( loadOfflineMessages( packet, session ) ){
-            try {
-                Queue<Packet> packets = restorePacketForOffLineUser(session, msgRepo);
+            if (OfflineDeliveryScheduler.isReady(session)) {
+                deliverOfflineMessages(session, results);
+            }
+            else {
+                // presence is not set yet: deliver later
+                deliveryScheduler.defer(session);
+            }
+        }
+    }
 
-                if ( packets != null ){
-                    if ( log.isLoggable( Level.FINER ) ){
-                        log.finer( "Sending offline messages: " + packets.size() );
-                    }
-                    waitForPresence(session, 250);
-                    results.addAll( packets );
-                }
-            } catch ( TigaseDBException e ) {
-                log.info( "Something wrong, DB problem, cannot load offline messages. " + e );
+    private void deliverOfflineMessages(XMPPResourceConnection session, Queue<Packet> results) {
+        try {
+            int count = pacer != null ?
+                    pacer.start(session, session.getBareJID(), results) :
+                    restorePacketForOffLineUser(session, msgRepo, results);
+
+            if ( count > 0 && log.isLoggable( Level.FINER ) ){
+                log.finer( "Sent offline messages: " + count );
             }
+        } catch ( TigaseDBException e ) {
+            log.info( "Something wrong, DB problem, cannot load offline messages. " + e );
+        } catch ( NotAuthorizedException e ) {
+            log.log( Level.FINE, "Session not authorized, cannot load offline messages.", e );
         }
     }
 
-    private void waitForPresence(XMPPResourceConnection session, int millis) {
-        if (session.getPresence() == null || session.getPriority() <= 0) {
+    @Override
+    public void stopped(XMPPResourceConnection session, Queue<Packet> results, Map<String, Object> settings) {
+        if (hotTierRepo != null && session != null && !session.isAnonymous()) {
             try {
-                Thread.sleep(millis);
+                // user might be back soon: keep offline messages in memory for a while
+                hotTierRepo.startGracePeriod(session.getBareJID());
             }
-            catch (InterruptedException ignored) {
+            catch (NotAuthorizedException ignored) {
             }
         }
     }
@@ -180,12 +333,28 @@ public class OfflineMessages extends AnnotatedXMPPProcessor
     @Override
     public void postProcess(Packet packet, XMPPResourceConnection session, NonAuthUserRepository repo,
                             Queue<Packet> results, Map<String, Object> settings) {
+        // deliver offline messages deferred waiting for presence
+        if (session != null)
+            deliveryScheduler.deliverIfReady(session, results);
+
+        // recipient blocked the sender
+        if (BlockingCommand.isBlocked(packet))
+            return;
+
         if (session == null || !message.hasConnectionForMessageDelivery(session)) {
             try {
                 if (session != null && packet.getStanzaTo() != null && !session.isUserId(packet.getStanzaTo().getBareJID()))
                     return;
 
-                savePacketForOffLineUser(packet, msgRepo);
+                if (!savePacketForOffLineUser(packet, msgRepo) && packet.wasProcessedBy(ID)) {
+                    // not stored because of quota
+                    try {
+                        results.offer(Authorization.RESOURCE_CONSTRAINT.getResponseMessage(packet,
+                                "Offline storage quota exceeded", true));
+                    }
+                    catch (PacketErrorTypeException ignored) {
+                    }
+                }
             }
             catch (UserNotFoundException e) {
                 if (log.isLoggable(Level.FINEST)) {
@@ -267,52 +436,148 @@ public class OfflineMessages extends AnnotatedXMPPProcessor
 
     /**
      * Method restores all messages from repository for the JID of the current
-     * session. All retrieved elements are then instantiated as {@code Packet}
-     * objects added to {@code LinkedList} collection and, if possible, sorted by
-     * timestamp.
+     * session. Messages are loaded a page at a time in storage order, which is
+     * also delivery order; each page is instantiated as {@code Packet} objects
+     * and added to the given queue. Only messages actually added to the queue
+     * are then deleted from the repository.
+     * If there is more than one page, the whole backlog is delivered from a
+     * delivery thread instead, one page at a time, so the processing thread
+     * is never blocked by a slow client and only one page is kept in memory.
      *
      * @param session user session which keeps all the user session data and also
      *             gives an access to the user's repository data.
-     * @param repo an implementation of {@link MsgRepositoryIfc} interface
-     *
+     * @param repo an implementation of {@link MsgRepository} interface
+     * @param results the queue the restored packets will be added to
      *
-     * @return a {@link Queue} of {@link Packet} objects based on all stored
-     *         payloads for the JID of the current session.
+     * @return the number of packets restored so far
      *
      * @throws UserNotFoundException
      * @throws NotAuthorizedException
      */
-    public Queue<Packet> restorePacketForOffLineUser( XMPPResourceConnection session,
-                                                      MsgRepository repo )
+    public int restorePacketForOffLineUser( XMPPResourceConnection session,
+                                            MsgRepository repo, Queue<Packet> results )
             throws TigaseDBException, NotAuthorizedException {
-        Queue<Element> elems = repo.loadMessagesToJID(session.getBareJID(), true);
+        OfflineDeliveryPacer.Cursor cursor = new OfflineDeliveryPacer.Cursor(session, session.getBareJID(), 0);
+        Queue<Packet> page = new ArrayDeque<>(pageSize);
+        restorePackets(cursor, repo, page, pageSize);
+        if (cursor.done) {
+            // everything fit in one page
+            results.addAll(page);
+        }
+        else {
+            try {
+                // the first page goes from there too, so pages are sent in order
+                deliveryScheduler.getDeliveryExecutor().execute(() -> restoreRemaining(cursor, repo, page));
+            }
+            catch (RejectedExecutionException e) {
+                // shutting down: the rest of the backlog stays in storage
+                results.addAll(page);
+            }
+        }
+        return page.size();
+    }
+
+    /** Sends the given page, then the rest of the backlog, a page at a time. Runs in a delivery thread. */
+    private void restoreRemaining(OfflineDeliveryPacer.Cursor cursor, MsgRepository repo, Queue<Packet> page) {
+        // we are not in a processing queue so we need direct access to the SessionManager
+        SessionManager sessMan = (SessionManager) XMPPServer.getComponent("sess-man");
+        try {
+            while (true) {
+                // the session manager queue will block us if the client is not keeping up
+                for (Packet packet : page) {
+                    sessMan.addOutPacket(packet);
+                }
+                if (cursor.done || !cursor.session.isAuthorized())
+                    break;
 
-        if ( elems != null ){
-            LinkedList<Packet> pacs = new LinkedList<Packet>();
-            Element elem;
+                page = new ArrayDeque<>(pageSize);
+                restorePackets(cursor, repo, page, pageSize);
+            }
+        }
+        catch (TigaseDBException e) {
+            log.info( "Something wrong, DB problem, cannot load offline messages. " + e );
+        }
+    }
 
-            while ( ( elem = elems.poll() ) != null ) {
+    /**
+     * Restores up to the given number of messages after the cursor position,
+     * updating the cursor.
+     * @return the number of restored messages waiting for acknowledgement
+     */
+    private int restorePackets(OfflineDeliveryPacer.Cursor cursor, MsgRepository repo,
+                               Queue<Packet> results, int limit) throws TigaseDBException {
+        BareJID user = cursor.user;
+        int loaded = 0;
+        int tracked = 0;
+
+        while (loaded < limit) {
+            int size = Math.min(pageSize, limit - loaded);
+            List<StoredMessage> page = repo.loadMessages(user, cursor.lastId, size);
+            if (page.size() < size)
+                cursor.done = true;
+            if (page.isEmpty())
+                break;
+
+            // messages are already in storage order
+            Queue<Packet> pacs = new ArrayDeque<>(page.size());
+            long[] delivered = new long[page.size()];
+            int deliveredCount = 0;
+
+            for (StoredMessage msg : page) {
                 try {
-                    pacs.offer( Packet.packetInstance( elem ) );
+                    Packet packet = Packet.packetInstance( msg.getStanza() );
+                    pacs.offer( packet );
+                    // acknowledged messages will be deleted later
+                    if (deliveryTracker != null && deliveryTracker.delivered(user, packet, msg.getId()))
+                        tracked++;
+                    else
+                        delivered[deliveredCount++] = msg.getId();
                 } catch ( TigaseStringprepException ex ) {
-                    log.warning( "Packet addressing problem, stringprep failed: " + elem );
-                }
-            }    // end of while (elem = elems.poll() != null)
-            try {
-                if (pacs.size() > 1)
-                    pacs.sort(new StampComparator());
-            } catch ( NullPointerException e ) {
-                try {
-                    log.warning( "Can not sort off line messages: " + pacs + ",\n" + e );
-                } catch ( Exception exc ) {
-                    log.log( Level.WARNING, "Can not print log message.", exc );
+                    log.warning( "Packet addressing problem, stringprep failed, deleting: " + msg.getStanza() );
+                    // it will never be deliverable
+                    delivered[deliveredCount++] = msg.getId();
                 }
             }
+            cursor.lastId = page.get(page.size() - 1).getId();
+            loaded += page.size();
+
+            results.addAll(pacs);
+
+            if (deliveredCount > 0) {
+                int deleted = repo.deleteMessages(user, Arrays.copyOf(delivered, deliveredCount));
+                if (quota != null)
+                    quota.released(user, deleted);
+            }
 
-            return pacs;
+            if (cursor.done)
+                break;
         }
 
-        return null;
+        return tracked;
+    }
+
+    /** Delivers a window of messages for paced delivery. */
+    private int deliverWindow(OfflineDeliveryPacer.Cursor cursor, Queue<Packet> results, int limit) {
+        try {
+            return restorePackets(cursor, msgRepo, results, limit);
+        }
+        catch (TigaseDBException e) {
+            log.info( "Something wrong, DB problem, cannot load offline messages. " + e );
+            cursor.done = true;
+            return 0;
+        }
+    }
+
+    /** Deletes messages acknowledged by the client. */
+    private void deleteAcknowledged(BareJID user, long[] ids) {
+        try {
+            int deleted = msgRepo.deleteMessages(user, ids);
+            if (quota != null)
+                quota.released(user, deleted);
+        }
+        catch (TigaseDBException e) {
+            log.log(Level.WARNING, "unable to delete acknowledged offline messages for " + user, e);
+        }
     }
 
     /**
@@ -336,7 +601,8 @@ public class OfflineMessages extends AnnotatedXMPPProcessor
      *             storing messages
      *
      * @return {@code true} if the packet was correctly saved to repository,
-     *         {@code false} otherwise.
+     *         {@code false} otherwise. If the packet was rejected because of
+     *         the user quota, it will be marked as processed anyway.
      *
      * @throws UserNotFoundException
      */
@@ -347,14 +613,34 @@ public class OfflineMessages extends AnnotatedXMPPProcessor
         // save only:
         // message stanza with either {@code <body>} or {@code <event>} child element and only of type normal, chat
         // presence stanza of type subscribe, subscribed, unsubscribe and unsubscribed
-        if ( ( pac.getElemName().equals( "message" )
-                && ( ( pac.getElemCDataStaticStr( tigase.server.Message.MESSAGE_BODY_PATH ) != null )
-                || ( pac.getElement().getChild("request", "urn:xmpp:receipts") != null )
-                || ( pac.getElement().getChild("received", "urn:xmpp:receipts") != null ) )
+        int flags = StanzaClassifier.classify(pac);
+        if ( ( ( flags & StanzaClassifier.MESSAGE ) != 0
+                && ( flags & ( StanzaClassifier.BODY_TEXT | StanzaClassifier.RECEIPT_REQUEST | StanzaClassifier.RECEIPT_RECEIVED ) ) != 0
                 && ( ( type == null ) || ( type == StanzaType.normal ) || ( type == StanzaType.chat ) ) )
                 || ( pac.getElemName().equals( "presence" )
                 && ( ( type == StanzaType.subscribe ) || ( type == StanzaType.subscribed )
                 || ( type == StanzaType.unsubscribe ) || ( type == StanzaType.unsubscribed ) ) ) ){
+            BareJID user = pac.getStanzaTo().getBareJID();
+            long releasedId = deliveryTracker != null ? deliveryTracker.released(user, pac) : 0;
+            if (releasedId > 0) {
+                // unacknowledged offline message: it's still in storage
+                if (hotTierRepo != null)
+                    hotTierRepo.released(user, releasedId);
+                if ( log.isLoggable( Level.FINEST ) ){
+                    log.log( Level.FINEST, "Offline message not acknowledged, keeping it in storage: {0}", pac );
+                }
+                pac.processedBy(ID);
+                return true;
+            }
+
+            if (quota != null && !quota.acquire(user)) {
+                if ( log.isLoggable( Level.FINEST ) ){
+                    log.log( Level.FINEST, "Offline storage quota exceeded, rejecting packet: {0}", pac );
+                }
+                pac.processedBy(ID);
+                return false;
+            }
+
             if ( log.isLoggable( Level.FINEST ) ){
                 log.log( Level.FINEST, "Storing packet for offline user: {0}", pac );
             }
@@ -380,7 +666,7 @@ public class OfflineMessages extends AnnotatedXMPPProcessor
                 elem.addChild(x);
             }
 
-            repo.storeMessage(pac.getStanzaTo().getBareJID(), elem, getExpiration(pac));
+            repo.storeMessage(user, elem, getExpiration(pac), getCompactKey(pac, flags));
             pac.processedBy(ID);
 
             return true;
@@ -390,48 +676,46 @@ public class OfflineMessages extends AnnotatedXMPPProcessor
     }
 
     /**
-     * {@link Comparator} interface implementation for the purpose of sorting
-     * Elements retrieved from the repository by the timestamp stored in
-     * {@code delay} element.
+     * Returns the compaction key for the given packet: only the last packet
+     * with a given key is kept in storage. Keys are assigned to:
+     * <ul>
+     * <li>subscription requests (subscribe and unsubscribe) and subscription
+     * approvals (subscribed and unsubscribed) from the same sender;</li>
+     * <li>delivery receipts for the same message from the same sender.</li>
+     * </ul>
+     * @return the compaction key, or null if the packet must never be replaced
      */
-    private static class StampComparator
-            implements Comparator<Packet> {
+    private static String getCompactKey(Packet pac, int flags) {
+        JID from = pac.getStanzaFrom();
+        if (from == null)
+            return null;
 
-        @Override
-        public int compare( Packet p1, Packet p2 ) {
-            String stamp1 = null;
-            String stamp2 = null;
-
-            // Try XEP-0203 - the new XEP...
-            Element stamp_el1 = p1.getElement().getChild( "delay", "urn:xmpp:delay" );
-
-            if ( stamp_el1 == null ){
-                // XEP-0091 support - the old one...
-                stamp_el1 = p1.getElement().getChild( "x", "jabber:x:delay" );
-            }
-            if ( stamp_el1 != null ){
-                stamp1 = stamp_el1.getAttributeStaticStr( "stamp" );
-            }
-            if (stamp1 == null) {
-                stamp1 = "";
-            }
-
-            // Try XEP-0203 - the new XEP...
-            Element stamp_el2 = p2.getElement().getChild( "delay", "urn:xmpp:delay" );
+        String key = null;
+        StanzaType type = pac.getType();
+        if (pac.getElemName() == tigase.server.Presence.ELEM_NAME) {
+            if (type == StanzaType.subscribe || type == StanzaType.unsubscribe)
+                key = "presence/request/" + from.getBareJID();
+            else if (type == StanzaType.subscribed || type == StanzaType.unsubscribed)
+                key = "presence/approval/" + from.getBareJID();
+        }
+        else if ((flags & (StanzaClassifier.BODY_TEXT | StanzaClassifier.RECEIPT_RECEIVED)) == StanzaClassifier.RECEIPT_RECEIVED) {
+            Element received = pac.getElement().getChild("received", "urn:xmpp:receipts");
+            String id = received != null ? received.getAttributeStaticStr("id") : null;
+            if (id != null)
+                key = "receipt/" + from.getBareJID() + "/" + id;
+        }
 
-            if ( stamp_el2 == null ){
-                // XEP-0091 support - the old one...
-                stamp_el2 = p2.getElement().getChild( "x", "jabber:x:delay" );
-            }
-            if ( stamp_el2 != null ){
-                stamp2 = stamp_el2.getAttributeStaticStr( "stamp" );
+        if (key != null) {
+            try {
+                MessageDigest md = MessageDigest.getInstance("SHA-1");
+                return Hex.toHexString(md.digest(key.getBytes(StandardCharsets.UTF_8)));
             }
-            if (stamp2 == null) {
-                stamp2 = "";
+            catch (NoSuchAlgorithmException e) {
+                // SHA-1 is always available
+                throw new AssertionError(e);
             }
-
-            return stamp1.compareTo( stamp2 );
         }
+        return null;
     }
 
 }
@@ -0,0 +1,139 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.messages;
+
+import org.kontalk.xmppserver.util.BoundedCache;
+import tigase.db.TigaseDBException;
+import tigase.xmpp.BareJID;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Per-user offline storage quota.
+ * Message counters are cached and updated as messages are stored and
+ * delivered, so the repository is queried only the first time a user is seen
+ * and when a counter reaches the quota, at most once every
+ * {@value #RECOUNT_INTERVAL} ms per user. Since compaction and expiration are
+ * not tracked, counters can only overestimate the actual count.
+ * @author Daniele Ricci
+ */
+public class OfflineQuota {
+
+    /** What to do when a user's quota is exceeded. */
+    public enum Policy {
+        /** Delete the oldest messages to make room. */
+        DROP_OLDEST,
+        /** Reject the new message. */
+        REJECT,
+    }
+
+    private static final int CACHE_SIZE = 50000;
+    private static final long CACHE_TTL = TimeUnit.HOURS.toMillis(1);
+    /** Minimum time between two recounts of a full user's messages. */
+    private static final long RECOUNT_INTERVAL = 60000;
+
+    /** Cached message count for a user. Guarded by itself. */
+    private static final class Counter {
+        int count;
+        long nextRecount;
+
+        Counter(int count) {
+            this.count = count;
+        }
+    }
+
+    private final MsgRepository repo;
+    private final int maxMessages;
+    private final Policy policy;
+
+    private final BoundedCache<BareJID, Counter> counters = new BoundedCache<>(CACHE_SIZE, CACHE_TTL);
+
+    private final AtomicLong statsRejected = new AtomicLong();
+    private final AtomicLong statsDropped = new AtomicLong();
+
+    public OfflineQuota(MsgRepository repo, int maxMessages, Policy policy) {
+        this.repo = repo;
+        this.maxMessages = maxMessages;
+        this.policy = policy;
+    }
+
+    /**
+     * Reserves room for a new message for the given user, applying the overflow policy if needed.
+     * @return false if the message must be rejected
+     */
+    public boolean acquire(BareJID user) throws TigaseDBException {
+        Counter counter = getCounter(user);
+        synchronized (counter) {
+            if (counter.count >= maxMessages) {
+                long now = System.currentTimeMillis();
+                if (now >= counter.nextRecount) {
+                    // counter might be overestimated, check for real
+                    counter.count = repo.countMessages(user);
+                    counter.nextRecount = now + RECOUNT_INTERVAL;
+                }
+            }
+
+            int excess = counter.count - maxMessages + 1;
+            if (excess > 0) {
+                if (policy == Policy.REJECT) {
+                    statsRejected.incrementAndGet();
+                    return false;
+                }
+
+                int deleted = repo.deleteOldestMessages(user, excess);
+                counter.count = Math.max(0, counter.count - deleted);
+                statsDropped.addAndGet(deleted);
+            }
+
+            counter.count++;
+            return true;
+        }
+    }
+
+    /** Releases room for messages delivered to the given user. */
+    public void released(BareJID user, int count) {
+        Counter counter = counters.get(user);
+        if (counter != null) {
+            synchronized (counter) {
+                counter.count = Math.max(0, counter.count - count);
+            }
+        }
+    }
+
+    private Counter getCounter(BareJID user) throws TigaseDBException {
+        Counter counter = counters.get(user);
+        if (counter == null) {
+            counter = counters.putIfAbsent(user, new Counter(repo.countMessages(user)));
+        }
+        return counter;
+    }
+
+    /** Number of messages rejected because of the quota. */
+    public long getRejectedCount() {
+        return statsRejected.get();
+    }
+
+    /** Number of old messages deleted to make room for new ones. */
+    public long getDroppedCount() {
+        return statsDropped.get();
+    }
+
+}
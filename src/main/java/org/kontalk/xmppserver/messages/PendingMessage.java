@@ -0,0 +1,74 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.messages;
+
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+
+import java.util.Date;
+
+
+/**
+ * A message waiting to be written to offline storage.
+ * @author Daniele Ricci
+ */
+public class PendingMessage {
+
+    private final BareJID user;
+    private final Element stanza;
+    private final Date expire;
+    private final String compactKey;
+    private final long timestamp;
+
+    public PendingMessage(BareJID user, Element stanza, Date expire, String compactKey) {
+        this(user, stanza, expire, compactKey, System.currentTimeMillis());
+    }
+
+    public PendingMessage(BareJID user, Element stanza, Date expire, String compactKey, long timestamp) {
+        this.user = user;
+        this.stanza = stanza;
+        this.expire = expire;
+        this.compactKey = compactKey;
+        this.timestamp = timestamp;
+    }
+
+    public BareJID getUser() {
+        return user;
+    }
+
+    public Element getStanza() {
+        return stanza;
+    }
+
+    /** Expiration date (UTC), null for no expiration. */
+    public Date getExpire() {
+        return expire;
+    }
+
+    /** Compaction key: a stored message with the same key will be replaced. */
+    public String getCompactKey() {
+        return compactKey;
+    }
+
+    /** Time the message was received by the server. */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.messages;
+
+import tigase.xml.Element;
+
+
+/**
+ * A message loaded from offline storage, together with its storage id.
+ * @author Daniele Ricci
+ */
+public class StoredMessage {
+
+    private final long id;
+    private final Element stanza;
+
+    public StoredMessage(long id, Element stanza) {
+        this.id = id;
+        this.stanza = stanza;
+    }
+
+    /** Storage id, increasing in storage order. */
+    public long getId() {
+        return id;
+    }
+
+    public Element getStanza() {
+        return stanza;
+    }
+
+}
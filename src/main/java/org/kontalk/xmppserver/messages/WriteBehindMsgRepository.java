@@ -0,0 +1,368 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.messages;
+
+import tigase.db.DBInitException;
+import tigase.db.TigaseDBException;
+import tigase.db.UserNotFoundException;
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * A write-behind stage in front of another message repository.
+ * Stored messages are queued and written in batches by a few writer threads.
+ * Messages for the same user always go through the same writer, so they are
+ * written in order; before loading or deleting messages for a user, any
+ * pending write for that user is flushed. Queued messages are written out
+ * on shutdown. Batches stored with {@link #storeMessages(List)} are written
+ * synchronously, so callers can rely on them being in the backend on return.
+ * @author Daniele Ricci
+ */
+public class WriteBehindMsgRepository implements MsgRepository {
+
+    private static final Logger log = Logger.getLogger(WriteBehindMsgRepository.class.getName());
+
+    /** Maximum time to wait for a flush before loading messages. */
+    private static final long FLUSH_WAIT_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+    /** Maximum time to wait for the queues to be written out on shutdown. */
+    private static final long SHUTDOWN_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    private final MsgRepository backend;
+    private final Writer[] writers;
+    private final int flushSize;
+    private final long flushLatency;
+    private final long offerTimeout;
+
+    /** Number of queued messages for each user with pending writes. */
+    private final Map<BareJID, Integer> pendingUsers = new ConcurrentHashMap<>();
+
+    private volatile boolean stopping;
+
+    private final AtomicLong statsBatches = new AtomicLong();
+    private final AtomicLong statsBatchedMessages = new AtomicLong();
+    private final AtomicLong statsSyncWrites = new AtomicLong();
+
+    /**
+     * @param backend the repository messages will be written to
+     * @param numWriters number of writer threads
+     * @param queueSize total capacity of the write queues
+     * @param flushSize maximum number of messages written in a single batch
+     * @param flushLatency maximum time (in milliseconds) a message can wait before being written
+     * @param offerTimeout time (in milliseconds) to wait for space in a full queue
+     *                     before writing synchronously
+     */
+    public WriteBehindMsgRepository(MsgRepository backend, int numWriters, int queueSize,
+            int flushSize, long flushLatency, long offerTimeout) {
+        this.backend = backend;
+        this.flushSize = flushSize;
+        this.flushLatency = flushLatency;
+        this.offerTimeout = offerTimeout;
+        this.writers = new Writer[numWriters];
+        int capacity = Math.max(1, queueSize / numWriters);
+        for (int i = 0; i < numWriters; i++) {
+            writers[i] = new Writer(i, capacity);
+        }
+    }
+
+    @Override
+    public void initRepository(String resource_uri, Map<String, String> params) throws DBInitException {
+        backend.initRepository(resource_uri, params);
+        boolean started = false;
+        for (Writer w : writers) {
+            if (!w.isAlive()) {
+                w.start();
+                started = true;
+            }
+        }
+        if (started)
+            Runtime.getRuntime().addShutdownHook(new ShutdownThread());
+    }
+
+    @Override
+    public int expireMessages(int limit) throws TigaseDBException {
+        return backend.expireMessages(limit);
+    }
+
+    @Override
+    public List<StoredMessage> loadMessages(BareJID user, long afterId, int limit) throws TigaseDBException {
+        flush(user);
+        return backend.loadMessages(user, afterId, limit);
+    }
+
+    @Override
+    public int deleteMessages(BareJID user, long[] ids) throws TigaseDBException {
+        return backend.deleteMessages(user, ids);
+    }
+
+    @Override
+    public void storeMessage(BareJID user, Element msg, Date expire, String compactKey) throws TigaseDBException {
+        Writer writer = getWriter(user);
+        if (stopping || !writer.enqueue(new PendingMessage(user, msg, expire, compactKey))) {
+            // queue is full: write synchronously, slowing down the caller
+            statsSyncWrites.incrementAndGet();
+            // messages already queued for the user must be written first
+            flush(user);
+            backend.storeMessage(user, msg, expire, compactKey);
+        }
+    }
+
+    @Override
+    public void storeMessages(List<PendingMessage> messages) throws TigaseDBException {
+        // callers (e.g. the hot tier) discard their copy once this returns
+        Set<BareJID> users = new HashSet<>();
+        for (PendingMessage msg : messages) {
+            if (users.add(msg.getUser()))
+                flush(msg.getUser());
+        }
+        backend.storeMessages(messages);
+    }
+
+    @Override
+    public int countMessages(BareJID user) throws TigaseDBException {
+        flush(user);
+        return backend.countMessages(user);
+    }
+
+    @Override
+    public int deleteOldestMessages(BareJID user, int count) throws TigaseDBException {
+        flush(user);
+        return backend.deleteOldestMessages(user, count);
+    }
+
+    /** Waits for any pending write for the given user to complete. */
+    private void flush(BareJID user) throws TigaseDBException {
+        if (pendingUsers.containsKey(user)) {
+            if (!getWriter(user).waitFor(user, FLUSH_WAIT_TIMEOUT)) {
+                throw new TigaseDBException("timeout waiting for pending writes for " + user);
+            }
+        }
+    }
+
+    /**
+     * Writes out all queued messages and stops the writers.
+     * Messages stored afterwards are written synchronously.
+     */
+    public void shutdown(long timeout) {
+        stopping = true;
+        for (Writer w : writers) {
+            // wake up the writer if it's waiting for messages
+            w.queue.offer(w.flushMarker);
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+        for (Writer w : writers) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                break;
+            try {
+                w.join(remaining);
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+        }
+
+        int left = getQueueSize();
+        if (left > 0) {
+            log.log(Level.WARNING, "{0} offline messages not written on shutdown", left);
+        }
+    }
+
+    private void addPending(BareJID user) {
+        pendingUsers.merge(user, 1, Integer::sum);
+    }
+
+    private void removePending(BareJID user) {
+        pendingUsers.computeIfPresent(user, (k, count) -> count > 1 ? count - 1 : null);
+    }
+
+    private Writer getWriter(BareJID user) {
+        return writers[(user.hashCode() & Integer.MAX_VALUE) % writers.length];
+    }
+
+    public long getBatchCount() {
+        return statsBatches.get();
+    }
+
+    public long getBatchedMessageCount() {
+        return statsBatchedMessages.get();
+    }
+
+    /** Number of messages written synchronously because the queue was full. */
+    public long getSyncWriteCount() {
+        return statsSyncWrites.get();
+    }
+
+    public int getQueueSize() {
+        int size = 0;
+        for (Writer w : writers)
+            size += w.queue.size();
+        return size;
+    }
+
+    private final class Writer extends Thread {
+        final BlockingQueue<PendingMessage> queue;
+        private final List<PendingMessage> batch;
+
+        /** Queue marker used to wake up the writer for an immediate flush. */
+        private final PendingMessage flushMarker = new PendingMessage(null, null, null, null, 0);
+        /** Monitor for threads waiting for a flush. */
+        private final Object flushLock = new Object();
+
+        Writer(int index, int capacity) {
+            super("msgoffline-writer-" + index);
+            setDaemon(true);
+            queue = new ArrayBlockingQueue<>(capacity);
+            batch = new ArrayList<>(flushSize);
+        }
+
+        boolean enqueue(PendingMessage msg) {
+            addPending(msg.getUser());
+            try {
+                if (queue.offer(msg) || queue.offer(msg, offerTimeout, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+            catch (InterruptedException ignored) {
+            }
+
+            removePending(msg.getUser());
+            return false;
+        }
+
+        boolean waitFor(BareJID user, long timeout) {
+            long deadline = System.currentTimeMillis() + timeout;
+            // wake up the writer if it's waiting for more messages
+            queue.offer(flushMarker);
+            synchronized (flushLock) {
+                while (pendingUsers.containsKey(user)) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0)
+                        return false;
+                    try {
+                        flushLock.wait(remaining);
+                    }
+                    catch (InterruptedException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private void written() {
+            synchronized (flushLock) {
+                flushLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    PendingMessage first = queue.take();
+                    if (first != flushMarker) {
+                        batch.add(first);
+
+                        // collect more messages until the batch is full or latency runs out
+                        long deadline = System.currentTimeMillis() + flushLatency;
+                        while (batch.size() < flushSize) {
+                            long remaining = deadline - System.currentTimeMillis();
+                            if (remaining <= 0)
+                                break;
+
+                            PendingMessage next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+                            if (next == null || next == flushMarker)
+                                break;
+                            batch.add(next);
+                        }
+                    }
+
+                    queue.drainTo(batch, flushSize - batch.size());
+                    batch.removeIf(m -> m == flushMarker);
+                    if (!batch.isEmpty()) {
+                        write();
+                    }
+                }
+                catch (InterruptedException e) {
+                    break;
+                }
+                catch (Exception e) {
+                    log.log(Level.SEVERE, "unexpected error in offline message writer", e);
+                }
+
+                if (stopping && queue.isEmpty())
+                    break;
+            }
+        }
+
+        private void write() {
+            try {
+                backend.storeMessages(batch);
+                statsBatches.incrementAndGet();
+                statsBatchedMessages.addAndGet(batch.size());
+            }
+            catch (TigaseDBException e) {
+                // nothing was written, so this won't duplicate rows
+                log.log(Level.WARNING, "error writing message batch, falling back to single writes", e);
+                for (PendingMessage msg : batch) {
+                    try {
+                        backend.storeMessage(msg.getUser(), msg.getStanza(), msg.getExpire(), msg.getCompactKey());
+                    }
+                    catch (UserNotFoundException ignored) {
+                    }
+                    catch (TigaseDBException e1) {
+                        log.log(Level.WARNING, "unable to store offline message for " + msg.getUser(), e1);
+                    }
+                }
+            }
+            finally {
+                for (PendingMessage msg : batch) {
+                    removePending(msg.getUser());
+                }
+                batch.clear();
+                written();
+            }
+        }
+    }
+
+    private class ShutdownThread extends Thread {
+
+        ShutdownThread() {
+            super();
+            setName("msgoffline-writer-shutdown");
+        }
+
+        @Override
+        public void run() {
+            shutdown(SHUTDOWN_TIMEOUT);
+        }
+    }
+
+}
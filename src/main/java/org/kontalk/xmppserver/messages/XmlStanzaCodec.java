@@ -0,0 +1,54 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.messages;
+
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Plain XML stanza codec: the stanza is stored as UTF-8 text.
+ * @author Daniele Ricci
+ */
+public class XmlStanzaCodec implements StanzaCodec {
+
+    private final SimpleParser parser = SingletonFactory.getParserInstance();
+
+    @Override
+    public byte[] encode(Element stanza) {
+        return stanza.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Element decode(byte[] data) {
+        return parse(new String(data, StandardCharsets.UTF_8));
+    }
+
+    public Element parse(String stanza) {
+        DomBuilderHandler domHandler = new DomBuilderHandler();
+        char[] data = stanza.toCharArray();
+        parser.parse(domHandler, data, 0, data.length);
+        return domHandler.getParsedElements().poll();
+    }
+
+}
@@ -26,20 +26,44 @@ import fm.last.commons.lang.units.JedecByteUnit;
 import org.apache.log4j.BasicConfigurator;
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.kontalk.xmppserver.util.BoundedCache;
 
 import javax.xml.bind.DatatypeConverter;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 
+/**
+ * Public keys storage.
+ * Parsed keyrings are cached, so frequently used keys are not parsed on
+ * every lookup.
+ * @author Daniele Ricci
+ */
 public class PGPLocalKeyring {
     static {
         BasicConfigurator.configure();
     }
 
+    private static final int CACHE_SIZE = 10000;
+    private static final long CACHE_TTL = TimeUnit.MINUTES.toMillis(30);
+    /** Number of locks serializing loads and imports of the same key. */
+    private static final int KEY_LOCKS = 64;
+
     private final KyotoDb db;
 
+    /** Parsed keyrings by fingerprint. Keyrings are immutable, so they can be shared. */
+    private final BoundedCache<String, PGPPublicKeyRing> cache = new BoundedCache<>(CACHE_SIZE, CACHE_TTL);
+
+    private final Object[] locks = new Object[KEY_LOCKS];
+
+    private final AtomicLong statsWrites = new AtomicLong();
+    private final AtomicLong statsSkippedWrites = new AtomicLong();
+
     public PGPLocalKeyring(String filename) throws IOException {
         File dbFile = DbType.FILE_HASH.createFile(filename);
         db = new KyotoDbBuilder(dbFile)
@@ -47,12 +71,25 @@ public class PGPLocalKeyring {
                 .buckets(100000)
                 .memoryMapSize(5, JedecByteUnit.MEGABYTES)
                 .buildAndOpen();
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
         Runtime.getRuntime().addShutdownHook(new ShutdownThread());
     }
 
     /** Returns the public key represented by the given fingerprint. */
     public PGPPublicKeyRing getKey(String fingerprint) throws IOException, PGPException {
-        return getKey(fingerprintKey(fingerprint));
+        String fpr = fingerprint.toUpperCase(Locale.US);
+        PGPPublicKeyRing keyring = cache.get(fpr);
+        if (keyring == null) {
+            // don't race with an import of the same key
+            synchronized (getLock(fpr)) {
+                keyring = getKey(fingerprintKey(fpr));
+                if (keyring != null) {
+                    keyring = cache.putIfAbsent(fpr, keyring);
+                }
+            }
+        }
+        return keyring;
     }
 
     /** Imports the given key. */
@@ -67,21 +104,56 @@ public class PGPLocalKeyring {
 
     private PGPPublicKeyRing importKey(PGPPublicKeyRing keyring) throws IOException, PGPException {
         String fpr = PGPUtils.getFingerprint(keyring);
-        PGPPublicKeyRing newring;
-        PGPPublicKeyRing oldring = getKey(fpr);
-        if (oldring != null) {
-            newring = PGPUtils.merge(oldring, keyring);
-        }
-        else {
-            newring = keyring;
-        }
+        // concurrent imports of the same key must merge with each other's result
+        synchronized (getLock(fpr)) {
+            PGPPublicKeyRing newring;
+            PGPPublicKeyRing oldring = getKey(fpr);
+            if (oldring != null) {
+                newring = PGPUtils.merge(oldring, keyring);
+            }
+            else {
+                newring = keyring;
+            }
+
+            byte[] encoded = newring != oldring ? newring.getEncoded() : null;
+            if (oldring != null && (encoded == null || Arrays.equals(encoded, oldring.getEncoded()))) {
+                // nothing new in the imported key
+                statsSkippedWrites.incrementAndGet();
+                return oldring;
+            }
 
-        db.set(fingerprintKey(fpr), newring.getEncoded());
-        return newring;
+            db.set(fingerprintKey(fpr), encoded);
+            cache.put(fpr, newring);
+            statsWrites.incrementAndGet();
+            return newring;
+        }
     }
 
     public void close() throws IOException {
         db.close();
+        cache.clear();
+    }
+
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    public long getCacheHits() {
+        return cache.getHits();
+    }
+
+    public long getCacheMisses() {
+        return cache.getMisses();
+    }
+
+    /** Number of imports that changed the stored key. */
+    public long getWriteCount() {
+        return statsWrites.get();
+    }
+
+    /** Number of imports that did not change the stored key. */
+    public long getSkippedWriteCount() {
+        return statsSkippedWrites.get();
     }
 
     // TODO signKey method?
@@ -94,6 +166,11 @@ public class PGPLocalKeyring {
         return null;
     }
 
+    /** Returns the lock serializing loads and imports of the given key. */
+    private Object getLock(String fingerprint) {
+        return locks[(fingerprint.hashCode() & 0x7fffffff) % locks.length];
+    }
+
     private byte[] fingerprintKey(String s) {
         return DatatypeConverter.parseHexBinary(s);
     }
@@ -0,0 +1,202 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.pgp;
+
+import org.bouncycastle.bcpg.BCPGOutputStream;
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.openpgp.*;
+import org.bouncycastle.openpgp.operator.PBESecretKeyDecryptor;
+import org.bouncycastle.openpgp.operator.bc.BcPBESecretKeyDecryptorBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPGPDigestCalculatorProvider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Iterator;
+
+
+/**
+ * In-process OpenPGP signer.
+ * Produces the same packets as gpg2 --sign-key and --sign, using a
+ * secret key that is decrypted once. Instances are thread-safe.
+ * @author Daniele Ricci
+ */
+public class PGPSigner {
+
+    private static final int HASH_ALGORITHM = HashAlgorithmTags.SHA256;
+
+    /** Master key, used for certifications. */
+    private final PGPPublicKey certificationKey;
+    private final PGPPrivateKey certificationPrivateKey;
+
+    /** Key used for data signatures: a signing subkey if available, the master key otherwise. */
+    private final PGPPublicKey signingKey;
+    private final PGPPrivateKey signingPrivateKey;
+
+    public PGPSigner(PGPSecretKeyRing secretKeyring, char[] passphrase) throws PGPException {
+        PBESecretKeyDecryptor decryptor = new BcPBESecretKeyDecryptorBuilder(
+                new BcPGPDigestCalculatorProvider()).build(passphrase);
+
+        PGPSecretKey master = secretKeyring.getSecretKey();
+        if (master == null || master.isPrivateKeyEmpty())
+            throw new PGPException("no secret master key");
+
+        certificationKey = master.getPublicKey();
+        certificationPrivateKey = master.extractPrivateKey(decryptor);
+
+        PGPSecretKey signing = findSigningKey(secretKeyring);
+        if (signing != null) {
+            signingKey = signing.getPublicKey();
+            signingPrivateKey = signing.extractPrivateKey(decryptor);
+        }
+        else {
+            signingKey = certificationKey;
+            signingPrivateKey = certificationPrivateKey;
+        }
+    }
+
+    /** Loads a signer from a secret key file (binary or armored). */
+    public static PGPSigner load(String secretKeyFile, char[] passphrase) throws IOException, PGPException {
+        try (InputStream in = PGPUtil.getDecoderStream(new FileInputStream(secretKeyFile))) {
+            return new PGPSigner(PGPUtils.readSecretKeyring(in), passphrase);
+        }
+    }
+
+    /** Returns the newest valid subkey capable of signing data, like gpg does. */
+    private static PGPSecretKey findSigningKey(PGPSecretKeyRing secretKeyring) {
+        PGPSecretKey found = null;
+
+        @SuppressWarnings("unchecked")
+        Iterator<PGPSecretKey> keys = secretKeyring.getSecretKeys();
+        while (keys.hasNext()) {
+            PGPSecretKey key = keys.next();
+            PGPPublicKey pk = key.getPublicKey();
+            if (key.isMasterKey() || key.isPrivateKeyEmpty() || pk.hasRevocation() || PGPUtils.isExpired(pk))
+                continue;
+
+            if (canSign(pk) && (found == null || found.getPublicKey().getCreationTime().before(pk.getCreationTime())))
+                found = key;
+        }
+
+        return found;
+    }
+
+    private static boolean canSign(PGPPublicKey subkey) {
+        @SuppressWarnings("unchecked")
+        Iterator<PGPSignature> sigs = subkey.getSignaturesOfType(PGPSignature.SUBKEY_BINDING);
+        while (sigs != null && sigs.hasNext()) {
+            PGPSignature sig = sigs.next();
+            PGPSignatureSubpacketVector hashed = sig.getHashedSubPackets();
+            if (hashed != null && (hashed.getKeyFlags() & KeyFlags.SIGN_DATA) != 0)
+                return true;
+        }
+        return false;
+    }
+
+    private PGPSignatureGenerator createGenerator(PGPPublicKey key, PGPPrivateKey privateKey, int signatureType)
+            throws PGPException {
+        // creation time and issuer subpackets are added by the generator
+        PGPSignatureGenerator generator = new PGPSignatureGenerator(
+                new BcPGPContentSignerBuilder(key.getAlgorithm(), HASH_ALGORITHM));
+        generator.init(signatureType, privateKey);
+        return generator;
+    }
+
+    /** Returns the fingerprint of the certification key. */
+    public String getFingerprint() {
+        return PGPUtils.getFingerprint(certificationKey);
+    }
+
+    /**
+     * Certifies all user IDs of the given public key that are not yet
+     * certified by the server key.
+     * @return the signed public keyring
+     */
+    public byte[] signKey(byte[] keyData) throws IOException, PGPException {
+        PGPPublicKeyRing keyring = PGPUtils.readPublicKeyring(keyData);
+        PGPPublicKey masterKey = PGPUtils.getMasterKey(keyring);
+        if (masterKey == null)
+            throw new PGPException("invalid key data");
+
+        PGPPublicKey signedKey = masterKey;
+
+        @SuppressWarnings("unchecked")
+        Iterator<String> uids = masterKey.getUserIDs();
+        while (uids.hasNext()) {
+            String uid = uids.next();
+            if (isCertified(masterKey, uid))
+                continue;
+
+            PGPSignatureGenerator generator = createGenerator(certificationKey,
+                    certificationPrivateKey, PGPSignature.DEFAULT_CERTIFICATION);
+            PGPSignature sig = generator.generateCertification(uid, masterKey);
+            signedKey = PGPPublicKey.addCertification(signedKey, uid, sig);
+        }
+
+        if (signedKey != masterKey)
+            keyring = PGPPublicKeyRing.insertPublicKey(keyring, signedKey);
+        return keyring.getEncoded();
+    }
+
+    private boolean isCertified(PGPPublicKey key, String uid) {
+        long keyId = certificationKey.getKeyID();
+
+        @SuppressWarnings("unchecked")
+        Iterator<PGPSignature> sigs = key.getSignaturesForID(uid);
+        while (sigs != null && sigs.hasNext()) {
+            PGPSignature sig = sigs.next();
+            if (sig.getKeyID() == keyId && sig.isCertification())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Signs the given data.
+     * @return a compressed message with a one-pass signature, literal data
+     * and the signature, like gpg2 --sign
+     */
+    public byte[] signData(byte[] data) throws IOException, PGPException {
+        PGPSignatureGenerator generator = createGenerator(signingKey,
+                signingPrivateKey, PGPSignature.BINARY_DOCUMENT);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream(data.length + 512);
+        PGPCompressedDataGenerator compressor = new PGPCompressedDataGenerator(CompressionAlgorithmTags.ZIP);
+        BCPGOutputStream out = new BCPGOutputStream(compressor.open(output));
+
+        generator.generateOnePassVersion(false).encode(out);
+
+        PGPLiteralDataGenerator literal = new PGPLiteralDataGenerator();
+        OutputStream literalOut = literal.open(out, PGPLiteralData.BINARY, "", data.length, new Date());
+        literalOut.write(data);
+        generator.update(data);
+        literal.close();
+
+        generator.generate().encode(out);
+        compressor.close();
+        return output.toByteArray();
+    }
+
+}
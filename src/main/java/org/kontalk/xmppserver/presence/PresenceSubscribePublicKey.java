@@ -26,7 +26,6 @@ import tigase.db.TigaseDBException;
 import tigase.db.UserNotFoundException;
 import tigase.server.Packet;
 import tigase.server.Presence;
-import tigase.util.Base64;
 import tigase.xml.Element;
 import tigase.xmpp.*;
 import tigase.xmpp.impl.roster.RosterAbstract;
@@ -112,10 +111,10 @@ public class PresenceSubscribePublicKey extends XMPPProcessor implements
         if (fingerprint != null) {
             try {
                 String domain = session.getDomainAsJID().toString();
-                byte[] keyData = KontalkKeyring.getInstance(domain).exportKey(fingerprint);
-                if (keyData != null && keyData.length > 0) {
+                String keyData = KontalkKeyring.getInstance(domain).exportKeyBase64(fingerprint);
+                if (keyData != null) {
                     Element pubkey = new Element(ELEM_NAME, new String[] { Packet.XMLNS_ATT }, new String[] { XMLNS });
-                    pubkey.addChild(new Element("key", Base64.encode(keyData)));
+                    pubkey.addChild(new Element("key", keyData));
                     pubkey.addChild(new Element("print", fingerprint));
 
                     Packet result = packet.copyElementOnly();
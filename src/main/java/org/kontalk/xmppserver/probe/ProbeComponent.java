@@ -18,6 +18,8 @@
 
 package org.kontalk.xmppserver.probe;
 
+import org.kontalk.xmppserver.blocking.ReverseBlockIndex;
+import org.kontalk.xmppserver.util.UserUidCache;
 import tigase.conf.ConfigurationException;
 import tigase.db.RepositoryFactory;
 import tigase.db.TigaseDBException;
@@ -26,6 +28,7 @@ import tigase.server.AbstractMessageReceiver;
 import tigase.server.Iq;
 import tigase.server.Packet;
 import tigase.server.XMPPServer;
+import tigase.stats.StatisticsList;
 import tigase.util.TigaseStringprepException;
 import tigase.vhosts.VHostManagerIfc;
 import tigase.xml.Element;
@@ -101,6 +104,12 @@ public class ProbeComponent extends AbstractMessageReceiver {
                     if (items != null) {
                         String serverDomain = getDefVHostItem().getDomain();
 
+                        // local requester, used for block status checks (XEP-0191)
+                        BareJID requester = localOnly ? null : stanzaFrom.getBareJID();
+                        long requesterUid = requester != null && requester.getLocalpart() != null ?
+                                getLocalUID(requester) : 0;
+                        ReverseBlockIndex blockIndex = ReverseBlockIndex.getInstance();
+
                         Set<BareJID> found = new HashSet<>();
                         Set<BareJID> remote = localOnly ? null : new HashSet<>();
                         for (Element item : items) {
@@ -113,13 +122,19 @@ public class ProbeComponent extends AbstractMessageReceiver {
                             BareJID localJid = BareJID.bareJIDInstance(jid.getLocalpart(), serverDomain);
                             String domain = jid.getDomain();
 
-                            // TODO check for block status (XEP-0191)
-                            // blocked contacts must not be found as existing
-
                             boolean isLocalJid = domain.equalsIgnoreCase(serverDomain);
 
                             if (isLocalJid) {
-                                if (isLocalJID(localJid)) {
+                                long uid = getLocalUID(localJid);
+                                if (uid > 0) {
+                                    // blocked contacts must not be found as existing
+                                    if (requesterUid > 0 && blockIndex.isBlockedEitherWay(requester, requesterUid, localJid, uid)) {
+                                        if (log.isLoggable(Level.FINEST)) {
+                                            log.log(Level.FINEST, "hiding blocked user {0}", jid);
+                                        }
+                                        continue;
+                                    }
+
                                     if (log.isLoggable(Level.FINEST)) {
                                         log.log(Level.FINEST, "found local user {0}", jid);
                                     }
@@ -352,15 +367,30 @@ public class ProbeComponent extends AbstractMessageReceiver {
 
     /** Returns true if the given JID is registered locally (user repository lookup). */
     protected boolean isLocalJID(BareJID jid) {
+        return getLocalUID(jid) > 0;
+    }
+
+    /** Returns the UID of the given JID if it's registered locally, 0 otherwise. */
+    protected long getLocalUID(BareJID jid) {
         try {
-            return user_repository.getUserUID(jid) > 0;
+            return UserUidCache.getInstance().getUserUID(user_repository, jid);
         }
         catch (TigaseDBException e) {
             log.log(Level.WARNING, "error reading from user repository", e);
-            return false;
+            return 0;
         }
     }
 
+    @Override
+    public void getStatistics(StatisticsList list) {
+        super.getStatistics(list);
+        UserUidCache uidCache = UserUidCache.getInstance();
+        list.add(getName(), "User UID cache size", uidCache.size(), Level.FINE);
+        list.add(getName(), "User UID cache hits", uidCache.getHits(), Level.INFO);
+        list.add(getName(), "User UID cache misses", uidCache.getMisses(), Level.INFO);
+        list.add(getName(), "Reverse block index size", ReverseBlockIndex.getInstance().size(), Level.FINE);
+    }
+
     @Override
     public int processingInThreads() {
         return NUM_THREADS;
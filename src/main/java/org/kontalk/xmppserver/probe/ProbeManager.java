@@ -18,6 +18,7 @@
 
 package org.kontalk.xmppserver.probe;
 
+import org.kontalk.xmppserver.util.UserUidCache;
 import tigase.db.TigaseDBException;
 import tigase.db.UserRepository;
 import tigase.server.Packet;
@@ -96,7 +97,7 @@ public class ProbeManager {
         boolean foundLocally = false;
         // shortcut to check locally immediately
         try {
-            if (userRepository.getUserUID(user) > 0) {
+            if (UserUidCache.getInstance().getUserUID(userRepository, user) > 0) {
                 foundLocally = true;
             }
         }
@@ -0,0 +1,191 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * A concurrent cache with a maximum size and per-entry expiration.
+ * Eviction is approximate: when the cache is full, a few entries are sampled
+ * and the least recently used one is removed, unless an expired entry is
+ * found first. Only one thread evicts at a time, so the cache can briefly
+ * grow slightly over its maximum size.
+ * Null values are not supported.
+ * @author Daniele Ricci
+ */
+public class BoundedCache<K, V> {
+
+    private static final class Entry<V> {
+        final V value;
+        final long expires;
+        /** Last access time. Not volatile: it's only a hint for eviction. */
+        long accessed;
+
+        Entry(V value, long expires, long now) {
+            this.value = value;
+            this.expires = expires;
+            this.accessed = now;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expires;
+        }
+    }
+
+    private final Map<K, Entry<V>> entries;
+    private final int maxSize;
+    private final long defaultTtl;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /** Number of entries looked at to choose one to evict. */
+    private static final int EVICTION_SAMPLES = 8;
+
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    /** Where sampling continues from. Only used by the evicting thread. */
+    private Iterator<Map.Entry<K, Entry<V>>> evictionCursor;
+
+    /**
+     * @param maxSize maximum number of entries
+     * @param defaultTtl default time to live of entries, in milliseconds
+     */
+    public BoundedCache(int maxSize, long defaultTtl) {
+        this.entries = new ConcurrentHashMap<>(Math.min(maxSize, 1024));
+        this.maxSize = maxSize;
+        this.defaultTtl = defaultTtl;
+    }
+
+    /** Returns the cached value, or null if not found or expired. */
+    public V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null) {
+            long now = System.currentTimeMillis();
+            if (!entry.isExpired(now)) {
+                entry.accessed = now;
+                hits.increment();
+                return entry.value;
+            }
+            entries.remove(key, entry);
+        }
+        misses.increment();
+        return null;
+    }
+
+    public void put(K key, V value) {
+        put(key, value, defaultTtl);
+    }
+
+    /** Caches a value with the given time to live (in milliseconds). */
+    public void put(K key, V value, long ttl) {
+        if (entries.size() >= maxSize && !entries.containsKey(key)) {
+            evict();
+        }
+        long now = System.currentTimeMillis();
+        entries.put(key, new Entry<>(value, now + ttl, now));
+    }
+
+    /**
+     * Caches a value with the default time to live, unless a value is already cached.
+     * @return the value now in the cache
+     */
+    public V putIfAbsent(K key, V value) {
+        if (entries.size() >= maxSize && !entries.containsKey(key)) {
+            evict();
+        }
+        long now = System.currentTimeMillis();
+        return entries.compute(key, (k, e) -> e != null && !e.isExpired(now) ?
+                e : new Entry<>(value, now + defaultTtl, now)).value;
+    }
+
+    public void invalidate(K key) {
+        entries.remove(key);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    /** Makes room for a new entry. */
+    private void evict() {
+        // other threads don't wait for the eviction in progress
+        if (!evicting.compareAndSet(false, true))
+            return;
+
+        try {
+            long now = System.currentTimeMillis();
+            int excess = entries.size() - maxSize + 1;
+            for (int i = 0; i < excess; i++) {
+                Map.Entry<K, Entry<V>> victim = null;
+                for (int j = 0; j < EVICTION_SAMPLES; j++) {
+                    Map.Entry<K, Entry<V>> candidate = nextSample();
+                    if (candidate == null)
+                        break;
+                    if (candidate.getValue().isExpired(now)) {
+                        victim = candidate;
+                        break;
+                    }
+                    if (victim == null || candidate.getValue().accessed < victim.getValue().accessed)
+                        victim = candidate;
+                }
+
+                if (victim == null)
+                    break;
+                if (entries.remove(victim.getKey(), victim.getValue()) && !victim.getValue().isExpired(now))
+                    evictions.increment();
+            }
+        }
+        finally {
+            evicting.set(false);
+        }
+    }
+
+    /** Returns the next entry to sample, wrapping around at the end. */
+    private Map.Entry<K, Entry<V>> nextSample() {
+        if (evictionCursor == null || !evictionCursor.hasNext()) {
+            evictionCursor = entries.entrySet().iterator();
+            if (!evictionCursor.hasNext())
+                return null;
+        }
+        return evictionCursor.next();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.util;
+
+import tigase.server.Iq;
+import tigase.server.Message;
+import tigase.server.Packet;
+import tigase.xml.Element;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+
+
+/**
+ * Classifies stanzas by walking their children only once.
+ * The result is a bitmask of the flags defined here; the last classified
+ * stanza is remembered per thread, so plugins processing the same packet
+ * one after another on the same thread share the result.
+ * Callers must not mutate the stanza between calls: adding or removing
+ * children is detected, but changes to existing children are not. The
+ * remembered stanza is only weakly referenced.
+ * @author Daniele Ricci
+ */
+public class StanzaClassifier {
+
+    public static final int MESSAGE = 1;
+    public static final int IQ = 1 << 1;
+    /** Message has a body element. */
+    public static final int BODY = 1 << 2;
+    /** Message has a non-empty body element. */
+    public static final int BODY_TEXT = 1 << 3;
+    /** Message requests a delivery receipt. */
+    public static final int RECEIPT_REQUEST = 1 << 4;
+    /** Message is a delivery receipt. */
+    public static final int RECEIPT_RECEIVED = 1 << 5;
+    public static final int CHAT_STATE_ACTIVE = 1 << 6;
+    public static final int CHAT_STATE_COMPOSING = 1 << 7;
+    public static final int CHAT_STATE_PAUSED = 1 << 8;
+    public static final int CHAT_STATE_INACTIVE = 1 << 9;
+    public static final int CHAT_STATE_GONE = 1 << 10;
+    /** Stanza has a delay element. */
+    public static final int DELAY = 1 << 11;
+    /** Ping request. */
+    public static final int PING = 1 << 12;
+
+    /** Any chat state except active. */
+    public static final int CHAT_STATE_NOTIFY = CHAT_STATE_COMPOSING | CHAT_STATE_PAUSED |
+            CHAT_STATE_INACTIVE | CHAT_STATE_GONE;
+    public static final int CHAT_STATE = CHAT_STATE_ACTIVE | CHAT_STATE_NOTIFY;
+
+    private static final String RECEIPTS_XMLNS = "urn:xmpp:receipts";
+    private static final String CHATSTATE_XMLNS = "http://jabber.org/protocol/chatstates";
+    private static final String DELAY_XMLNS = "urn:xmpp:delay";
+    private static final String PING_XMLNS = "urn:xmpp:ping";
+
+    private static final class LastClassified {
+        WeakReference<Element> element = new WeakReference<>(null);
+        int childCount;
+        int flags;
+    }
+
+    private static final ThreadLocal<LastClassified> last = ThreadLocal.withInitial(LastClassified::new);
+
+    private StanzaClassifier() {
+    }
+
+    /** Returns the classification flags for the given packet. */
+    public static int classify(Packet packet) {
+        Element element = packet.getElement();
+        List<Element> children = element.getChildren();
+        int childCount = children != null ? children.size() : 0;
+
+        LastClassified cached = last.get();
+        if (cached.element.get() != element || cached.childCount != childCount) {
+            cached.flags = classify(packet.getElemName(), children);
+            cached.element = new WeakReference<>(element);
+            cached.childCount = childCount;
+        }
+        return cached.flags;
+    }
+
+    /** Returns true if all of the given flags are set. */
+    public static boolean is(Packet packet, int flags) {
+        return (classify(packet) & flags) == flags;
+    }
+
+    /** Returns true if any of the given flags is set. */
+    public static boolean isAny(Packet packet, int flags) {
+        return (classify(packet) & flags) != 0;
+    }
+
+    private static int classify(String name, List<Element> children) {
+        int flags;
+        if (name == Message.ELEM_NAME)
+            flags = MESSAGE;
+        else if (name == Iq.ELEM_NAME)
+            flags = IQ;
+        else
+            flags = 0;
+
+        if (children != null) {
+            for (Element child : children) {
+                flags |= classifyChild(flags, child);
+            }
+        }
+        return flags;
+    }
+
+    private static int classifyChild(int flags, Element child) {
+        String name = child.getName();
+        String xmlns = child.getXMLNS();
+
+        if (DELAY_XMLNS.equals(xmlns) && "delay".equals(name))
+            return DELAY;
+
+        if ((flags & MESSAGE) != 0) {
+            if ("body".equals(name))
+                return child.getCData() != null ? BODY | BODY_TEXT : BODY;
+
+            if (RECEIPTS_XMLNS.equals(xmlns)) {
+                if ("request".equals(name))
+                    return RECEIPT_REQUEST;
+                if ("received".equals(name))
+                    return RECEIPT_RECEIVED;
+            }
+            else if (CHATSTATE_XMLNS.equals(xmlns)) {
+                switch (name) {
+                    case "active":
+                        return CHAT_STATE_ACTIVE;
+                    case "composing":
+                        return CHAT_STATE_COMPOSING;
+                    case "paused":
+                        return CHAT_STATE_PAUSED;
+                    case "inactive":
+                        return CHAT_STATE_INACTIVE;
+                    case "gone":
+                        return CHAT_STATE_GONE;
+                }
+            }
+        }
+        else if ((flags & IQ) != 0) {
+            if (PING_XMLNS.equals(xmlns) && "ping".equals(name))
+                return PING;
+        }
+        return 0;
+    }
+
+}
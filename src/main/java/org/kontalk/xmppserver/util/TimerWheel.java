@@ -0,0 +1,187 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * A hashed timer wheel for many short, mostly cancelled timeouts.
+ * Scheduling and cancelling are cheap and lock-free; expired tasks are run
+ * by a single daemon thread with tick precision, so they must be short and
+ * must not block.
+ * @author Daniele Ricci
+ */
+public class TimerWheel {
+
+    private static final Logger log = Logger.getLogger(TimerWheel.class.getName());
+
+    private static final long DEFAULT_TICK = 100;
+    private static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static volatile TimerWheel instance;
+
+    /** A scheduled task. */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long rounds;
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task.
+         * @return false if the task has already been run or cancelled
+         */
+        public boolean cancel() {
+            return done.compareAndSet(false, true);
+        }
+
+        public boolean isDone() {
+            return done.get();
+        }
+
+        /** Time (in milliseconds) the task is due at. */
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+
+    private final long tick;
+    private final List<Timeout>[] wheel;
+    private final int mask;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final String name;
+
+    private long startTime;
+    private long currentTick;
+
+    public static TimerWheel getInstance() {
+        if (instance == null) {
+            synchronized (TimerWheel.class) {
+                if (instance == null)
+                    instance = new TimerWheel("timer-wheel", DEFAULT_TICK, DEFAULT_WHEEL_SIZE);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @param name name of the worker thread
+     * @param tick duration of a tick, in milliseconds
+     * @param wheelSize number of slots, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(String name, long tick, int wheelSize) {
+        this.name = name;
+        this.tick = tick;
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.wheel = new List[size];
+        for (int i = 0; i < size; i++)
+            wheel[i] = new ArrayList<>();
+        this.mask = size - 1;
+    }
+
+    /**
+     * Schedules a task to run after the given delay.
+     * @param delay delay in milliseconds
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        if (started.compareAndSet(false, true)) {
+            startTime = System.currentTimeMillis();
+            Thread worker = new Thread(this::run, name);
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        Timeout timeout = new Timeout(task, System.currentTimeMillis() + Math.max(0, delay));
+        pending.offer(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        while (true) {
+            long deadline = startTime + (currentTick + 1) * tick;
+            long sleep = deadline - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(sleep);
+                }
+                catch (InterruptedException e) {
+                    break;
+                }
+            }
+
+            transferPending();
+            expire(wheel[(int) (currentTick & mask)]);
+            currentTick++;
+        }
+    }
+
+    /** Moves newly scheduled tasks to their slot. */
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.isDone())
+                continue;
+
+            // tasks already due go in the current slot
+            long ticks = Math.max(currentTick, (timeout.deadline - startTime) / tick);
+            timeout.rounds = (ticks - currentTick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout> slot) {
+        for (Iterator<Timeout> it = slot.iterator(); it.hasNext(); ) {
+            Timeout timeout = it.next();
+            if (timeout.isDone()) {
+                it.remove();
+            }
+            else if (timeout.rounds <= 0) {
+                it.remove();
+                if (timeout.cancel()) {
+                    try {
+                        timeout.task.run();
+                    }
+                    catch (Exception e) {
+                        log.log(Level.WARNING, "error running timer task", e);
+                    }
+                }
+            }
+            else {
+                timeout.rounds--;
+            }
+        }
+    }
+
+}
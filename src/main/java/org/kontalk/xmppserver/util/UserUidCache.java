@@ -0,0 +1,89 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.util;
+
+import tigase.db.TigaseDBException;
+import tigase.db.UserRepository;
+import tigase.xmpp.BareJID;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Shared cache of user UIDs.
+ * Unknown users are cached too, but only for a short time. Code adding or
+ * removing users must call {@link #invalidate(BareJID)}.
+ * @author Daniele Ricci
+ */
+public class UserUidCache {
+
+    private static final int MAX_SIZE = 100000;
+    private static final long TTL = TimeUnit.MINUTES.toMillis(30);
+    private static final long NEGATIVE_TTL = TimeUnit.SECONDS.toMillis(30);
+
+    private static final UserUidCache instance = new UserUidCache();
+
+    public static UserUidCache getInstance() {
+        return instance;
+    }
+
+    private final BoundedCache<BareJID, Long> cache = new BoundedCache<>(MAX_SIZE, TTL);
+    /** Incremented by every invalidation, to detect lookups racing with one. */
+    private final AtomicLong generation = new AtomicLong();
+
+    private UserUidCache() {
+    }
+
+    /**
+     * Returns the UID of the given user, looking it up in the given repository if not cached.
+     * @return the user UID, or a value less than or equal to 0 if the user does not exist
+     */
+    public long getUserUID(UserRepository repo, BareJID user) throws TigaseDBException {
+        Long uid = cache.get(user);
+        if (uid == null) {
+            long gen = generation.get();
+            uid = repo.getUserUID(user);
+            cache.put(user, uid, uid > 0 ? TTL : NEGATIVE_TTL);
+            // an invalidation during the lookup means our value might be stale
+            if (generation.get() != gen)
+                cache.invalidate(user);
+        }
+        return uid;
+    }
+
+    /** Removes the given user from the cache. Must be called after adding or removing a user. */
+    public void invalidate(BareJID user) {
+        generation.incrementAndGet();
+        cache.invalidate(user);
+    }
+
+    public long getHits() {
+        return cache.getHits();
+    }
+
+    public long getMisses() {
+        return cache.getMisses();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+}
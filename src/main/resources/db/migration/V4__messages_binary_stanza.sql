@@ -0,0 +1,2 @@
+ALTER TABLE `messages`
+  MODIFY `stanza` mediumblob NOT NULL;
@@ -0,0 +1,3 @@
+ALTER TABLE `messages`
+  ADD `compact_key` char(40) CHARACTER SET ascii DEFAULT NULL,
+  ADD KEY `compact_key` (`uid`, `compact_key`);
@@ -0,0 +1,8 @@
+CREATE TABLE `blocklist` (
+  `uid` bigint(20) unsigned NOT NULL,
+  `jid_hash` char(40) CHARACTER SET ascii NOT NULL COMMENT 'SHA-1 of the blocked JID',
+  `jid` varchar(300) NOT NULL COMMENT 'Blocked JID',
+  PRIMARY KEY (`uid`, `jid_hash`),
+  KEY `jid_hash` (`jid_hash`),
+  CONSTRAINT `blocklist_ibfk_1` FOREIGN KEY (`uid`) REFERENCES `tig_users` (`uid`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='Block lists';
@@ -0,0 +1,46 @@
+package org.kontalk.xmppserver;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+
+public class ClientStateFlushPolicyTest {
+
+    @Test
+    public void testDefaults() {
+        Map<String, ClientStateFlushPolicy> policies = ClientStateFlushPolicy.fromSettings(new HashMap<>());
+        assertEquals(1, policies.size());
+        ClientStateFlushPolicy policy = policies.get(null);
+        assertNotNull(policy);
+        assertFalse(policy.isFull(49, Integer.MAX_VALUE));
+        assertTrue(policy.isFull(50, 0));
+    }
+
+    @Test
+    public void testDomainOverride() {
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("max-weight", 20);
+        settings.put("max-hold-time", "60");
+        settings.put("max-bytes@example.com", "4096");
+        settings.put("presence-weight@example.com", 2);
+
+        Map<String, ClientStateFlushPolicy> policies = ClientStateFlushPolicy.fromSettings(settings);
+        ClientStateFlushPolicy defaults = policies.get(null);
+        assertEquals(20, defaults.maxWeight);
+        assertEquals(60000, defaults.maxHoldTime);
+        assertEquals(0, defaults.maxBytes);
+
+        ClientStateFlushPolicy domain = policies.get("example.com");
+        assertNotNull(domain);
+        assertEquals(20, domain.maxWeight);
+        assertEquals(60000, domain.maxHoldTime);
+        assertEquals(2, domain.presenceWeight);
+        assertTrue(domain.isFull(1, 4096));
+        assertFalse(domain.isFull(1, 4095));
+    }
+
+}
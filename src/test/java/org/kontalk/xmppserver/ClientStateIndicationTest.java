@@ -13,9 +13,9 @@ import tigase.xmpp.XMPPException;
 import tigase.xmpp.XMPPResourceConnection;
 import tigase.xmpp.impl.ProcessorTestCase;
 
-import java.util.ArrayDeque;
-import java.util.HashMap;
-import java.util.Queue;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -140,6 +140,106 @@ public class ClientStateIndicationTest extends ProcessorTestCase {
         Assert.assertArrayEquals(expected, processed);
     }
 
+    @Test
+    public void testPresenceReplacedAndDelayed() throws XMPPException, TigaseStringprepException {
+        String recipient = "recipient-1@localhost";
+        JID recp1 = JID.jidInstanceNS(recipient + "/res1");
+        JID connId1 = JID.jidInstanceNS("c2s@localhost/recipient1-res1");
+        XMPPResourceConnection session1 = getSession(connId1, recp1);
+
+        enableCSI(session1);
+
+        ArrayDeque<Packet> results = new ArrayDeque<>();
+        Packet p1 = Packet.packetInstance("presence", "sender-1@localhost/res1", recp1.toString(), StanzaType.available);
+        p1.setPacketTo(connId1);
+        results.offer(p1);
+        csi.filter(p1, session1, null, results);
+        assertTrue(results.isEmpty());
+
+        Packet p2 = Packet.packetInstance("presence", "sender-1@localhost/res1", recp1.toString(), StanzaType.unavailable);
+        p2.setPacketTo(connId1);
+        results.offer(p2);
+        csi.filter(p2, session1, null, results);
+        assertTrue(results.isEmpty());
+        // delay is added only when flushing
+        assertNull(p2.getElement().getChild("delay", "urn:xmpp:delay"));
+
+        Queue<Packet> flushed = disableCSI(session1);
+        assertEquals(1, flushed.size());
+        Packet p = flushed.poll();
+        assertSame(p2, p);
+        assertNotNull(p.getElement().getChild("delay", "urn:xmpp:delay"));
+    }
+
+    @Test
+    public void testConcurrentFilter() throws Exception {
+        String recipient = "recipient-1@localhost";
+        JID recp1 = JID.jidInstanceNS(recipient + "/res1");
+        JID connId1 = JID.jidInstanceNS("c2s@localhost/recipient1-res1");
+        XMPPResourceConnection session1 = getSession(connId1, recp1);
+
+        enableCSI(session1);
+
+        final int threads = 4;
+        final int count = 500;
+        Set<String> delivered = ConcurrentHashMap.newKeySet();
+        AtomicInteger deliveredCount = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        List<Future<?>> tasks = new ArrayList<>();
+
+        try {
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                tasks.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < count; i++) {
+                        Packet m = Packet.packetInstance("message", "sender-" + thread + "@localhost/res1", recp1.toString(), StanzaType.chat);
+                        m.getElement().setAttribute("id", thread + "-" + i);
+                        m.getElement().addChild(new Element("received", new String[]{ "xmlns" }, new String[] { "urn:xmpp:receipts" }));
+                        m.setPacketTo(connId1);
+                        ArrayDeque<Packet> results = new ArrayDeque<>();
+                        results.offer(m);
+                        csi.filter(m, session1, null, results);
+                        collect(results, delivered, deliveredCount);
+                    }
+                    return null;
+                }));
+            }
+            tasks.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < 100; i++) {
+                    collect(disableCSI(session1), delivered, deliveredCount);
+                    enableCSI(session1);
+                    Thread.yield();
+                }
+                return null;
+            }));
+
+            start.countDown();
+            for (Future<?> task : tasks)
+                task.get(30, TimeUnit.SECONDS);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        ArrayDeque<Packet> results = new ArrayDeque<>();
+        csi.stopped(session1, results, new HashMap<>());
+        collect(results, delivered, deliveredCount);
+
+        // every receipt must be delivered exactly once
+        assertEquals(threads * count, deliveredCount.get());
+        assertEquals(threads * count, delivered.size());
+    }
+
+    private static void collect(Queue<Packet> results, Set<String> delivered, AtomicInteger deliveredCount) {
+        for (Packet p : results) {
+            delivered.add(p.getStanzaId());
+            deliveredCount.incrementAndGet();
+        }
+    }
+
     private Queue<Packet> enableCSI(XMPPResourceConnection session) throws TigaseStringprepException, XMPPException {
         Packet p = Packet.packetInstance(new Element(ClientStateIndication.ELEM_INACTIVE,
                 new String[] { "xmlns" }, new String[] { ClientStateIndication.XMLNS }));
@@ -0,0 +1,56 @@
+package org.kontalk.xmppserver.auth;
+
+import org.junit.Test;
+import org.kontalk.xmppserver.KontalkUser;
+import tigase.xmpp.BareJID;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+
+/** Test class for {@link CertificateAuthCache}. */
+public class CertificateAuthCacheTest {
+
+    private final CertificateAuthCache cache = CertificateAuthCache.getInstance();
+
+    @Test
+    public void testInvalidate() {
+        BareJID jid = BareJID.bareJIDInstanceNS("invalidate@kontalk.net");
+        KontalkUser user = new KontalkUser(jid, "0123456789ABCDEF");
+        long expires = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+
+        cache.put("cert1", user, expires, cache.getVersion());
+        assertSame(user, cache.get("cert1"));
+
+        cache.invalidate(jid);
+        assertNull(cache.get("cert1"));
+
+        // verified after the fingerprint change
+        cache.put("cert2", user, expires, cache.getVersion());
+        assertSame(user, cache.get("cert2"));
+    }
+
+    @Test
+    public void testStaleVersion() {
+        BareJID jid = BareJID.bareJIDInstanceNS("stale@kontalk.net");
+        KontalkUser user = new KontalkUser(jid, "0123456789ABCDEF");
+        long expires = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+
+        // fingerprint changed while verifying
+        long version = cache.getVersion();
+        cache.invalidate(jid);
+        cache.put("cert3", user, expires, version);
+        assertNull(cache.get("cert3"));
+    }
+
+    @Test
+    public void testExpired() {
+        BareJID jid = BareJID.bareJIDInstanceNS("expired@kontalk.net");
+        KontalkUser user = new KontalkUser(jid, "0123456789ABCDEF");
+
+        cache.put("cert4", user, System.currentTimeMillis() - 1000, cache.getVersion());
+        assertNull(cache.get("cert4"));
+    }
+
+}
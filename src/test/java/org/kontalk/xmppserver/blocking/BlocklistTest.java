@@ -0,0 +1,64 @@
+package org.kontalk.xmppserver.blocking;
+
+import org.junit.Test;
+import tigase.xmpp.BareJID;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+
+public class BlocklistTest {
+
+    private static BareJID jid(String jid) {
+        return BareJID.bareJIDInstanceNS(jid);
+    }
+
+    @Test
+    public void testEmpty() {
+        assertTrue(Blocklist.EMPTY.isEmpty());
+        assertFalse(Blocklist.EMPTY.contains(jid("user@localhost")));
+        assertFalse(Blocklist.EMPTY.contains(null));
+        assertSame(Blocklist.EMPTY, Blocklist.of(Collections.emptyList()));
+    }
+
+    @Test
+    public void testContains() {
+        List<BareJID> jids = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            jids.add(jid("user" + i + "@localhost"));
+        Blocklist list = Blocklist.of(jids);
+        assertEquals(100, list.size());
+        for (BareJID jid : jids)
+            assertTrue(list.contains(jid));
+        assertFalse(list.contains(jid("user100@localhost")));
+
+        // insertion order is kept
+        List<BareJID> iterated = new ArrayList<>();
+        list.forEach(iterated::add);
+        assertEquals(jids, iterated);
+    }
+
+    @Test
+    public void testWithWithout() {
+        BareJID a = jid("a@localhost");
+        BareJID b = jid("b@localhost");
+        Blocklist list = Blocklist.of(Collections.singletonList(a));
+
+        Blocklist added = list.with(Arrays.asList(a, b));
+        assertNotSame(list, added);
+        assertEquals(2, added.size());
+        assertTrue(added.contains(b));
+        // original is not modified
+        assertFalse(list.contains(b));
+        assertSame(added, added.with(Collections.singletonList(b)));
+
+        Blocklist removed = added.without(Collections.singletonList(a));
+        assertEquals(Blocklist.of(Collections.singletonList(b)), removed);
+        assertSame(Blocklist.EMPTY, removed.without(Collections.singletonList(b)));
+    }
+
+}
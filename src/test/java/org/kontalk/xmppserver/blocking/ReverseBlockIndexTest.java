@@ -0,0 +1,180 @@
+package org.kontalk.xmppserver.blocking;
+
+import org.junit.Test;
+import tigase.db.DBInitException;
+import tigase.db.TigaseDBException;
+import tigase.xmpp.BareJID;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+
+/** Test class for {@link ReverseBlockIndex}. */
+public class ReverseBlockIndexTest {
+
+    private static final BareJID ALICE = BareJID.bareJIDInstanceNS("alice@kontalk.net");
+    private static final BareJID ALICE_REMOTE = BareJID.bareJIDInstanceNS("alice@beta.kontalk.net");
+    private static final BareJID BOB = BareJID.bareJIDInstanceNS("bob@kontalk.net");
+
+    @Test
+    public void testBlockUnblock() {
+        ReverseBlockIndex index = new ReverseBlockIndex();
+        index.blocked(30, Collections.singletonList(ALICE));
+        index.blocked(10, Collections.singletonList(ALICE));
+        index.blocked(20, Arrays.asList(ALICE, BOB));
+        index.blocked(20, Collections.singletonList(ALICE));
+
+        assertTrue(index.isBlockedBy("alice", 10));
+        assertTrue(index.isBlockedBy("alice", 20));
+        assertTrue(index.isBlockedBy("alice", 30));
+        assertFalse(index.isBlockedBy("alice", 40));
+        assertTrue(index.isBlockedBy("bob", 20));
+        assertEquals(2, index.size());
+
+        index.unblocked(20, Collections.singletonList(ALICE));
+        assertFalse(index.isBlockedBy("alice", 20));
+        assertTrue(index.isBlockedBy("alice", 10));
+        assertTrue(index.isBlockedBy("alice", 30));
+
+        index.unblocked(20, Collections.singletonList(BOB));
+        assertFalse(index.isBlockedBy("bob", 20));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void testEitherWay() {
+        ReverseBlockIndex index = new ReverseBlockIndex();
+        // alice (uid 1) blocked bob (uid 2) through another server
+        index.blocked(1, Collections.singletonList(BareJID.bareJIDInstanceNS("bob@beta.kontalk.net")));
+
+        assertTrue(index.isBlockedEitherWay(ALICE, 1, BOB, 2));
+        assertTrue(index.isBlockedEitherWay(BOB, 2, ALICE_REMOTE, 1));
+        assertFalse(index.isBlockedEitherWay(ALICE, 1, BareJID.bareJIDInstanceNS("carol@kontalk.net"), 3));
+    }
+
+    @Test
+    public void testChangesDuringLoad() throws Exception {
+        ReverseBlockIndex index = new ReverseBlockIndex();
+        index.load(new BlocklistRepository() {
+            @Override
+            public void init(Map<String, Object> props) throws DBInitException {
+            }
+
+            @Override
+            public List<BareJID> getBlocklist(BareJID user, BareJID after, int limit) throws TigaseDBException {
+                return Collections.emptyList();
+            }
+
+            @Override
+            public void block(BareJID user, Collection<BareJID> jids) throws TigaseDBException {
+            }
+
+            @Override
+            public void unblock(BareJID user, Collection<BareJID> jids) throws TigaseDBException {
+            }
+
+            @Override
+            public void getAllItems(ItemHandler handler) throws TigaseDBException {
+                // the scan read these rows before they were changed
+                index.unblocked(20, Collections.singletonList(ALICE));
+                handler.item(20, ALICE);
+                index.blocked(10, Collections.singletonList(BOB));
+                handler.item(30, BOB);
+            }
+
+            @Override
+            public List<BareJID> getLegacyUsers(String node) throws TigaseDBException {
+                return Collections.emptyList();
+            }
+        });
+
+        assertTrue(index.isLoaded());
+        assertFalse(index.isBlockedBy("alice", 20));
+        assertTrue(index.isBlockedBy("bob", 10));
+        assertTrue(index.isBlockedBy("bob", 30));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        ReverseBlockIndex index = new ReverseBlockIndex();
+        index.load(new ScanRepository(handler -> {
+            handler.item(10, ALICE);
+            handler.item(20, BOB);
+        }));
+        assertTrue(index.isBlockedBy("alice", 10));
+        assertTrue(index.isBlockedBy("bob", 20));
+
+        // another node unblocked bob and blocked alice
+        index.load(new ScanRepository(handler -> {
+            handler.item(10, ALICE);
+            handler.item(30, ALICE);
+        }));
+        assertTrue(index.isBlockedBy("alice", 10));
+        assertTrue(index.isBlockedBy("alice", 30));
+        assertFalse(index.isBlockedBy("bob", 20));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void testFailedReload() throws Exception {
+        ReverseBlockIndex index = new ReverseBlockIndex();
+        index.load(new ScanRepository(handler -> handler.item(10, ALICE)));
+
+        try {
+            index.load(new ScanRepository(handler -> {
+                throw new TigaseDBException("database error");
+            }));
+            fail("load should have failed");
+        }
+        catch (TigaseDBException expected) {
+        }
+        // the previous index is kept
+        assertTrue(index.isBlockedBy("alice", 10));
+    }
+
+    private interface Scan {
+        void scan(BlocklistRepository.ItemHandler handler) throws TigaseDBException;
+    }
+
+    private static final class ScanRepository implements BlocklistRepository {
+        private final Scan scan;
+
+        ScanRepository(Scan scan) {
+            this.scan = scan;
+        }
+
+        @Override
+        public void init(Map<String, Object> props) throws DBInitException {
+        }
+
+        @Override
+        public List<BareJID> getBlocklist(BareJID user, BareJID after, int limit) throws TigaseDBException {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void block(BareJID user, Collection<BareJID> jids) throws TigaseDBException {
+        }
+
+        @Override
+        public void unblock(BareJID user, Collection<BareJID> jids) throws TigaseDBException {
+        }
+
+        @Override
+        public void getAllItems(ItemHandler handler) throws TigaseDBException {
+            scan.scan(handler);
+        }
+
+        @Override
+        public List<BareJID> getLegacyUsers(String node) throws TigaseDBException {
+            return Collections.emptyList();
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+package org.kontalk.xmppserver.messages;
+
+import org.junit.Test;
+import tigase.xml.Element;
+
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+
+/** Test class for {@link BinaryStanzaCodec}. */
+public class BinaryStanzaCodecTest {
+
+    private final XmlStanzaCodec xmlCodec = new XmlStanzaCodec();
+    private final BinaryStanzaCodec codec = new BinaryStanzaCodec(512);
+
+    private void assertRoundTrip(String xml) {
+        Element stanza = xmlCodec.parse(xml);
+        assertNotNull(stanza);
+
+        byte[] data = codec.encode(stanza);
+        assertEquals(BinaryStanzaCodec.VERSION, data[0]);
+        Element decoded = codec.decode(data);
+        assertNotNull(decoded);
+        assertEquals(stanza.toString(), decoded.toString());
+        assertSame(stanza.getName(), decoded.getName());
+        assertEquals(stanza.getXMLNS(), decoded.getXMLNS());
+    }
+
+    @Test
+    public void testSimpleMessage() {
+        assertRoundTrip("<message xmlns=\"jabber:client\" type=\"chat\" id=\"abc\" to=\"user@localhost\" from=\"other@localhost/res\">" +
+                "<body>Hello &amp; welcome</body>" +
+                "<request xmlns=\"urn:xmpp:receipts\"/>" +
+                "<delay xmlns=\"urn:xmpp:delay\" stamp=\"2017-01-01T00:00:00.000Z\" from=\"localhost\">Offline Storage</delay>" +
+                "</message>");
+    }
+
+    @Test
+    public void testPresence() {
+        assertRoundTrip("<presence xmlns=\"jabber:client\" type=\"subscribe\" to=\"user@localhost\" from=\"other@localhost\"/>");
+    }
+
+    @Test
+    public void testMixedContent() {
+        assertRoundTrip("<message xmlns=\"jabber:client\" type=\"chat\" to=\"user@localhost\">" +
+                "<body>Hello big world</body>" +
+                "<html xmlns=\"http://jabber.org/protocol/xhtml-im\"><body xmlns=\"http://www.w3.org/1999/xhtml\">" +
+                "<p>Hello <strong>big</strong> world<br/>again</p>" +
+                "</body></html>" +
+                "</message>");
+    }
+
+    @Test
+    public void testEncryptedMessage() {
+        byte[] payload = new byte[4096];
+        new Random(42).nextBytes(payload);
+        String base64 = Base64.getEncoder().encodeToString(payload);
+        String xml = "<message xmlns=\"jabber:client\" type=\"chat\" id=\"enc1\" to=\"user@localhost\">" +
+                "<body>encrypted</body>" +
+                "<e2e xmlns=\"urn:ietf:params:xml:ns:xmpp-e2e:0\">" + base64 + "</e2e>" +
+                "</message>";
+        assertRoundTrip(xml);
+
+        // binary payload must be smaller than the base64 text
+        byte[] data = codec.encode(xmlCodec.parse(xml));
+        assertTrue(data.length < xml.length() * 3 / 4 + 100);
+    }
+
+    @Test
+    public void testCompressed() {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 200; i++)
+            body.append("repeated text ");
+        String xml = "<message xmlns=\"jabber:client\" type=\"chat\" to=\"user@localhost\"><body>" + body + "</body></message>";
+        assertRoundTrip(xml);
+
+        byte[] data = codec.encode(xmlCodec.parse(xml));
+        assertTrue(data.length < body.length() / 4);
+    }
+
+    @Test
+    public void testNonCanonicalBase64() {
+        // looks like base64 but would not be encoded back the same way
+        StringBuilder cdata = new StringBuilder();
+        for (int i = 0; i < 20; i++)
+            cdata.append("AB==");
+        assertRoundTrip("<message xmlns=\"jabber:client\"><body>" + cdata + "</body></message>");
+    }
+
+    @Test
+    public void testInvalidData() {
+        assertNull(codec.decode(new byte[] { '<', 'a' }));
+        assertNull(codec.decode(new byte[] { BinaryStanzaCodec.VERSION, 0, 5 }));
+    }
+
+}
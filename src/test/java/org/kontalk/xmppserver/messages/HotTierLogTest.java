@@ -0,0 +1,83 @@
+package org.kontalk.xmppserver.messages;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+
+/** Test class for {@link HotTierLog}. */
+public class HotTierLogTest {
+
+    private static final BareJID ALICE = BareJID.bareJIDInstanceNS("alice@localhost");
+
+    private final XmlStanzaCodec xmlCodec = new XmlStanzaCodec();
+
+    private File file;
+    private HotTierLog log;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("hottier", ".log");
+        log = new HotTierLog(file, false);
+        log.open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    private void add(long id) throws Exception {
+        Element stanza = xmlCodec.parse("<message xmlns=\"jabber:client\" id=\"" + id + "\"><body>test</body></message>");
+        log.added(id, new PendingMessage(ALICE, stanza, null, null), xmlCodec.encode(stanza));
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        add(1);
+        add(2);
+        add(3);
+        log.removed(new long[] { 2 }, 1);
+
+        List<HotTierLog.Record> records = log.replay(xmlCodec);
+        assertEquals(2, records.size());
+        assertEquals(1, records.get(0).id);
+        assertEquals(3, records.get(1).id);
+        assertEquals("3", records.get(1).message.getStanza().getAttributeStaticStr("id"));
+    }
+
+    @Test
+    public void testTruncateWhenEmpty() throws Exception {
+        add(1);
+        add(2);
+        log.removed(new long[] { 1, 2 }, 2);
+        assertEquals(0, file.length());
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        // a message that is never removed keeps the log from being truncated
+        add(1);
+        long size = file.length();
+        for (long id = 2; id < 20000; id++) {
+            add(id);
+            log.removed(new long[] { id }, 1);
+        }
+        add(20000);
+
+        // without compaction the log would hold 20000 messages
+        assertTrue(file.length() < size * 10000);
+        List<HotTierLog.Record> records = log.replay(xmlCodec);
+        assertEquals(2, records.size());
+        assertEquals(1, records.get(0).id);
+        assertEquals(20000, records.get(1).id);
+    }
+
+}
@@ -0,0 +1,149 @@
+package org.kontalk.xmppserver.messages;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+
+/** Test class for {@link HotTierMsgRepository}. */
+public class HotTierMsgRepositoryTest {
+
+    private static final BareJID ALICE = BareJID.bareJIDInstanceNS("alice@localhost");
+    private static final BareJID BOB = BareJID.bareJIDInstanceNS("bob@localhost");
+
+    private static final long GRACE_PERIOD = 60000;
+    private static final int MAX_USER_MESSAGES = 2;
+
+    private final XmlStanzaCodec xmlCodec = new XmlStanzaCodec();
+
+    private MemoryMsgRepository backend;
+    private File walFile;
+
+    @Before
+    public void setUp() throws Exception {
+        backend = new MemoryMsgRepository();
+        walFile = File.createTempFile("hottier", ".log");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        walFile.delete();
+    }
+
+    private HotTierMsgRepository createRepository(MsgRepository backend) throws Exception {
+        HotTierMsgRepository repo = new HotTierMsgRepository(backend, GRACE_PERIOD, 1024 * 1024,
+                MAX_USER_MESSAGES, walFile, false);
+        repo.initRepository(null, null);
+        return repo;
+    }
+
+    private Element message(String id) {
+        return xmlCodec.parse("<message xmlns=\"jabber:client\" type=\"chat\" id=\"" + id + "\"><body>" + id + "</body></message>");
+    }
+
+    private static long[] ids(List<StoredMessage> messages) {
+        long[] ids = new long[messages.size()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = messages.get(i).getId();
+        return ids;
+    }
+
+    @Test
+    public void testGracePeriod() throws Exception {
+        HotTierMsgRepository repo = createRepository(backend);
+        repo.startGracePeriod(ALICE);
+        repo.storeMessage(ALICE, message("a1"), null);
+        repo.storeMessage(ALICE, message("a2"), null);
+        // not disconnected recently
+        repo.storeMessage(BOB, message("b1"), null);
+
+        assertEquals(Collections.emptyList(), backend.getStanzaIds(ALICE));
+        assertEquals(Collections.singletonList("b1"), backend.getStanzaIds(BOB));
+        assertEquals(2, repo.countMessages(ALICE));
+
+        List<StoredMessage> messages = repo.loadMessages(ALICE, 0, 10);
+        assertEquals(2, messages.size());
+        assertTrue(messages.get(0).getId() >= HotTierMsgRepository.HOT_ID_BASE);
+        assertEquals("a1", messages.get(0).getStanza().getAttributeStaticStr("id"));
+        assertEquals("a2", messages.get(1).getStanza().getAttributeStaticStr("id"));
+        // paging past in-memory messages
+        assertEquals(1, repo.loadMessages(ALICE, messages.get(0).getId(), 10).size());
+
+        assertEquals(2, repo.deleteMessages(ALICE, ids(messages)));
+        assertEquals(0, repo.countMessages(ALICE));
+        assertEquals(0, repo.getMemoryUsage());
+    }
+
+    @Test
+    public void testLoadReturnsCopies() throws Exception {
+        HotTierMsgRepository repo = createRepository(backend);
+        repo.startGracePeriod(ALICE);
+        repo.storeMessage(ALICE, message("a1"), null);
+
+        repo.loadMessages(ALICE, 0, 10).get(0).getStanza().setAttribute("to", "alice@localhost/res");
+        assertNull(repo.loadMessages(ALICE, 0, 10).get(0).getStanza().getAttributeStaticStr("to"));
+    }
+
+    @Test
+    public void testSpillSkipsSentMessages() throws Exception {
+        HotTierMsgRepository repo = createRepository(backend);
+        repo.startGracePeriod(ALICE);
+        repo.storeMessage(ALICE, message("a1"), null);
+        repo.storeMessage(ALICE, message("a2"), null);
+        List<StoredMessage> sent = repo.loadMessages(ALICE, 0, 10);
+
+        // buffer is full: spilled, but sent messages are kept
+        repo.storeMessage(ALICE, message("a3"), null);
+        assertEquals(Collections.singletonList("a3"), backend.getStanzaIds(ALICE));
+
+        // acknowledged: deleted by their in-memory id, nothing left to deliver
+        assertEquals(2, repo.deleteMessages(ALICE, ids(sent)));
+        assertEquals(0, repo.getBufferCount());
+        assertEquals(Collections.singletonList("a3"), backend.getStanzaIds(ALICE));
+    }
+
+    @Test
+    public void testReleasedMessagesAreSpilled() throws Exception {
+        HotTierMsgRepository repo = createRepository(backend);
+        repo.startGracePeriod(ALICE);
+        repo.storeMessage(ALICE, message("a1"), null);
+        repo.storeMessage(ALICE, message("a2"), null);
+        List<StoredMessage> sent = repo.loadMessages(ALICE, 0, 10);
+
+        // a1 was acknowledged, a2 came back for redelivery
+        repo.deleteMessages(ALICE, new long[] { sent.get(0).getId() });
+        repo.released(ALICE, sent.get(1).getId());
+
+        repo.storeMessage(ALICE, message("a3"), null);
+        repo.storeMessage(ALICE, message("a4"), null);
+        repo.storeMessage(ALICE, message("a5"), null);
+        assertEquals(Arrays.asList("a2", "a3", "a4", "a5"), backend.getStanzaIds(ALICE));
+        assertEquals(0, repo.getBufferCount());
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        HotTierMsgRepository repo = createRepository(backend);
+        repo.startGracePeriod(ALICE);
+        repo.storeMessage(ALICE, message("a1"), null);
+        repo.storeMessage(ALICE, message("a2"), null);
+        List<StoredMessage> sent = repo.loadMessages(ALICE, 0, 1);
+        repo.deleteMessages(ALICE, ids(sent));
+
+        // crash: a new instance recovers messages still in memory from the log
+        MemoryMsgRepository newBackend = new MemoryMsgRepository();
+        createRepository(newBackend);
+        assertEquals(Collections.singletonList("a2"), newBackend.getStanzaIds(ALICE));
+        assertEquals(0, walFile.length());
+    }
+
+}
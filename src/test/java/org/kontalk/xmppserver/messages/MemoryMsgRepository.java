@@ -0,0 +1,111 @@
+package org.kontalk.xmppserver.messages;
+
+import tigase.db.DBInitException;
+import tigase.db.TigaseDBException;
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/** In-memory message repository for tests. */
+class MemoryMsgRepository implements MsgRepository {
+
+    private static final class Row {
+        final long id;
+        final Element stanza;
+        final String compactKey;
+
+        Row(long id, Element stanza, String compactKey) {
+            this.id = id;
+            this.stanza = stanza;
+            this.compactKey = compactKey;
+        }
+    }
+
+    private final Map<BareJID, List<Row>> rows = new HashMap<>();
+    private long nextId = 1;
+
+    final AtomicInteger countCalls = new AtomicInteger();
+    final AtomicInteger batchCalls = new AtomicInteger();
+
+    @Override
+    public void initRepository(String resource_uri, Map<String, String> params) throws DBInitException {
+    }
+
+    @Override
+    public int expireMessages(int limit) throws TigaseDBException {
+        return 0;
+    }
+
+    @Override
+    public synchronized List<StoredMessage> loadMessages(BareJID user, long afterId, int limit) throws TigaseDBException {
+        List<StoredMessage> messages = new ArrayList<>();
+        for (Row row : getRows(user)) {
+            if (messages.size() >= limit)
+                break;
+            if (row.id > afterId)
+                messages.add(new StoredMessage(row.id, row.stanza.clone()));
+        }
+        return messages;
+    }
+
+    @Override
+    public synchronized int deleteMessages(BareJID user, long[] ids) throws TigaseDBException {
+        int deleted = 0;
+        Iterator<Row> iter = getRows(user).iterator();
+        while (iter.hasNext()) {
+            long id = iter.next().id;
+            for (long delete : ids) {
+                if (id == delete) {
+                    iter.remove();
+                    deleted++;
+                    break;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    @Override
+    public synchronized void storeMessage(BareJID user, Element msg, Date expire, String compactKey) throws TigaseDBException {
+        List<Row> list = getRows(user);
+        if (compactKey != null)
+            list.removeIf(row -> compactKey.equals(row.compactKey));
+        list.add(new Row(nextId++, msg, compactKey));
+    }
+
+    @Override
+    public synchronized void storeMessages(List<PendingMessage> messages) throws TigaseDBException {
+        batchCalls.incrementAndGet();
+        MsgRepository.super.storeMessages(messages);
+    }
+
+    @Override
+    public synchronized int countMessages(BareJID user) throws TigaseDBException {
+        countCalls.incrementAndGet();
+        return getRows(user).size();
+    }
+
+    @Override
+    public synchronized int deleteOldestMessages(BareJID user, int count) throws TigaseDBException {
+        List<Row> list = getRows(user);
+        int deleted = Math.min(count, list.size());
+        list.subList(0, deleted).clear();
+        return deleted;
+    }
+
+    /** Returns the ids of the stored stanzas for the given user, in storage order. */
+    synchronized List<String> getStanzaIds(BareJID user) {
+        List<String> ids = new ArrayList<>();
+        for (Row row : getRows(user))
+            ids.add(row.stanza.getAttributeStaticStr("id"));
+        return ids;
+    }
+
+    private List<Row> getRows(BareJID user) {
+        return rows.computeIfAbsent(user, u -> new ArrayList<>());
+    }
+
+}
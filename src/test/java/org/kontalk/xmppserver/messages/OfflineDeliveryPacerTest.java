@@ -0,0 +1,134 @@
+package org.kontalk.xmppserver.messages;
+
+import org.junit.Before;
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.impl.ProcessorTestCase;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+
+/** Test class for {@link OfflineDeliveryPacer}. */
+public class OfflineDeliveryPacerTest extends ProcessorTestCase {
+
+    private static final JID USER = JID.jidInstanceNS("alice@localhost/res");
+    private static final JID CONNECTION = JID.jidInstanceNS("c2s@localhost/alice-res");
+
+    private static final int INITIAL_WINDOW = 10;
+    private static final int MIN_WINDOW = 5;
+    private static final int MAX_WINDOW = 50;
+
+    private XMPPResourceConnection session;
+
+    /** Limits passed to the handler, in call order. */
+    private final List<Integer> windows = new CopyOnWriteArrayList<>();
+    /** Messages left in the fake backlog. */
+    private int backlog;
+
+    /**
+     * Fake delivery: moves the cursor through the backlog without sending
+     * anything, so no session manager is needed.
+     */
+    private int deliver(OfflineDeliveryPacer.Cursor cursor, Queue<Packet> results, int limit) {
+        windows.add(limit);
+        int count = Math.min(limit, backlog);
+        backlog -= count;
+        cursor.lastId += count;
+        if (backlog == 0)
+            cursor.done = true;
+        return count;
+    }
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        session = getSession(CONNECTION, USER);
+    }
+
+    private OfflineDeliveryPacer createPacer(long stallTimeout, Executor executor) {
+        return new OfflineDeliveryPacer(this::deliver, INITIAL_WINDOW, MIN_WINDOW, MAX_WINDOW, stallTimeout, executor);
+    }
+
+    @Test
+    public void testSmallBacklog() throws Exception {
+        OfflineDeliveryPacer pacer = createPacer(60000, Runnable::run);
+        backlog = 3;
+        pacer.start(session, USER.getBareJID(), new ArrayDeque<>());
+
+        assertEquals(1, windows.size());
+        assertEquals(INITIAL_WINDOW, (int) windows.get(0));
+        assertEquals(0, pacer.getActiveCount());
+    }
+
+    @Test
+    public void testNextWindowOnAcks() throws Exception {
+        OfflineDeliveryPacer pacer = createPacer(60000, Runnable::run);
+        backlog = 1000;
+        BareJID user = USER.getBareJID();
+        pacer.start(session, user, new ArrayDeque<>());
+        assertEquals(1, pacer.getActiveCount());
+
+        // next window once half of the first one is acknowledged
+        for (int i = 0; i < INITIAL_WINDOW / 2 - 1; i++)
+            pacer.acked(user);
+        assertEquals(1, windows.size());
+        pacer.acked(user);
+        assertEquals(2, windows.size());
+
+        int size = windows.get(1);
+        assertTrue(size >= MIN_WINDOW && size <= MAX_WINDOW);
+        assertEquals(2, pacer.getWindowCount());
+    }
+
+    @Test
+    public void testRejectedExecution() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        OfflineDeliveryPacer pacer = createPacer(60000, task -> {
+            attempts.incrementAndGet();
+            throw new RejectedExecutionException();
+        });
+        backlog = 1000;
+        BareJID user = USER.getBareJID();
+        pacer.start(session, user, new ArrayDeque<>());
+
+        for (int i = 0; i < INITIAL_WINDOW; i++)
+            pacer.acked(user);
+        // every ack past the threshold tries again
+        assertEquals(INITIAL_WINDOW / 2 + 1, attempts.get());
+        assertEquals(1, windows.size());
+    }
+
+    @Test
+    public void testStalledClient() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        OfflineDeliveryPacer pacer = createPacer(0, task -> {
+            task.run();
+            if (backlog == 0)
+                done.countDown();
+        });
+        backlog = 1000;
+        pacer.start(session, USER.getBareJID(), new ArrayDeque<>());
+
+        // no acks: the rest of the backlog is sent at once
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, pacer.getUnpacedCount());
+        assertEquals(0, pacer.getActiveCount());
+        for (int i = 1; i < windows.size(); i++)
+            assertEquals(MAX_WINDOW, (int) windows.get(i));
+    }
+
+}
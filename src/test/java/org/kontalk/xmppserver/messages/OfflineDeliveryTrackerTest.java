@@ -0,0 +1,121 @@
+package org.kontalk.xmppserver.messages;
+
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+
+/** Test class for {@link OfflineDeliveryTracker}. */
+public class OfflineDeliveryTrackerTest {
+
+    private static final BareJID ALICE = BareJID.bareJIDInstanceNS("alice@localhost");
+    private static final long ACK_TIMEOUT = 60000;
+
+    private final XmlStanzaCodec xmlCodec = new XmlStanzaCodec();
+
+    /** Filled by the tracker thread too. */
+    private final List<Long> deleted = new CopyOnWriteArrayList<>();
+    private final List<BareJID> acked = new CopyOnWriteArrayList<>();
+
+    private OfflineDeliveryTracker createTracker(long ackTimeout) {
+        OfflineDeliveryTracker tracker = OfflineDeliveryTracker.init((user, ids) -> {
+            assertEquals(ALICE, user);
+            for (long id : ids)
+                deleted.add(id);
+        }, ackTimeout);
+        tracker.setAckListener(acked::add);
+        return tracker;
+    }
+
+    private Packet message(String id, String body) throws Exception {
+        return Packet.packetInstance(xmlCodec.parse("<message xmlns=\"jabber:client\" type=\"chat\" id=\"" + id +
+                "\" from=\"bob@localhost/res\" to=\"alice@localhost\"><body>" + body + "</body></message>"));
+    }
+
+    @Test
+    public void testAck() throws Exception {
+        OfflineDeliveryTracker tracker = createTracker(ACK_TIMEOUT);
+        Packet packet = message("m1", "hello");
+        assertTrue(tracker.delivered(ALICE, packet, 42));
+        assertEquals(1, tracker.getInFlightCount());
+
+        // the connection manager takes the storage id before sending
+        assertEquals(42, OfflineDeliveryTracker.unmark(packet.getElement()));
+        assertEquals(0, OfflineDeliveryTracker.unmark(packet.getElement()));
+
+        // the queue may return a stamped copy
+        Packet stamped = packet.copyElementOnly();
+        stamped.getElement().addChild(new Element("delay", new String[] { "xmlns", "stamp" },
+                new String[] { "urn:xmpp:delay", "2017-01-01T00:00:00.000Z" }));
+        tracker.acked(stamped, 42);
+        assertEquals(0, tracker.getInFlightCount());
+        assertEquals(1, tracker.getAckedCount());
+        assertEquals(1, acked.size());
+
+        tracker.flush();
+        assertEquals(1, deleted.size());
+        assertEquals(42L, (long) deleted.get(0));
+    }
+
+    @Test
+    public void testAckLiveMessage() throws Exception {
+        OfflineDeliveryTracker tracker = createTracker(ACK_TIMEOUT);
+        tracker.delivered(ALICE, message("m1", "hello"), 42);
+
+        // a live message reusing the same id
+        tracker.acked(message("m1", "hello"), 0);
+        assertEquals(1, tracker.getInFlightCount());
+        tracker.flush();
+        assertTrue(deleted.isEmpty());
+    }
+
+    @Test
+    public void testNoStanzaId() throws Exception {
+        OfflineDeliveryTracker tracker = createTracker(ACK_TIMEOUT);
+        Packet packet = Packet.packetInstance(xmlCodec.parse("<message xmlns=\"jabber:client\" type=\"chat\"" +
+                " from=\"bob@localhost/res\" to=\"alice@localhost\"><body>hello</body></message>"));
+        assertFalse(tracker.delivered(ALICE, packet, 42));
+        assertEquals(0, OfflineDeliveryTracker.unmark(packet.getElement()));
+    }
+
+    @Test
+    public void testReleased() throws Exception {
+        OfflineDeliveryTracker tracker = createTracker(ACK_TIMEOUT);
+        Packet packet = message("m1", "hello");
+        tracker.delivered(ALICE, packet, 42);
+        OfflineDeliveryTracker.unmark(packet.getElement());
+
+        // a different message with the same id is not ours
+        assertEquals(0, tracker.released(ALICE, message("m1", "other")));
+
+        // unacknowledged messages come back with a delay stamp
+        Packet resent = packet.copyElementOnly();
+        resent.getElement().addChild(new Element("delay", new String[] { "xmlns", "stamp" },
+                new String[] { "urn:xmpp:delay", "2017-01-01T00:00:00.000Z" }));
+        assertEquals(42, tracker.released(ALICE, resent));
+        assertEquals(0, tracker.getInFlightCount());
+        assertEquals(1, tracker.getReleasedCount());
+
+        tracker.flush();
+        assertTrue(deleted.isEmpty());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        OfflineDeliveryTracker tracker = createTracker(0);
+        tracker.delivered(ALICE, message("m1", "hello"), 42);
+        tracker.delivered(ALICE, message("m2", "hello"), 43);
+
+        tracker.flush();
+        assertEquals(2, deleted.size());
+        assertEquals(2, tracker.getTimedOutCount());
+        assertEquals(0, tracker.getInFlightCount());
+    }
+
+}
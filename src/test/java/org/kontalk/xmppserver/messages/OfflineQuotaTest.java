@@ -0,0 +1,73 @@
+package org.kontalk.xmppserver.messages;
+
+import org.junit.Before;
+import org.junit.Test;
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+
+/** Test class for {@link OfflineQuota}. */
+public class OfflineQuotaTest {
+
+    private static final BareJID ALICE = BareJID.bareJIDInstanceNS("alice@localhost");
+
+    private final XmlStanzaCodec xmlCodec = new XmlStanzaCodec();
+
+    private MemoryMsgRepository repo;
+
+    @Before
+    public void setUp() {
+        repo = new MemoryMsgRepository();
+    }
+
+    private Element message(String id) {
+        return xmlCodec.parse("<message xmlns=\"jabber:client\" type=\"chat\" id=\"" + id + "\"><body>" + id + "</body></message>");
+    }
+
+    /** Stores a message the way offline storage does. */
+    private boolean store(OfflineQuota quota, String id) throws Exception {
+        if (!quota.acquire(ALICE))
+            return false;
+        repo.storeMessage(ALICE, message(id), null);
+        return true;
+    }
+
+    @Test
+    public void testReject() throws Exception {
+        OfflineQuota quota = new OfflineQuota(repo, 3, OfflineQuota.Policy.REJECT);
+        assertTrue(store(quota, "a1"));
+        assertTrue(store(quota, "a2"));
+        assertTrue(store(quota, "a3"));
+        // counted only when first seen
+        assertEquals(1, repo.countCalls.get());
+
+        assertFalse(store(quota, "a4"));
+        assertEquals(2, repo.countCalls.get());
+        // no recount for every rejected message
+        assertFalse(store(quota, "a5"));
+        assertFalse(store(quota, "a6"));
+        assertEquals(2, repo.countCalls.get());
+        assertEquals(3, quota.getRejectedCount());
+
+        // delivered messages make room
+        quota.released(ALICE, 1);
+        assertTrue(store(quota, "a7"));
+        assertEquals(2, repo.countCalls.get());
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        OfflineQuota quota = new OfflineQuota(repo, 3, OfflineQuota.Policy.DROP_OLDEST);
+        for (int i = 1; i <= 5; i++)
+            assertTrue(store(quota, "a" + i));
+
+        assertEquals(Arrays.asList("a3", "a4", "a5"), repo.getStanzaIds(ALICE));
+        assertEquals(2, quota.getDroppedCount());
+        assertEquals(2, repo.countCalls.get());
+    }
+
+}
@@ -0,0 +1,100 @@
+package org.kontalk.xmppserver.messages;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+
+/** Test class for {@link WriteBehindMsgRepository}. */
+public class WriteBehindMsgRepositoryTest {
+
+    private static final BareJID ALICE = BareJID.bareJIDInstanceNS("alice@localhost");
+    private static final BareJID BOB = BareJID.bareJIDInstanceNS("bob@localhost");
+
+    private final XmlStanzaCodec xmlCodec = new XmlStanzaCodec();
+
+    private MemoryMsgRepository backend;
+    private WriteBehindMsgRepository repo;
+
+    @Before
+    public void setUp() throws Exception {
+        backend = new MemoryMsgRepository();
+        // long latency, so writes stay queued unless flushed
+        repo = new WriteBehindMsgRepository(backend, 2, 100, 10, 60000, 100);
+        repo.initRepository(null, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        repo.shutdown(1000);
+    }
+
+    private Element message(String id) {
+        return xmlCodec.parse("<message xmlns=\"jabber:client\" type=\"chat\" id=\"" + id + "\"><body>" + id + "</body></message>");
+    }
+
+    @Test
+    public void testLoadFlushesPendingWrites() throws Exception {
+        repo.storeMessage(ALICE, message("a1"), null);
+        repo.storeMessage(BOB, message("b1"), null);
+        repo.storeMessage(ALICE, message("a2"), null);
+        repo.storeMessage(ALICE, message("a3"), null);
+
+        List<StoredMessage> messages = repo.loadMessages(ALICE, 0, 10);
+        assertEquals(3, messages.size());
+        assertEquals("a1", messages.get(0).getStanza().getAttributeStaticStr("id"));
+        assertEquals("a2", messages.get(1).getStanza().getAttributeStaticStr("id"));
+        assertEquals("a3", messages.get(2).getStanza().getAttributeStaticStr("id"));
+        assertTrue(repo.getBatchCount() > 0);
+        assertEquals(0, repo.getSyncWriteCount());
+    }
+
+    @Test
+    public void testCountFlushesPendingWrites() throws Exception {
+        repo.storeMessage(ALICE, message("a1"), null);
+        repo.storeMessage(ALICE, message("a2"), null);
+        assertEquals(2, repo.countMessages(ALICE));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        repo.storeMessage(ALICE, message("a1"), null, "key");
+        repo.storeMessage(ALICE, message("a2"), null, "key");
+        repo.storeMessage(ALICE, message("a3"), null);
+
+        repo.loadMessages(ALICE, 0, 10);
+        assertEquals(Arrays.asList("a2", "a3"), backend.getStanzaIds(ALICE));
+    }
+
+    @Test
+    public void testStoreMessagesIsSynchronous() throws Exception {
+        repo.storeMessage(ALICE, message("a1"), null);
+        repo.storeMessages(Collections.singletonList(new PendingMessage(ALICE, message("a2"), null, null)));
+
+        // batch is in the backend on return, after what was queued before it
+        assertEquals(Arrays.asList("a1", "a2"), backend.getStanzaIds(ALICE));
+    }
+
+    @Test
+    public void testShutdownWritesQueue() throws Exception {
+        for (int i = 0; i < 25; i++)
+            repo.storeMessage(ALICE, message("a" + i), null);
+
+        repo.shutdown(5000);
+        assertEquals(0, repo.getQueueSize());
+        assertEquals(25, backend.getStanzaIds(ALICE).size());
+
+        // stored synchronously after shutdown
+        repo.storeMessage(BOB, message("b1"), null);
+        assertEquals(Collections.singletonList("b1"), backend.getStanzaIds(BOB));
+    }
+
+}
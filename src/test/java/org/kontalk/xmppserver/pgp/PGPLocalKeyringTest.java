@@ -3,8 +3,10 @@ package org.kontalk.xmppserver.pgp;
 import org.bouncycastle.openpgp.PGPPublicKeyRing;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.InputStream;
 
 import static org.junit.Assert.*;
@@ -45,4 +47,45 @@ public class PGPLocalKeyringTest {
         assertNotNull(key);
     }
     */
+
+    /**
+     * Compares cached lookups with parsing the stored keyring, which is what
+     * every lookup did before keys were cached. Needs the Kyoto Cabinet native
+     * library, so it must be run by hand.
+     */
+    @Test
+    @Ignore("needs the Kyoto Cabinet native library")
+    public void testGetKeyTiming() throws Exception {
+        final int iterations = 10000;
+        File dir = File.createTempFile("keyring", "");
+        dir.delete();
+        dir.mkdir();
+        PGPLocalKeyring keyring = new PGPLocalKeyring(new File(dir, "keyring").getPath());
+        try {
+            InputStream in = getClass().getResourceAsStream("/test.key");
+            PGPPublicKeyRing key = keyring.importKey(in);
+            in.close();
+            String fpr = PGPUtils.getFingerprint(key);
+            byte[] encoded = key.getEncoded();
+
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                assertNotNull(PGPUtils.readPublicKeyring(encoded));
+            }
+            long parsed = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                assertNotNull(keyring.getKey(fpr));
+            }
+            long cached = System.nanoTime() - start;
+
+            System.out.println(String.format("getKey: %.2f us cached, %.2f us parsing",
+                    cached / 1e3 / iterations, parsed / 1e3 / iterations));
+            assertTrue(cached < parsed);
+        }
+        finally {
+            keyring.close();
+        }
+    }
 }
@@ -0,0 +1,133 @@
+package org.kontalk.xmppserver.pgp;
+
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
+import org.bouncycastle.crypto.generators.RSAKeyPairGenerator;
+import org.bouncycastle.crypto.params.RSAKeyGenerationParameters;
+import org.bouncycastle.openpgp.*;
+import org.bouncycastle.openpgp.operator.bc.BcKeyFingerprintCalculator;
+import org.bouncycastle.openpgp.operator.bc.BcPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPGPContentVerifierBuilderProvider;
+import org.bouncycastle.openpgp.operator.bc.BcPGPDigestCalculatorProvider;
+import org.bouncycastle.openpgp.operator.bc.BcPGPKeyPair;
+import org.bouncycastle.util.io.Streams;
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+
+/** Test class for {@link PGPSigner}. */
+public class PGPSignerTest {
+
+    private static PGPSecretKeyRing serverKey;
+    private static PGPSecretKeyRing userKey;
+
+    private static PGPSecretKeyRing generateKey(String uid) throws Exception {
+        RSAKeyPairGenerator gen = new RSAKeyPairGenerator();
+        gen.init(new RSAKeyGenerationParameters(BigInteger.valueOf(0x10001), new SecureRandom(), 1024, 12));
+        PGPKeyPair keyPair = new BcPGPKeyPair(PGPPublicKey.RSA_GENERAL, gen.generateKeyPair(), new Date());
+
+        PGPKeyRingGenerator ringGen = new PGPKeyRingGenerator(PGPSignature.POSITIVE_CERTIFICATION,
+                keyPair, uid, new BcPGPDigestCalculatorProvider().get(HashAlgorithmTags.SHA1),
+                null, null, new BcPGPContentSignerBuilder(PublicKeyAlgorithmTags.RSA_GENERAL, HashAlgorithmTags.SHA256),
+                null);
+        return ringGen.generateSecretKeyRing();
+    }
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        serverKey = generateKey("Kontalk server <server@kontalk.net>");
+        userKey = generateKey("Test user <user@kontalk.net>");
+    }
+
+    @Test
+    public void testSignKey() throws Exception {
+        PGPSigner signer = new PGPSigner(serverKey, new char[0]);
+        PGPPublicKey serverMaster = serverKey.getPublicKey();
+
+        byte[] userPublic = userKey.getPublicKey().getEncoded();
+        byte[] signed = signer.signKey(userPublic);
+
+        PGPPublicKey signedMaster = PGPUtils.getMasterKey(signed);
+        assertNotNull(signedMaster);
+        assertTrue(PGPUtils.findValidKeySignature(signedMaster, "Test user <user@kontalk.net>", serverMaster));
+
+        // signing again must not add another certification
+        assertArrayEquals(signed, signer.signKey(signed));
+    }
+
+    /**
+     * Compares key signing times with the gpg2 path. Needs gpg2 in PATH and
+     * imports the test server key into the default GnuPG keyring, so it must
+     * be run by hand.
+     */
+    @Test
+    @Ignore("needs gpg2 and modifies the GnuPG keyring")
+    public void testSignKeyTiming() throws Exception {
+        final int iterations = 20;
+        byte[] userPublic = userKey.getPublicKey().getEncoded();
+
+        PGPSigner signer = new PGPSigner(serverKey, new char[0]);
+        // warm up
+        signer.signKey(userPublic);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            signer.signKey(userPublic);
+        }
+        long inProcess = System.nanoTime() - start;
+
+        GnuPGInterface gpg = GnuPGInterface.getInstance();
+        File secretKey = File.createTempFile("server", ".key");
+        try {
+            Files.write(secretKey.toPath(), serverKey.getEncoded());
+            gpg.importKey(secretKey.getPath());
+        }
+        finally {
+            secretKey.delete();
+        }
+        String serverId = PGPUtils.getFingerprint(serverKey.getPublicKey());
+        gpg.signKey(userPublic, serverId);
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            gpg.signKey(userPublic, serverId);
+        }
+        long forked = System.nanoTime() - start;
+
+        System.out.println(String.format("signKey: %.2f ms in process, %.2f ms with gpg2",
+                inProcess / 1e6 / iterations, forked / 1e6 / iterations));
+        assertTrue(inProcess < forked);
+    }
+
+    @Test
+    public void testSignData() throws Exception {
+        PGPSigner signer = new PGPSigner(serverKey, new char[0]);
+        byte[] data = "Broadcast message".getBytes(StandardCharsets.UTF_8);
+        byte[] signed = signer.signData(data);
+
+        PGPObjectFactory factory = new PGPObjectFactory(signed, new BcKeyFingerprintCalculator());
+        PGPCompressedData compressed = (PGPCompressedData) factory.nextObject();
+        factory = new PGPObjectFactory(compressed.getDataStream(), new BcKeyFingerprintCalculator());
+
+        PGPOnePassSignature ops = ((PGPOnePassSignatureList) factory.nextObject()).get(0);
+        ops.init(new BcPGPContentVerifierBuilderProvider(), serverKey.getPublicKey());
+
+        PGPLiteralData literal = (PGPLiteralData) factory.nextObject();
+        byte[] content = Streams.readAll(literal.getInputStream());
+        assertArrayEquals(data, content);
+        ops.update(content);
+
+        PGPSignature sig = ((PGPSignatureList) factory.nextObject()).get(0);
+        assertEquals(PGPSignature.BINARY_DOCUMENT, sig.getSignatureType());
+        assertTrue(ops.verify(sig));
+    }
+
+}
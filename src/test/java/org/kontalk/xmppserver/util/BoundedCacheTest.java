@@ -0,0 +1,46 @@
+package org.kontalk.xmppserver.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class BoundedCacheTest {
+
+    @Test
+    public void testMaxSize() {
+        BoundedCache<Integer, String> cache = new BoundedCache<>(100, 60000);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, String.valueOf(i));
+            assertTrue(cache.size() <= 100);
+        }
+        assertEquals("999", cache.get(999));
+        assertEquals(900, cache.getEvictions());
+    }
+
+    @Test
+    public void testExpiredEvictedFirst() throws InterruptedException {
+        // small enough for every entry to be sampled
+        BoundedCache<Integer, String> cache = new BoundedCache<>(5, 60000);
+        for (int i = 0; i < 4; i++)
+            cache.put(i, String.valueOf(i));
+        cache.put(4, "expiring", 1);
+        Thread.sleep(5);
+
+        cache.put(5, "5");
+        assertEquals(5, cache.size());
+        for (int i = 0; i < 4; i++)
+            assertEquals(String.valueOf(i), cache.get(i));
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    public void testPutIfAbsent() {
+        BoundedCache<String, String> cache = new BoundedCache<>(10, 60000);
+        assertEquals("a", cache.putIfAbsent("key", "a"));
+        assertEquals("a", cache.putIfAbsent("key", "b"));
+        cache.invalidate("key");
+        assertEquals("b", cache.putIfAbsent("key", "b"));
+    }
+
+}
@@ -0,0 +1,70 @@
+package org.kontalk.xmppserver.util;
+
+import org.junit.Test;
+import org.kontalk.xmppserver.messages.XmlStanzaCodec;
+import tigase.server.Packet;
+import tigase.util.TigaseStringprepException;
+import tigase.xml.Element;
+
+import static org.junit.Assert.*;
+import static org.kontalk.xmppserver.util.StanzaClassifier.*;
+
+
+public class StanzaClassifierTest {
+
+    private final XmlStanzaCodec codec = new XmlStanzaCodec();
+
+    private Packet packet(String xml) throws TigaseStringprepException {
+        return Packet.packetInstance(codec.parse(xml));
+    }
+
+    @Test
+    public void testMessage() throws TigaseStringprepException {
+        Packet p = packet("<message xmlns=\"jabber:client\" type=\"chat\" to=\"user@localhost\">" +
+                "<body>hello</body>" +
+                "<request xmlns=\"urn:xmpp:receipts\"/>" +
+                "<active xmlns=\"http://jabber.org/protocol/chatstates\"/>" +
+                "</message>");
+        int flags = classify(p);
+        assertEquals(MESSAGE | BODY | BODY_TEXT | RECEIPT_REQUEST | CHAT_STATE_ACTIVE, flags);
+        assertTrue(is(p, MESSAGE | BODY));
+        assertFalse(isAny(p, CHAT_STATE_NOTIFY | RECEIPT_RECEIVED | DELAY));
+    }
+
+    @Test
+    public void testReceipt() throws TigaseStringprepException {
+        Packet p = packet("<message xmlns=\"jabber:client\" to=\"user@localhost\">" +
+                "<received xmlns=\"urn:xmpp:receipts\" id=\"abc\"/>" +
+                "<delay xmlns=\"urn:xmpp:delay\" stamp=\"2017-01-01T00:00:00.000Z\"/>" +
+                "</message>");
+        assertEquals(MESSAGE | RECEIPT_RECEIVED | DELAY, classify(p));
+    }
+
+    @Test
+    public void testChatState() throws TigaseStringprepException {
+        Packet p = packet("<message xmlns=\"jabber:client\" to=\"user@localhost\"><body/>" +
+                "<composing xmlns=\"http://jabber.org/protocol/chatstates\"/></message>");
+        assertEquals(MESSAGE | BODY | CHAT_STATE_COMPOSING, classify(p));
+        // wrong namespace
+        p = packet("<message xmlns=\"jabber:client\" to=\"user@localhost\"><composing xmlns=\"urn:test\"/></message>");
+        assertEquals(MESSAGE, classify(p));
+    }
+
+    @Test
+    public void testAddedChild() throws TigaseStringprepException {
+        Packet p = packet("<message xmlns=\"jabber:client\" to=\"user@localhost\"><body>hello</body></message>");
+        assertEquals(MESSAGE | BODY | BODY_TEXT, classify(p));
+        p.getElement().addChild(new Element("delay", new String[] { "xmlns" }, new String[] { "urn:xmpp:delay" }));
+        assertEquals(MESSAGE | BODY | BODY_TEXT | DELAY, classify(p));
+    }
+
+    @Test
+    public void testPing() throws TigaseStringprepException {
+        Packet p = packet("<iq xmlns=\"jabber:client\" type=\"get\" id=\"p1\" to=\"user@localhost\"><ping xmlns=\"urn:xmpp:ping\"/></iq>");
+        assertEquals(IQ | PING, classify(p));
+        // message children are not checked for other stanzas
+        p = packet("<presence xmlns=\"jabber:client\" to=\"user@localhost\"><body>x</body></presence>");
+        assertEquals(0, classify(p));
+    }
+
+}